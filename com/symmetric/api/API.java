@@ -11,16 +11,18 @@ import android.util.Log;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.IOException;
 import java.io.File;
+import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
+import java.nio.charset.Charset;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Locale;
 import java.util.HashMap;
 import java.util.Random;
-import java.util.Scanner;
 import java.util.TimeZone;
 
 import javax.crypto.Cipher;
@@ -39,11 +41,24 @@ public final class API
 	public static final String CONFIG_LOGOUT_URL = "LOGOUT_URL";
 	public static final String CONFIG_HMAC_KEY = "HMAC_KEY";
 	public static final String CONFIG_HMAC_SALT = "HMAC_SALT";
+	public static final String CONFIG_HMAC_MODE = "HMAC_MODE";
 	public static final String CONFIG_MOBILE_KEY = "MOBILE_KEY";
 	public static final String CONFIG_FILTER_CONTACTS_URL = "FILTER_CONTACTS_URL";
 	public static final String CONFIG_CREATE_USER_URL = "CREATE_USER_URL";
 	public static final String CONFIG_SET_PASSWORD_URL = "SET_PASSWORD_URL";
 	public static final String CONFIG_RESET_PASSWORD_URL = "RESET_PASSWORD_URL";
+	public static final String CONFIG_CACHE_STORAGE = "CACHE_STORAGE";
+	public static final String CONFIG_COALESCE_REQUESTS = "COALESCE_REQUESTS";
+	public static final String CONFIG_NEGATIVE_CACHE_TTL = "NEGATIVE_CACHE_TTL";
+	public static final String CONFIG_MAX_CONCURRENT_REQUESTS = "MAX_CONCURRENT_REQUESTS";
+	public static final String CONFIG_MAX_REQUESTS_PER_HOST = "MAX_REQUESTS_PER_HOST";
+	public static final String CONFIG_GZIP_REQUEST_THRESHOLD = "GZIP_REQUEST_THRESHOLD";
+	public static final String CONFIG_BATCH_URL = "BATCH_URL";
+	public static final String CONFIG_MAX_RETRIES = "MAX_RETRIES";
+	public static final String CONFIG_RETRY_DELAY = "RETRY_DELAY";
+	public static final String CONFIG_RETRY_CREATES = "RETRY_CREATES";
+	public static final String CONFIG_CIRCUIT_BREAKER_THRESHOLD = "CIRCUIT_BREAKER_THRESHOLD";
+	public static final String CONFIG_CIRCUIT_BREAKER_DURATION = "CIRCUIT_BREAKER_DURATION";
 
 	public static final String EXTRA_ERROR = "ERROR";
 	public static final String ERROR_NOINTERNET = "No internet connection available.";
@@ -57,15 +72,23 @@ public final class API
 	public static final int ACTION_UPDATE = 3;
 	public static final int ACTION_DELETE = 4;
 
+	public static final int PRIORITY_INTERACTIVE = 0;
+	public static final int PRIORITY_NORMAL = 1;
+	public static final int PRIORITY_BACKGROUND = 2;
+
 	public static final String PREFS_NAME = "API";
 	public static final String TAG = "com.symmetric.api";
 	public static final String DATEFORMAT = "yyyy-MM-dd'T'HH:mm:ssZZZZZ";
 
+	static final Charset CHARSET_UTF8 = Charset.forName("UTF-8");
+
 	// Configuration and Setup
 	static String appPackage;
 	static File appDirectory;
 	static Context appContext;
 	private static HashMap<String, String> configuration = new HashMap<String, String>();
+	private static volatile APITransport transport;
+	private static volatile int configurationVersion;
 
 	// Required model methods
 	public interface JSONSerializable
@@ -78,6 +101,7 @@ public final class API
 		configuration.put(CONFIG_CURRENT_USER_URL, "/api/me");
 		configuration.put(CONFIG_LOGIN_URL, "/api/login");
 		configuration.put(CONFIG_LOGOUT_URL, "/api/logout");
+		configuration.put(CONFIG_BATCH_URL, "/api/batch");
 		configuration.put(CONFIG_HTTPS_LOGIN, "true");
 	}
 
@@ -93,6 +117,13 @@ public final class API
 	public static void setConfiguration(String key, String value)
 	{
 		configuration.put(key, value);
+		configurationVersion++;
+	}
+
+	/** Changes with every setConfiguration, so values derived from the configuration can tell when to derive them again. */
+	static int getConfigurationVersion()
+	{
+		return configurationVersion;
 	}
 
 	public static String getConfiguration(String key)
@@ -100,6 +131,27 @@ public final class API
 		return configuration.get(key);
 	}
 
+	/** Sets the transport requests are sent through, null restores the default APIPooledTransport. */
+	public static void setTransport(APITransport transport)
+	{
+		API.transport = transport;
+	}
+
+	public static APITransport getTransport()
+	{
+		APITransport transport = API.transport;
+		if(transport == null)
+		{
+			synchronized(API.class)
+			{
+				if(API.transport == null)
+					API.transport = new APIPooledTransport();
+				transport = API.transport;
+			}
+		}
+		return transport;
+	}
+
 	private static Handler mainHandler = new Handler(Looper.getMainLooper());
 
 	public static void runOnUiThread(Runnable action)
@@ -124,13 +176,26 @@ public final class API
 		return (connectivityManager.getActiveNetworkInfo() != null && connectivityManager.getActiveNetworkInfo().isConnected() == true);
 	}
 
+	/** Reads a UTF-8 stream to its end without closing it. Like before, a read error ends the string rather than failing it. */
 	public static String convertStreamToString(InputStream is)
 	{
-		try {
-			return new Scanner(is).useDelimiter("\\A").next();
-		} catch (java.util.NoSuchElementException e) {
+		InputStreamReader reader;
+		StringBuilder string = new StringBuilder();
+		char[] buffer;
+		int read;
+
+		if(is == null)
 			return "";
+		buffer = APICharBufferPool.acquire();
+		try
+		{
+			reader = new InputStreamReader(is, CHARSET_UTF8);
+			while((read = reader.read(buffer)) != -1)
+				string.append(buffer, 0, read);
 		}
+		catch(IOException e) { }
+		finally { APICharBufferPool.release(buffer); }
+		return string.toString();
 	}
 
 	public static int parseInt(String intString)
@@ -206,29 +271,61 @@ public final class API
 	public static String encodeUrlArgs(Object[] args)
 	{
 		StringBuilder stringBuilder = new StringBuilder();
-		String encoded;
 
 		try
 		{
-			for(int i = 0; i < args.length - 1; i += 2)
-			{
-				encoded = (args[i+1] != null) ? URLEncoder.encode(args[i+1].toString(), "UTF-8") : "";
-				if((i + 2) < args.length - 1)
-					stringBuilder.append(String.format("%s=%s&", args[i], encoded));
-				else
-					stringBuilder.append(String.format("%s=%s", args[i], encoded));
-			}
+			appendUrlArgs(stringBuilder, args);
 			return stringBuilder.toString();
 		} catch(Exception e) { Log.e(TAG, e.getMessage(), e); }
 		return null;
 	}
 
+	/** Appends the key value pairs of args as a query string without the leading '?'. */
+	static void appendUrlArgs(StringBuilder builder, Object[] args) throws UnsupportedEncodingException
+	{
+		String value;
+
+		for(int i = 0; i < args.length - 1; i += 2)
+		{
+			if(i > 0)
+				builder.append('&');
+			builder.append(args[i]).append('=');
+			if(args[i+1] == null)
+				continue;
+			value = args[i+1].toString();
+			// Most values, ids and numbers, come out of URLEncoder unchanged, so only the others go through it
+			if(isUrlSafe(value))
+				builder.append(value);
+			else
+				builder.append(URLEncoder.encode(value, "UTF-8"));
+		}
+	}
+
+	/** Returns true if URLEncoder leaves s as it is. */
+	private static boolean isUrlSafe(String s)
+	{
+		char c;
+
+		for(int i = 0; i < s.length(); ++i)
+		{
+			c = s.charAt(i);
+			if(!((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '.' || c == '-' || c == '*' || c == '_'))
+				return false;
+		}
+		return true;
+	}
+
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
 	public static String byteArrayToString(byte[] ba)
 	{
-		StringBuilder hex = new StringBuilder(ba.length * 2);
+		char[] hex = new char[ba.length * 2];
 		for(int i = 0; i < ba.length; ++i)
-			hex.append(String.format("%02x", ba[i]));
-		return hex.toString();
+		{
+			hex[i * 2] = HEX_DIGITS[(ba[i] >> 4) & 0xf];
+			hex[i * 2 + 1] = HEX_DIGITS[ba[i] & 0xf];
+		}
+		return new String(hex);
 	}
 
 	public static byte[] stringToByteArray(String hs)
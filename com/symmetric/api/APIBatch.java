@@ -0,0 +1,369 @@
+package com.symmetric.api;
+
+import android.util.JsonReader;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.json.JSONObject;
+
+/**
+ * Collects creates, updates and deletes into one request, so a bulk edit pays for the round trip, the session cookies
+ * and the HMAC signature once. Operations are sent when maxOperations are pending or flushDelay after the first one was
+ * added, whichever comes first, or when flush is called. Each operation is a future of its own result.
+ *
+ * The envelope is POSTed to API.CONFIG_BATCH_URL as
+ *     {"operations": [{"method": "POST", "path": "/items", "body": {...}}, ...]}
+ * and the server answers with one result per operation, in the same order
+ *     [{"status": 201, "body": {...}}, ...]
+ * An operation that fails on the server gets its status and body as its result, only a failure of the whole envelope
+ * fails the futures with an IOException.
+ */
+public final class APIBatch
+{
+	public static final int DEFAULT_MAX_OPERATIONS = 20;
+	public static final long DEFAULT_FLUSH_DELAY = 100;
+
+	static final String FIELD_OPERATIONS = "operations";
+	static final String FIELD_METHOD = "method";
+	static final String FIELD_PATH = "path";
+	static final String FIELD_BODY = "body";
+	static final String FIELD_STATUS = "status";
+
+	private static Timer timer;
+
+	public static final class Result
+	{
+		public final int status;
+		/** JSON text of the body, null if the operation had none. */
+		public final String body;
+
+		Result(int status, String body)
+		{
+			this.status = status;
+			this.body = body;
+		}
+
+		public boolean isSuccessful()
+		{
+			return this.status >= 200 && this.status < 300;
+		}
+	}
+
+	public static final class Operation implements Future<Result>
+	{
+		final int action;
+		final String path;
+		final byte[] data;
+		private final APIBatch batch;
+		private Result result;
+		private IOException error;
+		private boolean done;
+		private boolean cancelled;
+
+		Operation(APIBatch batch, int action, String path, byte[] data)
+		{
+			this.batch = batch;
+			this.action = action;
+			this.path = path;
+			this.data = data;
+		}
+
+		/** Cancels the operation if it wasn't sent yet. */
+		public boolean cancel(boolean mayInterruptIfRunning)
+		{
+			if(!this.batch.remove(this))
+				return false;
+			synchronized(this)
+			{
+				this.cancelled = true;
+				this.done = true;
+				notifyAll();
+			}
+			return true;
+		}
+
+		public synchronized boolean isCancelled()
+		{
+			return this.cancelled;
+		}
+
+		public synchronized boolean isDone()
+		{
+			return this.done;
+		}
+
+		public synchronized Result get() throws InterruptedException, ExecutionException
+		{
+			while(!this.done)
+				wait();
+			return result();
+		}
+
+		public synchronized Result get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException
+		{
+			long deadline = System.nanoTime() + unit.toNanos(timeout);
+			long remaining;
+
+			while(!this.done)
+			{
+				remaining = deadline - System.nanoTime();
+				if(remaining <= 0)
+					throw new TimeoutException();
+				TimeUnit.NANOSECONDS.timedWait(this, remaining);
+			}
+			return result();
+		}
+
+		private Result result() throws ExecutionException
+		{
+			if(this.cancelled)
+				throw new CancellationException();
+			if(this.error != null)
+				throw new ExecutionException(this.error);
+			return this.result;
+		}
+
+		synchronized void complete(Result result, IOException error)
+		{
+			this.result = result;
+			this.error = error;
+			this.done = true;
+			notifyAll();
+		}
+	}
+
+	private final boolean https;
+	private final boolean loginRequired;
+	private final boolean sign;
+	private final int maxOperations;
+	private final long flushDelay;
+	private ArrayList<Operation> pending = new ArrayList<Operation>();
+	private TimerTask flushTask;
+
+	public APIBatch(boolean https, boolean loginRequired, boolean sign)
+	{
+		this(https, loginRequired, sign, DEFAULT_MAX_OPERATIONS, DEFAULT_FLUSH_DELAY);
+	}
+
+	public APIBatch(boolean https, boolean loginRequired, boolean sign, int maxOperations, long flushDelayMillis)
+	{
+		this.https = https;
+		this.loginRequired = loginRequired;
+		this.sign = sign;
+		this.maxOperations = Math.max(maxOperations, 1);
+		this.flushDelay = flushDelayMillis;
+	}
+
+	public Operation create(String path, byte[] data)
+	{
+		return add(API.ACTION_CREATE, path, data);
+	}
+
+	public Operation update(String path, byte[] data)
+	{
+		return add(API.ACTION_UPDATE, path, data);
+	}
+
+	public Operation delete(String path)
+	{
+		return add(API.ACTION_DELETE, path, null);
+	}
+
+	/** Adds an ACTION_CREATE, ACTION_UPDATE or ACTION_DELETE operation, data is its JSON body and may be null. */
+	public Operation add(int action, String path, byte[] data)
+	{
+		Operation operation = new Operation(this, action, path, data);
+		boolean full;
+
+		if(action != API.ACTION_CREATE && action != API.ACTION_UPDATE && action != API.ACTION_DELETE)
+			throw new IllegalArgumentException("Only creates, updates and deletes can be batched");
+		synchronized(this)
+		{
+			this.pending.add(operation);
+			full = this.pending.size() >= this.maxOperations;
+			if(!full && this.flushTask == null)
+			{
+				this.flushTask = new TimerTask() {
+					public void run()
+					{
+						flush();
+					}
+				};
+				getTimer().schedule(this.flushTask, this.flushDelay);
+			}
+		}
+		if(full)
+			flush();
+		return operation;
+	}
+
+	/** Sends the pending operations now, on the shared request pool. */
+	public void flush()
+	{
+		final ArrayList<Operation> operations;
+
+		synchronized(this)
+		{
+			if(this.flushTask != null)
+			{
+				this.flushTask.cancel();
+				this.flushTask = null;
+			}
+			if(this.pending.isEmpty())
+				return;
+			operations = this.pending;
+			this.pending = new ArrayList<Operation>();
+		}
+		APIRequestExecutor.getExecutor().execute(new Runnable() {
+			public void run()
+			{
+				send(operations);
+			}
+		}, API.PRIORITY_NORMAL, API.getConfiguration(API.CONFIG_HOST));
+	}
+
+	public synchronized int getPendingCount()
+	{
+		return this.pending.size();
+	}
+
+	private synchronized boolean remove(Operation operation)
+	{
+		return this.pending.remove(operation);
+	}
+
+	private void send(List<Operation> operations)
+	{
+		APIURLConnection connection;
+		List<Result> results = null;
+		IOException error = null;
+		Result result;
+		Operation operation;
+
+		try
+		{
+			connection = new APIURLConnection(API.ACTION_CREATE, API.getConfiguration(API.CONFIG_BATCH_URL), null, encode(operations), this.https, this.loginRequired, this.sign);
+			results = connection.execute(RESULTS_PARSER);
+			if(results == null)
+				error = new IOException("Batch request failed with status " + connection.getResponseCode() + ": " + connection.getErrorResponse());
+		} catch(IOException e) { error = e; }
+
+		for(int i = 0; i < operations.size(); ++i)
+		{
+			operation = operations.get(i);
+			if(error != null)
+			{
+				operation.complete(null, error);
+			}
+			else if(i >= results.size())
+			{
+				operation.complete(null, new IOException("Batch response has no result for operation " + i));
+			}
+			else
+			{
+				result = results.get(i);
+				// Reads of what was just created must not be answered from the negative cache
+				if(operation.action == API.ACTION_CREATE && result.isSuccessful())
+					APINegativeCache.getSharedCache().invalidate(operation.path);
+				operation.complete(result, null);
+			}
+		}
+	}
+
+	static byte[] encode(List<Operation> operations) throws IOException
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		Operation operation;
+
+		out.write(("{\"" + FIELD_OPERATIONS + "\":[").getBytes("UTF-8"));
+		for(int i = 0; i < operations.size(); ++i)
+		{
+			operation = operations.get(i);
+			if(i > 0)
+				out.write(',');
+			out.write(("{\"" + FIELD_METHOD + "\":" + JSONObject.quote(methodForAction(operation.action)) + ",\"" + FIELD_PATH + "\":" + JSONObject.quote(operation.path)).getBytes("UTF-8"));
+			// Bodies are JSON already, they are embedded as they are rather than parsed and written again
+			if(operation.data != null && operation.data.length > 0)
+			{
+				out.write((",\"" + FIELD_BODY + "\":").getBytes("UTF-8"));
+				out.write(operation.data);
+			}
+			out.write('}');
+		}
+		out.write(("]}").getBytes("UTF-8"));
+		return out.toByteArray();
+	}
+
+	static String methodForAction(int action)
+	{
+		switch(action)
+		{
+			case API.ACTION_CREATE:
+				return APIURLConnection.METHOD_CREATE;
+			case API.ACTION_UPDATE:
+				return APIURLConnection.METHOD_UPDATE;
+			case API.ACTION_DELETE:
+				return APIURLConnection.METHOD_DELETE;
+			default:
+				return APIURLConnection.METHOD_READ;
+		}
+	}
+
+	/** Writes a value read by APIJSONParsers.readValue back as JSON text, null for a JSON null. */
+	static String toJSONText(Object value)
+	{
+		if(value == null || value == JSONObject.NULL)
+			return null;
+		if(value instanceof String)
+			return JSONObject.quote((String)value);
+		return value.toString();
+	}
+
+	private static final APIResponseParser<List<Result>> RESULTS_PARSER = new APIResponseParser<List<Result>>() {
+		public List<Result> parse(JsonReader reader) throws IOException
+		{
+			ArrayList<Result> results = new ArrayList<Result>();
+			String name, body;
+			int status;
+
+			reader.beginArray();
+			while(reader.hasNext())
+			{
+				status = 0;
+				body = null;
+				reader.beginObject();
+				while(reader.hasNext())
+				{
+					name = reader.nextName();
+					if(FIELD_STATUS.equals(name))
+						status = reader.nextInt();
+					else if(FIELD_BODY.equals(name))
+						body = toJSONText(APIJSONParsers.readValue(reader));
+					else
+						reader.skipValue();
+				}
+				reader.endObject();
+				results.add(new Result(status, body));
+			}
+			reader.endArray();
+			return results;
+		}
+	};
+
+	private static synchronized Timer getTimer()
+	{
+		if(timer == null)
+			timer = new Timer("APIBatchFlusher", true);
+		return timer;
+	}
+}
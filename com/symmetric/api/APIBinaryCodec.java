@@ -0,0 +1,249 @@
+package com.symmetric.api;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.lang.reflect.Constructor;
+import java.util.HashMap;
+import java.util.Iterator;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Default APICache codec. Writes JSONObject/JSONArray trees and JSONSerializable models as tagged binary values,
+ * without the class descriptors of Java serialization. A model is stored as its class name and JSON tree, and read back
+ * through its public constructor taking a JSONObject. Models without one, and any other Serializable, fall back to
+ * Java serialization for that value only.
+ */
+public final class APIBinaryCodec implements APICacheCodec
+{
+	public static final int ID = 2;
+
+	private static final byte TAG_NULL = 0;
+	private static final byte TAG_JSON_NULL = 1;
+	private static final byte TAG_STRING = 2;
+	private static final byte TAG_INT = 3;
+	private static final byte TAG_LONG = 4;
+	private static final byte TAG_DOUBLE = 5;
+	private static final byte TAG_TRUE = 6;
+	private static final byte TAG_FALSE = 7;
+	private static final byte TAG_JSON_OBJECT = 8;
+	private static final byte TAG_JSON_ARRAY = 9;
+	private static final byte TAG_MODEL = 10;
+	private static final byte TAG_SERIALIZABLE = 11;
+
+	// Constructors taking a JSONObject by class name, null for classes that don't have one
+	private static final HashMap<String, Constructor<?>> constructors = new HashMap<String, Constructor<?>>();
+
+	private final APISerializableCodec fallback = new APISerializableCodec();
+
+	public int getId()
+	{
+		return ID;
+	}
+
+	public void encode(Object value, DataOutputStream out) throws IOException
+	{
+		if(value == null)
+		{
+			out.writeByte(TAG_NULL);
+		}
+		else if(value == JSONObject.NULL)
+		{
+			out.writeByte(TAG_JSON_NULL);
+		}
+		else if(value instanceof String)
+		{
+			out.writeByte(TAG_STRING);
+			writeString((String)value, out);
+		}
+		else if(value instanceof Integer || value instanceof Short || value instanceof Byte)
+		{
+			out.writeByte(TAG_INT);
+			writeVarInt(((Number)value).intValue(), out);
+		}
+		else if(value instanceof Long)
+		{
+			out.writeByte(TAG_LONG);
+			out.writeLong((Long)value);
+		}
+		else if(value instanceof Double || value instanceof Float)
+		{
+			out.writeByte(TAG_DOUBLE);
+			out.writeDouble(((Number)value).doubleValue());
+		}
+		else if(value instanceof Boolean)
+		{
+			out.writeByte(((Boolean)value) ? TAG_TRUE : TAG_FALSE);
+		}
+		else if(value instanceof JSONObject)
+		{
+			out.writeByte(TAG_JSON_OBJECT);
+			writeJSONObject((JSONObject)value, out);
+		}
+		else if(value instanceof JSONArray)
+		{
+			JSONArray array = (JSONArray)value;
+			out.writeByte(TAG_JSON_ARRAY);
+			writeVarInt(array.length(), out);
+			for(int i = 0; i < array.length(); ++i)
+				encode(array.opt(i), out);
+		}
+		else if(value instanceof API.JSONSerializable && constructorForClass(value.getClass().getName()) != null)
+		{
+			out.writeByte(TAG_MODEL);
+			writeString(value.getClass().getName(), out);
+			writeJSONObject(((API.JSONSerializable)value).getJSONObject(), out);
+		}
+		else if(value instanceof Serializable)
+		{
+			out.writeByte(TAG_SERIALIZABLE);
+			this.fallback.encode(value, out);
+		}
+		else
+		{
+			throw new IOException("Can't encode " + value.getClass().getName());
+		}
+	}
+
+	public Object decode(DataInputStream in) throws IOException
+	{
+		byte tag = in.readByte();
+
+		switch(tag)
+		{
+			case TAG_NULL:
+				return null;
+			case TAG_JSON_NULL:
+				return JSONObject.NULL;
+			case TAG_STRING:
+				return readString(in);
+			case TAG_INT:
+				return readVarInt(in);
+			case TAG_LONG:
+				return in.readLong();
+			case TAG_DOUBLE:
+				return in.readDouble();
+			case TAG_TRUE:
+				return Boolean.TRUE;
+			case TAG_FALSE:
+				return Boolean.FALSE;
+			case TAG_JSON_OBJECT:
+				return readJSONObject(in);
+			case TAG_JSON_ARRAY:
+			{
+				int length = readVarInt(in);
+				JSONArray array = new JSONArray();
+				for(int i = 0; i < length; ++i)
+					array.put(decode(in));
+				return array;
+			}
+			case TAG_MODEL:
+			{
+				String className = readString(in);
+				JSONObject jsonObject = readJSONObject(in);
+				Constructor<?> constructor = constructorForClass(className);
+				if(constructor == null)
+					throw new IOException("No JSONObject constructor for " + className);
+				try
+				{
+					return constructor.newInstance(jsonObject);
+				} catch(Exception e) { throw new IOException("Could not create " + className + ": " + e.getMessage()); }
+			}
+			case TAG_SERIALIZABLE:
+				return this.fallback.decode(in);
+			default:
+				throw new IOException("Unknown value tag " + tag);
+		}
+	}
+
+	private void writeJSONObject(JSONObject jsonObject, DataOutputStream out) throws IOException
+	{
+		Iterator<?> keys = jsonObject.keys();
+		String key;
+
+		writeVarInt(jsonObject.length(), out);
+		while(keys.hasNext())
+		{
+			key = (String)keys.next();
+			writeString(key, out);
+			encode(jsonObject.opt(key), out);
+		}
+	}
+
+	private JSONObject readJSONObject(DataInputStream in) throws IOException
+	{
+		JSONObject jsonObject = new JSONObject();
+		int length = readVarInt(in);
+
+		try
+		{
+			for(int i = 0; i < length; ++i)
+				jsonObject.put(readString(in), decode(in));
+		} catch(JSONException e) { throw new IOException(e.getMessage()); }
+		return jsonObject;
+	}
+
+	private static Constructor<?> constructorForClass(String className)
+	{
+		Constructor<?> constructor;
+
+		synchronized(constructors)
+		{
+			if(constructors.containsKey(className))
+				return constructors.get(className);
+			try
+			{
+				constructor = Class.forName(className).getConstructor(JSONObject.class);
+			} catch(Exception e) { constructor = null; }
+			constructors.put(className, constructor);
+		}
+		return constructor;
+	}
+
+	static void writeString(String s, DataOutputStream out) throws IOException
+	{
+		byte[] bytes = s.getBytes("UTF-8");
+		writeVarInt(bytes.length, out);
+		out.write(bytes);
+	}
+
+	static String readString(DataInputStream in) throws IOException
+	{
+		byte[] bytes = new byte[readVarInt(in)];
+		in.readFully(bytes);
+		return new String(bytes, "UTF-8");
+	}
+
+	/** Zig-zag encoded variable length int, small values of either sign take one byte. */
+	static void writeVarInt(int value, DataOutputStream out) throws IOException
+	{
+		int bits = (value << 1) ^ (value >> 31);
+		while((bits & ~0x7f) != 0)
+		{
+			out.writeByte((bits & 0x7f) | 0x80);
+			bits >>>= 7;
+		}
+		out.writeByte(bits);
+	}
+
+	static int readVarInt(DataInputStream in) throws IOException
+	{
+		int bits = 0;
+		int shift = 0;
+		byte b;
+
+		do
+		{
+			if(shift > 28)
+				throw new IOException("Malformed variable length int");
+			b = in.readByte();
+			bits |= (b & 0x7f) << shift;
+			shift += 7;
+		} while((b & 0x80) != 0);
+		return (bits >>> 1) ^ -(bits & 1);
+	}
+}
@@ -0,0 +1,76 @@
+package com.symmetric.api;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bloom filter over strings. mightContain never returns false for an added string and rarely returns true for others,
+ * at about the false positive rate it was sized for while no more than its capacity were added. Strings can't be
+ * removed, build a new filter instead. Reads don't lock, bits are only ever set.
+ */
+final class APIBloomFilter
+{
+	private final AtomicLongArray bits;
+	private final int bitCount;
+	private final int hashCount;
+	private final int capacity;
+
+	APIBloomFilter(int capacity, double falsePositiveRate)
+	{
+		// Optimal sizes: m = -n ln p / (ln 2)^2 bits and k = m / n ln 2 hashes
+		long bitCount = (long)Math.ceil(-capacity * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+		this.bitCount = (int)Math.max(64, Math.min(bitCount, Integer.MAX_VALUE - 63));
+		this.hashCount = Math.max(1, (int)Math.round((double)this.bitCount / capacity * Math.log(2)));
+		this.bits = new AtomicLongArray((this.bitCount + 63) / 64);
+		this.capacity = capacity;
+	}
+
+	int getCapacity()
+	{
+		return this.capacity;
+	}
+
+	void add(String s)
+	{
+		int hash1 = s.hashCode();
+		int hash2 = secondaryHash(s);
+		int bit;
+		long mask, word;
+
+		for(int i = 0; i < this.hashCount; ++i)
+		{
+			bit = ((hash1 + i * hash2) & 0x7fffffff) % this.bitCount;
+			mask = 1L << (bit & 63);
+			do
+			{
+				word = this.bits.get(bit >>> 6);
+			} while((word & mask) == 0 && !this.bits.compareAndSet(bit >>> 6, word, word | mask));
+		}
+	}
+
+	boolean mightContain(String s)
+	{
+		int hash1 = s.hashCode();
+		int hash2 = secondaryHash(s);
+		int bit;
+
+		for(int i = 0; i < this.hashCount; ++i)
+		{
+			bit = ((hash1 + i * hash2) & 0x7fffffff) % this.bitCount;
+			if((this.bits.get(bit >>> 6) & (1L << (bit & 63))) == 0)
+				return false;
+		}
+		return true;
+	}
+
+	/** FNV-1a over the chars, independent enough of String.hashCode for double hashing. Always odd so the probes don't cycle early. */
+	private static int secondaryHash(String s)
+	{
+		int hash = 0x811c9dc5;
+		for(int i = 0; i < s.length(); ++i)
+		{
+			hash ^= s.charAt(i);
+			hash *= 0x01000193;
+		}
+		return hash | 1;
+	}
+}
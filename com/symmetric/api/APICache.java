@@ -8,86 +8,239 @@ import android.content.SharedPreferences;
 import android.support.v4.content.LocalBroadcastManager;
 import android.util.Log;
 
-import java.io.Externalizable;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectInput;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutput;
-import java.io.ObjectOutputStream;
-import java.util.Date;
-import java.util.HashMap;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.json.JSONException;
 
 public final class APICache extends BroadcastReceiver
 {
 	private static final String PATH_META_DATA = "api_meta.dat";
 	private static final String CACHE_DIRECTORY = "api_cache";
+	private static final String SEGMENTS_DIRECTORY = "api_cache_segments";
 	private static final String SETTING_USERID = "API_CACHE_USER_ID";
+	private static final String SETTING_RECENT_USERIDS = "API_CACHE_RECENT_USER_IDS";
+
+	/** Values for API.CONFIG_CACHE_STORAGE, must be set before the cache is first used. Entries are migrated when the storage changes. */
+	public static final String STORAGE_FILES = "files";
+	public static final String STORAGE_SEGMENTS = "segments";
+
+	/** Default budget of the memory tier, measured in the units of the default weigher. */
+	public static final long DEFAULT_MEMORY_WEIGHT = 10000;
+
+	/** Computes the weight of an entry held in the memory tier. The unit (bytes, elements, etc) only needs to match the budget given to setMemoryBudget. */
+	public interface Weigher
+	{
+		public long weigh(String key, Object value);
+	}
+
+	/** Default weigher, counts each object as 1 and a collection as its number of elements. */
+	public static final Weigher DEFAULT_WEIGHER = new Weigher() {
+		public long weigh(String key, Object value)
+		{
+			if(value instanceof Object[])
+				return Math.max(((Object[])value).length, 1);
+			return 1;
+		}
+	};
 
-	private final class MetaData implements Externalizable
+	static final class MetaData
 	{
-		static final long serialVersionUID = 1677881196793410983L;
-		Date created;
-		long expiration; // expiration in milliseconds after created
+		// Stored in the byte that used to be the sessionOnly boolean, so older records read the same
+		private static final int FLAG_SESSION_ONLY = 0x01;
+		private static final int FLAG_VALIDATORS = 0x02;
+
+		long deadline; // absolute time in milliseconds the entry expires at
+		long expiration; // time to live in milliseconds, kept to renew the deadline
 		boolean sessionOnly;
+		String etag;
+		String lastModified;
 
 		MetaData(long expiration, boolean sessionOnly)
 		{
-			this.created = new Date();
+			this.deadline = addSaturated(System.currentTimeMillis(), expiration);
 			this.expiration = expiration;
 			this.sessionOnly = sessionOnly;
 		}
 
 		boolean isExpired()
 		{
-			return (new Date(this.expiration + this.created.getTime())).before(new Date());
+			return this.deadline < System.currentTimeMillis();
+		}
+
+		boolean hasValidators()
+		{
+			return this.etag != null || this.lastModified != null;
+		}
+
+		/** True if the entry can still be revalidated, it has validators and hasn't been expired for longer than staleWindow. */
+		boolean isRevalidatable(long staleWindow)
+		{
+			return hasValidators() && dueTime(staleWindow) > System.currentTimeMillis();
 		}
 
-		public void readExternal(ObjectInput input) throws IOException, ClassNotFoundException
+		/** Time the entry can be removed at, its deadline or the end of its stale window if it can be revalidated. */
+		long dueTime(long staleWindow)
 		{
-			this.created = new Date(input.readLong());
-			this.expiration = input.readLong();
-			this.sessionOnly = input.readBoolean();
+			return hasValidators() ? addSaturated(this.deadline, staleWindow) : this.deadline;
+		}
+
+		static MetaData read(DataInput input) throws IOException
+		{
+			MetaData meta = new MetaData(0, false);
+			int flags;
+
+			// Records keep the created time and expiration they had before deadlines existed
+			meta.deadline = input.readLong();
+			meta.expiration = input.readLong();
+			meta.deadline = addSaturated(meta.deadline, meta.expiration);
+			flags = input.readUnsignedByte();
+			meta.sessionOnly = (flags & FLAG_SESSION_ONLY) != 0;
+			if((flags & FLAG_VALIDATORS) != 0)
+			{
+				meta.etag = readOptionalString(input);
+				meta.lastModified = readOptionalString(input);
+			}
+			return meta;
 		}
 
-		public void writeExternal(ObjectOutput output) throws IOException
+		void write(DataOutput output) throws IOException
 		{
-			output.writeLong(this.created.getTime());
+			output.writeLong(this.deadline - this.expiration);
 			output.writeLong(this.expiration);
-			output.writeBoolean(this.sessionOnly);
+			output.writeByte((this.sessionOnly ? FLAG_SESSION_ONLY : 0) | (hasValidators() ? FLAG_VALIDATORS : 0));
+			if(hasValidators())
+			{
+				writeOptionalString(output, this.etag);
+				writeOptionalString(output, this.lastModified);
+			}
 		}
+
+		private static long addSaturated(long time, long duration)
+		{
+			long sum = time + duration;
+			return (duration > 0 && sum < time) ? Long.MAX_VALUE : sum;
+		}
+
+		private static String readOptionalString(DataInput input) throws IOException
+		{
+			return input.readBoolean() ? input.readUTF() : null;
+		}
+
+		private static void writeOptionalString(DataOutput output, String s) throws IOException
+		{
+			output.writeBoolean(s != null);
+			if(s != null)
+				output.writeUTF(s);
+		}
+	}
+
+	/** Fetches entries again for revalidation, see revalidate and entryForKey(String, Revalidator). */
+	public interface Revalidator
+	{
+		/** Returns a new connection that requests the resource cached under key. */
+		public APIURLConnection newConnection(String key);
+		/** Converts a full response body into the value to cache, return an Object[] for collections. */
+		public Object parseResponse(String key, String response) throws JSONException;
 	}
 
-	private static APICache sharedInstance;
+	/** Default number of previous users whose session-only entries are kept for when they log in again. */
+	public static final int DEFAULT_RETAINED_NAMESPACES = 1;
+
+	/** Default encoded size in bytes from which entries are compressed. */
+	public static final int DEFAULT_COMPRESSION_THRESHOLD = 4096;
+
+	/** Default time an expired entry with an ETag or Last-Modified validator is kept so it can be revalidated. */
+	public static final long DEFAULT_STALE_WINDOW = 24 * 60 * 60 * 1000;
+
+	private static final int LOCK_STRIPES = 32;
 
-	private HashMap<String, Object> cache;
-	private HashMap<String, MetaData> meta;
-	private int userId;
+	private static volatile APICache sharedInstance;
+
+	// Reads of meta and cache are lock free, anything touching the disk or mutating an entry holds the key's stripe lock
+	private final ReentrantLock[] locks = new ReentrantLock[LOCK_STRIPES];
+	private APIMemoryCache cache;
+	private ConcurrentMap<String, MetaData> meta;
+	private APICacheJournal journal;
+	private APICacheExpiryQueue expiry;
+	private volatile APICacheWriter writer;
+	private APICacheStore store;
+	private volatile APICacheCodec codec = new APIBinaryCodec();
+	private volatile APICacheCompressor compressor = new APIDeflateCompressor();
+	private volatile int compressionThreshold = DEFAULT_COMPRESSION_THRESHOLD;
+	private volatile int userId;
+	// Session-only entries are namespaced by user, see APICacheNamespace
+	private final ConcurrentMap<Integer, APICacheNamespace> namespaces = new ConcurrentHashMap<Integer, APICacheNamespace>();
+	private volatile APICacheNamespace namespace;
+	private final ArrayList<Integer> recentUserIds = new ArrayList<Integer>(); // most recent first, excludes userId
+	private int retainedNamespaces = DEFAULT_RETAINED_NAMESPACES;
+	private boolean reclaiming;
+	private boolean reclaimPending;
+	private volatile long staleWindow = DEFAULT_STALE_WINDOW;
+	private volatile boolean staleWhileRevalidate;
+	private final ConcurrentMap<String, Boolean> revalidating = new ConcurrentHashMap<String, Boolean>();
+	private final APICacheStats.Recorder stats = new APICacheStats.Recorder();
+	private final APICacheWarmer warmer = new APICacheWarmer(new APICacheWarmer.Loader() {
+		public long preload(String key)
+		{
+			return APICache.this.preload(key);
+		}
+	});
+	private Timer statsTimer;
 
 	private APICache()
 	{
 		// Initialize and load the in memory cache/data
-		this.cache = new HashMap<String, Object>();
+		for(int i = 0; i < LOCK_STRIPES; ++i)
+			this.locks[i] = new ReentrantLock();
+		this.cache = new APIMemoryCache(DEFAULT_WEIGHER, DEFAULT_MEMORY_WEIGHT);
 		loadMetaData();
+		openStore();
+		startSweeper();
+		reclaimNamespaces();
 
 		// Register for broadcasts
 		LocalBroadcastManager.getInstance(API.appContext).registerReceiver(this, new IntentFilter(APISession.ACTION_SESSION_STARTED));
 
 		// If a session start broadcast was missed because this singleton is created on-demand only, the typical static{} initializer won't work
-		// then reset the session cache
+		// then switch the session cache
 		APISession session = APISession.getSharedSession();
 		if(session.isLoggedIn() && session.getUserId() != this.userId)
-			flushSessionCache();
+			switchUser(session.getUserId());
 	}
 
 	public static APICache getSharedCache()
 	{
-		if(sharedInstance == null)
-			sharedInstance = new APICache();
-		return sharedInstance;
+		APICache cache = sharedInstance;
+		if(cache == null)
+		{
+			synchronized(APICache.class)
+			{
+				cache = sharedInstance;
+				if(cache == null)
+				{
+					cache = new APICache();
+					sharedInstance = cache;
+				}
+			}
+		}
+		return cache;
 	}
 
 	public void onReceive(Context context, Intent intent)
@@ -97,260 +250,1082 @@ public final class APICache extends BroadcastReceiver
 		userId = intent.getIntExtra(APISession.EXTRA_USER_ID, 0);
 		prevUserId = intent.getIntExtra(APISession.EXTRA_PREVIOUS_USER_ID, 0);
 		if(userId != prevUserId)
+			switchUser(APISession.getSharedSession().getUserId());
+	}
+
+	/** Sets the total weight of entries kept in memory, least recently used entries over the budget are dropped from memory but remain on disk. */
+	public void setMemoryBudget(long maxWeight)
+	{
+		this.cache.setMaxWeight(maxWeight);
+	}
+
+	public long getMemoryBudget()
+	{
+		return this.cache.getMaxWeight();
+	}
+
+	/** Current total weight of the entries held in memory. */
+	public long getMemoryWeight()
+	{
+		return this.cache.getWeight();
+	}
+
+	/** Sets the weigher used for the memory budget, null restores DEFAULT_WEIGHER. Entries already in memory are dropped and reloaded from disk on demand. */
+	public void setWeigher(Weigher weigher)
+	{
+		this.cache.setWeigher((weigher != null) ? weigher : DEFAULT_WEIGHER);
+	}
+
+	/**
+	 * Enables or disables write-behind. When enabled, cacheObject and cacheCollection only update memory and the meta data,
+	 * the data files are written by a single background writer that coalesces repeated writes of the same key.
+	 * Disabling waits for the queued writes to finish.
+	 */
+	public synchronized void setWriteBehind(boolean writeBehind)
+	{
+		if(writeBehind && this.writer == null)
+		{
+			this.writer = new APICacheWriter(new APICacheWriter.Sink() {
+				public Lock lockForKey(String key)
+				{
+					return APICache.this.lockForKey(key);
+				}
+
+				public void write(String key, Object value, boolean collection)
+				{
+					writeEntry(key, value, collection);
+				}
+
+				public void delete(String key)
+				{
+					APICache.this.store.delete(key);
+				}
+			});
+		}
+		else if(!writeBehind && this.writer != null)
 		{
-			flushSessionCache();
-			SharedPreferences settings = API.appContext.getSharedPreferences(API.PREFS_NAME, Context.MODE_PRIVATE);
-			SharedPreferences.Editor editor = settings.edit();
-			this.userId = APISession.getSharedSession().getUserId();
-			editor.putInt(SETTING_USERID, this.userId);
-			editor.commit();
+			// The queued operations are performed here with every key locked, so no synchronous write can race a queued one
+			lockAll();
+			try
+			{
+				this.writer.finish();
+				this.writer = null;
+			}
+			finally { unlockAll(); }
 		}
 	}
 
-	private void loadMetaData()
+	public boolean isWriteBehind()
+	{
+		return this.writer != null;
+	}
+
+	/** Blocks until all queued write-behind operations are on disk. Call before the process may be killed, e.g. from onStop. */
+	public void awaitPersisted()
+	{
+		awaitPersisted(0);
+	}
+
+	/** Same as awaitPersisted() but gives up after timeoutMillis, returns true if everything was persisted. */
+	public boolean awaitPersisted(long timeoutMillis)
 	{
-		ObjectInputStream in = null;
+		APICacheWriter writer = this.writer;
+		if(writer == null)
+			return true;
 		try
 		{
-			in = new ObjectInputStream(API.appContext.openFileInput(PATH_META_DATA));
-			this.meta = (HashMap<String, MetaData>)in.readObject();
-		} catch(Exception e) { }
-		finally
+			return writer.awaitPersisted(timeoutMillis);
+		} catch(InterruptedException e) { return false; }
+	}
+
+	/** Number of write-behind operations waiting to reach the disk. */
+	public int getPendingWriteCount()
+	{
+		APICacheWriter writer = this.writer;
+		return (writer != null) ? writer.getQueueDepth() : 0;
+	}
+
+	/** Highest number of write-behind operations queued at once. */
+	public int getMaxPendingWriteCount()
+	{
+		APICacheWriter writer = this.writer;
+		return (writer != null) ? writer.getMaxQueueDepth() : 0;
+	}
+
+	/** Number of write-behind operations that replaced a queued operation for the same key instead of causing another write. */
+	public long getCoalescedWriteCount()
+	{
+		APICacheWriter writer = this.writer;
+		return (writer != null) ? writer.getCoalescedCount() : 0;
+	}
+
+	/** Returns a snapshot of the hit, miss, latency and write counters of the cache. */
+	public APICacheStats getStats()
+	{
+		return new APICacheStats(this.stats, this.cache.getEvictionCount(), this.store.sizeOnDisk(), this.cache.getWeight(), this.writer);
+	}
+
+	/** Delivers a stats snapshot to listener every intervalMillis on a background thread, null stops delivery. */
+	public synchronized void setStatsListener(final APICacheStats.Listener listener, long intervalMillis)
+	{
+		if(this.statsTimer != null)
 		{
-			try
+			this.statsTimer.cancel();
+			this.statsTimer = null;
+		}
+		if(listener == null)
+			return;
+		this.statsTimer = new Timer("APICacheStats", true);
+		this.statsTimer.scheduleAtFixedRate(new TimerTask() {
+			@Override
+			public void run()
 			{
-				if(in != null)
-					in.close();
-			} catch(IOException e) { }
+				listener.onStats(getStats());
+			}
+		}, intervalMillis, intervalMillis);
+	}
+
+	/** Sets the codec used to write entries, null restores the default APIBinaryCodec. Entries written with other registered codecs remain readable. */
+	public void setCodec(APICacheCodec codec)
+	{
+		if(codec == null)
+			codec = new APIBinaryCodec();
+		APICacheEntryFormat.registerCodec(codec);
+		this.codec = codec;
+	}
+
+	public APICacheCodec getCodec()
+	{
+		return this.codec;
+	}
+
+	/**
+	 * Sets the compressor for entries whose encoded size is at least threshold bytes, null turns compression off.
+	 * Defaults to APIDeflateCompressor above DEFAULT_COMPRESSION_THRESHOLD. Collections are compressed in blocks of
+	 * elements, so collectionViewForKey still only inflates the blocks it reads.
+	 * Entries written with other registered compressors remain readable.
+	 */
+	public void setCompression(APICacheCompressor compressor, int threshold)
+	{
+		if(compressor != null)
+			APICacheEntryFormat.registerCompressor(compressor);
+		this.compressionThreshold = threshold;
+		this.compressor = compressor;
+	}
+
+	public APICacheCompressor getCompressor()
+	{
+		return this.compressor;
+	}
+
+	public int getCompressionThreshold()
+	{
+		return this.compressionThreshold;
+	}
+
+	private void loadMetaData()
+	{
+		File legacy = new File(API.appContext.getFilesDir(), PATH_META_DATA);
+
+		this.journal = new APICacheJournal(API.appContext.getFilesDir());
+		this.meta = new ConcurrentHashMap<String, MetaData>(this.journal.load());
+
+		// Entries written with the old single file meta data can't be mapped back, so drop their data files
+		if(legacy.exists())
+		{
+			legacy.delete();
+			this.meta.clear();
+			this.journal.clear();
+			new APIFileCacheStore(API.appContext.getDir(CACHE_DIRECTORY, Context.MODE_PRIVATE)).clear();
 		}
 
 		SharedPreferences settings = API.appContext.getSharedPreferences(API.PREFS_NAME, Context.MODE_PRIVATE);
 		this.userId = settings.getInt(SETTING_USERID, 0);
+		for(String userId : settings.getString(SETTING_RECENT_USERIDS, "").split(","))
+		{
+			try
+			{
+				this.recentUserIds.add(Integer.parseInt(userId));
+			} catch(NumberFormatException e) { }
+		}
+
+		for(String storageKey : this.meta.keySet())
+		{
+			if(APICacheNamespace.isNamespaced(storageKey))
+				namespaceFor(APICacheNamespace.userIdOf(storageKey)).add(APICacheNamespace.keyOf(storageKey), storageKey);
+		}
+		this.namespace = namespaceFor(this.userId);
+	}
+
+	private APICacheNamespace namespaceFor(int userId)
+	{
+		APICacheNamespace namespace = this.namespaces.get(userId);
+		if(namespace == null)
+		{
+			namespace = new APICacheNamespace(userId);
+			APICacheNamespace existing = this.namespaces.putIfAbsent(userId, namespace);
+			if(existing != null)
+				namespace = existing;
+		}
+		return namespace;
+	}
+
+	/** Points session-only reads and writes at the namespace of userId, the entries of other users stay untouched until reclaimed. */
+	private synchronized void switchUser(int userId)
+	{
+		SharedPreferences settings = API.appContext.getSharedPreferences(API.PREFS_NAME, Context.MODE_PRIVATE);
+		SharedPreferences.Editor editor = settings.edit();
+		StringBuilder recent = new StringBuilder();
+
+		if(userId == this.userId)
+			return;
+		this.recentUserIds.remove((Integer)userId);
+		this.recentUserIds.add(0, this.userId);
+		while(this.recentUserIds.size() > this.retainedNamespaces)
+			this.recentUserIds.remove(this.recentUserIds.size() - 1);
+		this.userId = userId;
+		this.namespace = namespaceFor(userId);
+
+		for(Integer recentUserId : this.recentUserIds)
+		{
+			if(recent.length() > 0)
+				recent.append(',');
+			recent.append(recentUserId);
+		}
+		editor.putInt(SETTING_USERID, this.userId);
+		editor.putString(SETTING_RECENT_USERIDS, recent.toString());
+		editor.commit();
+		reclaimNamespaces();
+	}
+
+	/**
+	 * Sets how many previous users keep their session-only entries, so logging back in can reuse them. Entries of older
+	 * users are deleted in the background, 0 deletes them all on every user switch. Defaults to DEFAULT_RETAINED_NAMESPACES.
+	 */
+	public synchronized void setRetainedNamespaces(int retainedNamespaces)
+	{
+		this.retainedNamespaces = Math.max(retainedNamespaces, 0);
+		while(this.recentUserIds.size() > this.retainedNamespaces)
+			this.recentUserIds.remove(this.recentUserIds.size() - 1);
+		reclaimNamespaces();
+	}
+
+	public synchronized int getRetainedNamespaces()
+	{
+		return this.retainedNamespaces;
+	}
+
+	/** Deletes the session-only entries of users no longer retained on a background thread, one pass at a time. */
+	private synchronized void reclaimNamespaces()
+	{
+		if(this.reclaiming)
+		{
+			this.reclaimPending = true;
+			return;
+		}
+		this.reclaiming = true;
+		Thread thread = new Thread(new Runnable() {
+			public void run()
+			{
+				while(reclaimPass());
+			}
+		}, "APICacheReclaimer");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/** Returns true if another pass was requested while this one ran. */
+	private boolean reclaimPass()
+	{
+		HashSet<Integer> retained;
+		String storageKey;
+		MetaData meta;
+
+		synchronized(this)
+		{
+			this.reclaimPending = false;
+			retained = new HashSet<Integer>(this.recentUserIds);
+			retained.add(this.userId);
+		}
+
+		for(Map.Entry<String, MetaData> entry : this.meta.entrySet())
+		{
+			storageKey = entry.getKey();
+			meta = entry.getValue();
+			// Session-only entries written before namespaces existed belong to an unknown user
+			if(APICacheNamespace.isNamespaced(storageKey) ? !retained.contains(APICacheNamespace.userIdOf(storageKey)) : meta.sessionOnly)
+				removeEntryIfMatches(storageKey, meta);
+		}
+		this.journal.compactIfNeeded(this.meta);
+
+		synchronized(this)
+		{
+			for(APICacheNamespace namespace : this.namespaces.values())
+			{
+				if(namespace != this.namespace && !this.recentUserIds.contains(namespace.userId) && namespace.isEmpty())
+					this.namespaces.remove(namespace.userId, namespace);
+			}
+			if(this.reclaimPending)
+				return true;
+			this.reclaiming = false;
+			return false;
+		}
+	}
+
+	/** Storage key of the entry for key, the session-only one of the current user if there is one, otherwise the shared one. */
+	private String storageKeyFor(String key)
+	{
+		String storageKey = this.namespace.storageKeyFor(key);
+		return (storageKey != null) ? storageKey : APICacheNamespace.sharedStorageKey(key);
+	}
+
+	/** Drops a removed storage key from its namespace. */
+	private void forgetStorageKey(String storageKey)
+	{
+		APICacheNamespace namespace;
+
+		if(!APICacheNamespace.isNamespaced(storageKey))
+			return;
+		namespace = this.namespaces.get(APICacheNamespace.userIdOf(storageKey));
+		if(namespace != null)
+			namespace.remove(APICacheNamespace.keyOf(storageKey));
+	}
+
+	private void putMetaData(String key, MetaData meta)
+	{
+		this.meta.put(key, meta);
+		this.journal.put(key, meta);
+		this.journal.compactIfNeeded(this.meta);
+		this.expiry.add(key, meta.dueTime(this.staleWindow));
+		// Replaced and removed entries leave their nodes behind until they come due
+		if(this.expiry.size() > 2 * this.meta.size() + 1024)
+			this.expiry.rebuild(this.meta, this.staleWindow);
+	}
+
+	/** Starts removing entries in the background as they come due, the store must be open. */
+	private void startSweeper()
+	{
+		this.expiry = new APICacheExpiryQueue(new APICacheExpiryQueue.Sink() {
+			public void expire(String key, long due)
+			{
+				MetaData meta = APICache.this.meta.get(key);
+				// The node may belong to an entry that was replaced or revalidated since
+				if(meta != null && meta.dueTime(APICache.this.staleWindow) <= System.currentTimeMillis())
+				{
+					if(removeEntryIfMatches(key, meta))
+						APICache.this.stats.expirations.increment();
+					APICache.this.journal.compactIfNeeded(APICache.this.meta);
+				}
+			}
+		});
+		this.expiry.rebuild(this.meta, this.staleWindow);
+	}
+
+	private void removeMetaData(String key)
+	{
+		if(this.meta.remove(key) != null)
+		{
+			forgetStorageKey(key);
+			this.journal.remove(key);
+			this.journal.compactIfNeeded(this.meta);
+		}
+	}
+
+	private ReentrantLock lockForKey(String key)
+	{
+		return this.locks[stripeForKey(key)];
+	}
+
+	private static int stripeForKey(String key)
+	{
+		return (key.hashCode() & 0x7fffffff) % LOCK_STRIPES;
+	}
+
+	private void lockAll()
+	{
+		for(ReentrantLock lock : this.locks)
+			lock.lock();
+	}
+
+	private void unlockAll()
+	{
+		for(int i = LOCK_STRIPES - 1; i >= 0; --i)
+			this.locks[i].unlock();
+	}
+
+	private void openStore()
+	{
+		APIFileCacheStore files = new APIFileCacheStore(API.appContext.getDir(CACHE_DIRECTORY, Context.MODE_PRIVATE));
+		File segmentsDirectory = API.appContext.getDir(SEGMENTS_DIRECTORY, Context.MODE_PRIVATE);
+
+		if(STORAGE_SEGMENTS.equals(API.getConfiguration(API.CONFIG_CACHE_STORAGE)))
+		{
+			this.store = new APISegmentCacheStore(segmentsDirectory);
+			migrateStore(files);
+			files.clear();
+			// Segments have no delete records, so drop anything the meta data no longer knows about
+			this.store.retain(this.meta.keySet());
+		}
+		else
+		{
+			this.store = files;
+			String[] names = segmentsDirectory.list();
+			if(names != null && names.length > 0)
+			{
+				APISegmentCacheStore segments = new APISegmentCacheStore(segmentsDirectory);
+				migrateStore(segments);
+				segments.close();
+				for(String name : names)
+					new File(segmentsDirectory, name).delete();
+			}
+			segmentsDirectory.delete();
+		}
 	}
 
-	private void saveMetaData()
+	/**
+	 * Copies the live entries of another storage engine into the current one. Each key of the meta data is looked up, as
+	 * keys() doesn't list every key a store holds.
+	 */
+	private void migrateStore(APICacheStore from)
 	{
-		if(this.meta.size() > 0)
+		APICacheStore.Handle handle;
+		APICacheStore.Output out;
+		byte[] buffer = new byte[8192];
+		long position;
+		int read;
+
+		for(String key : this.meta.keySet())
 		{
-			ObjectOutputStream out = null;
+			handle = null;
+			out = null;
 			try
 			{
-				out = new ObjectOutputStream(API.appContext.openFileOutput(PATH_META_DATA, Context.MODE_PRIVATE));
-				out.writeObject(this.meta);
-			} catch(Exception e) { }
+				handle = from.open(key);
+				if(handle == null)
+					continue;
+				out = this.store.openOutput(key);
+				position = 0;
+				while((read = handle.read(position, buffer, 0, buffer.length)) > 0)
+				{
+					out.write(buffer, 0, read);
+					position += read;
+				}
+				out.commit();
+			} catch(IOException e) { Log.e(API.TAG, "Cache migration failed with error: " + e.getMessage()); }
 			finally
 			{
 				try
 				{
 					if(out != null)
 						out.close();
+					if(handle != null)
+						handle.close();
 				} catch(IOException e) { }
 			}
 		}
-		else
+	}
+
+	public void cacheObject(Object obj, String key, long expiration, boolean sessionOnly)
+	{
+		cacheEntry(obj, false, key, new MetaData(expiration, sessionOnly));
+	}
+
+	/** Caches obj along with the ETag and Last-Modified validators of the response it came from, so it can be revalidated once expired. */
+	public void cacheObject(Object obj, String key, long expiration, boolean sessionOnly, APIURLConnection connection)
+	{
+		cacheEntry(obj, false, key, metaDataForResponse(expiration, sessionOnly, connection));
+	}
+
+	public void cacheCollection(Object[] collection, String key, long expiration, boolean sessionOnly)
+	{
+		cacheEntry(collection, true, key, new MetaData(expiration, sessionOnly));
+	}
+
+	/** Caches collection along with the ETag and Last-Modified validators of the response it came from, so it can be revalidated once expired. */
+	public void cacheCollection(Object[] collection, String key, long expiration, boolean sessionOnly, APIURLConnection connection)
+	{
+		cacheEntry(collection, true, key, metaDataForResponse(expiration, sessionOnly, connection));
+	}
+
+	private static MetaData metaDataForResponse(long expiration, boolean sessionOnly, APIURLConnection connection)
+	{
+		MetaData meta = new MetaData(expiration, sessionOnly);
+		if(connection != null)
 		{
-			API.appContext.deleteFile(PATH_META_DATA);
+			meta.etag = connection.getHeaderField(APIURLConnection.HEADER_ETAG);
+			meta.lastModified = connection.getHeaderField(APIURLConnection.HEADER_LAST_MODIFIED);
 		}
-
-		SharedPreferences settings = API.appContext.getSharedPreferences(API.PREFS_NAME, Context.MODE_PRIVATE);
-		SharedPreferences.Editor editor = settings.edit();
-		editor.putInt(SETTING_USERID, this.userId);
-		editor.commit();
+		return meta;
 	}
 
-	private File fileForKey(String key)
+	private void cacheEntry(Object obj, boolean collection, String key, MetaData meta)
 	{
-		return new File(API.appContext.getDir(CACHE_DIRECTORY, Context.MODE_PRIVATE), key + ".dat");
+		APICacheNamespace namespace = this.namespace;
+		String storageKey = meta.sessionOnly ? namespace.storageKey(key) : APICacheNamespace.sharedStorageKey(key);
+		String other = meta.sessionOnly ? APICacheNamespace.sharedStorageKey(key) : namespace.storageKey(key);
+		int stripe = stripeForKey(storageKey), otherStripe = stripeForKey(other);
+		// Both kinds of the key are locked so two writers of different kinds can't each remove the other's new entry,
+		// the stripes are taken in index order as lockAll does
+		ReentrantLock first = this.locks[Math.min(stripe, otherStripe)];
+		ReentrantLock second = this.locks[Math.max(stripe, otherStripe)];
+		APICacheWriter writer;
+
+		first.lock();
+		second.lock();
+		try
+		{
+			if(meta.sessionOnly)
+				namespace.add(key, storageKey);
+			this.cache.put(storageKey, obj);
+			putMetaData(storageKey, meta);
+			writer = this.writer;
+			if(writer != null)
+				writer.write(storageKey, obj, collection);
+			else
+				writeEntry(storageKey, obj, collection);
+			// A key is either shared or session-only, the new entry replaces one of the other kind
+			if(this.meta.containsKey(other))
+				removeStorageEntry(other);
+		}
+		finally
+		{
+			second.unlock();
+			first.unlock();
+		}
 	}
 
-	public void cacheObject(Object obj, String key, long expiration, boolean sessionOnly)
+	private void writeEntry(String key, Object obj, boolean collection)
 	{
-		ObjectOutputStream out = null;
+		APICacheStore.Output output = null;
+		OutputStream out;
 
-		this.cache.put(key, obj);
-		this.meta.put(key, new MetaData(expiration, sessionOnly));
 		try
 		{
-			out = new ObjectOutputStream(new FileOutputStream(fileForKey(key)));
-			out.writeObject(obj);
-		} catch(Exception e) { }
+			output = this.store.openOutput(key);
+			out = new BufferedOutputStream(output);
+			APICacheEntryFormat.write(out, obj, collection, this.codec, this.compressor, this.compressionThreshold, this.stats);
+			out.flush();
+			output.commit();
+		} catch(Exception e) { Log.e(API.TAG, "Cache write failed with error: " + e.getMessage()); }
 		finally
 		{
+			// Discards the bytes of a write that failed, the previous entry stays
 			try
 			{
-				if(out != null)
-					out.close();
+				if(output != null)
+					output.close();
 			} catch(IOException e) { }
 		}
-		saveMetaData();
 	}
 
-	public void cacheCollection(Object[] collection, String key, long expiration, boolean sessionOnly)
+	private Object readEntry(String key, boolean collection)
 	{
-		ObjectOutputStream out = null;
+		APICacheStore.Handle handle;
+		InputStream in;
+		Object obj = null;
+		long start = System.nanoTime();
 
-		this.cache.put(key, collection);
-		this.meta.put(key, new MetaData(expiration, sessionOnly));
 		try
 		{
-			out = new ObjectOutputStream(new FileOutputStream(fileForKey(key)));
-			out.writeInt(collection.length);
-			for(Object obj : collection)
-				out.writeObject(obj);
+			handle = this.store.open(key);
+		} catch(IOException e) { return null; }
+		if(handle == null)
+			return null;
+		in = new BufferedInputStream(new APICacheStore.HandleInputStream(handle));
+		try
+		{
+			obj = APICacheEntryFormat.read(in, collection, this.stats);
+			this.stats.recordDiskLoad(System.nanoTime() - start);
 		} catch(Exception e) { }
 		finally
 		{
 			try
 			{
-				if(out != null)
-					out.close();
+				in.close();
 			} catch(IOException e) { }
 		}
-		saveMetaData();
+		return obj;
 	}
 
-	public Object entryForKey(String key)
+	private void deleteEntry(String key)
 	{
-		MetaData meta;
+		APICacheWriter writer = this.writer;
+		if(writer != null)
+			writer.delete(key);
+		else
+			this.store.delete(key);
+	}
+
+	/** Returns the meta data of key if it is live, removing the entry if it has expired and can't be revalidated. */
+	private MetaData liveMetaData(String key)
+	{
+		MetaData meta = this.meta.get(key);
+		if(meta != null && meta.isExpired())
+		{
+			if(!meta.isRevalidatable(this.staleWindow) && removeEntryIfMatches(key, meta))
+				this.stats.expirations.increment();
+			return null;
+		}
+		return meta;
+	}
+
+	/** Loads an entry that isn't in memory from the write-behind queue or the disk, and adds it to the memory tier. */
+	private Object loadEntry(String key, boolean collection)
+	{
+		ReentrantLock lock = lockForKey(key);
+		APICacheWriter writer;
 		Object obj;
-		File file;
-		ObjectInputStream in = null;
 
-		meta = this.meta.get(key);
-		if(meta != null)
+		lock.lock();
+		try
 		{
-			// Check for expiration, then in memory, and then the disk
-			if(meta.isExpired())
-			{
-				removeEntryForKey(key);
+			// Another thread may have loaded or removed it while waiting for the lock
+			if(!this.meta.containsKey(key))
 				return null;
-			}
 			obj = this.cache.get(key);
+			if(obj == null && (writer = this.writer) != null)
+			{
+				obj = writer.pendingValue(key);
+				if(obj == APICacheWriter.DELETED)
+					return null;
+			}
 			if(obj != null)
-				return obj;
-			file = fileForKey(key);
-			if(file.exists())
 			{
-				try
-				{
-					in = new ObjectInputStream(new FileInputStream(file));
-					obj = in.readObject();
-				} catch(Exception e) { }
-				finally
-				{
-					try
-					{
-						if(in != null)
-							in.close();
-					} catch(IOException e) { }
-				}
-				if(obj != null)
-					this.cache.put(key, obj);
+				this.stats.memoryHits.increment();
 				return obj;
 			}
+			obj = readEntry(key, collection);
+			if(obj != null)
+			{
+				this.stats.diskHits.increment();
+				this.cache.put(key, obj);
+			}
+			return obj;
 		}
-		return null;
+		finally { lock.unlock(); }
 	}
 
-	public Object[] collectionForKey(String key)
+	/** Same as warmUp(keys, budget) with the memory budget as the budget. */
+	public void warmUp(String... keys)
+	{
+		warmUp(keys, getMemoryBudget());
+	}
+
+	/**
+	 * Preloads the entries for keys from disk into the memory tier on a background thread, in the given order, until their
+	 * total weight reaches budget, which is capped at the memory budget. Call at launch with the keys the first screens need, most important first. A read of a
+	 * key that is being preloaded waits for it, reads of every other key are unaffected. Keys added by further calls are
+	 * preloaded after those still pending, budget then limits the weight loaded from that call on.
+	 */
+	public void warmUp(String[] keys, long budget)
 	{
+		this.warmer.add(keys, Math.min(budget, getMemoryBudget()));
+	}
+
+	/** Drops the keys still waiting to be preloaded. */
+	public void cancelWarmUp()
+	{
+		this.warmer.cancel();
+	}
+
+	public boolean isWarmingUp()
+	{
+		return this.warmer.isRunning();
+	}
+
+	/** Loads a live entry into the memory tier for warm-up and returns the weight it added. */
+	private long preload(String key)
+	{
+		ReentrantLock lock;
+		APICacheWriter writer;
 		MetaData meta;
-		Object[] collection;
-		File file;
-		ObjectInputStream in = null;
-		int size;
+		Object obj;
 
+		key = storageKeyFor(key);
 		meta = this.meta.get(key);
-		if(meta != null)
+		if(meta == null || meta.isExpired())
+			return 0;
+		lock = lockForKey(key);
+		lock.lock();
+		try
 		{
-			// Check for expiration, then in memory, and then the disk
-			if(meta.isExpired())
-			{
-				removeEntryForKey(key);
-				return null;
-			}
-			collection = (Object[])this.cache.get(key);
-			if(collection != null)
-				return collection;
-			file = fileForKey(key);
-			if(file.exists())
-			{
-				try
-				{
-					in = new ObjectInputStream(new FileInputStream(file));
-					size = in.readInt();
-					collection = new Object[size];
-					for(int i = 0; i < size; ++i)
-						collection[i] = in.readObject();
-				} catch(Exception e) { }
-				finally
+			// Already read, or not on disk yet
+			writer = this.writer;
+			if(!this.meta.containsKey(key) || this.cache.get(key) != null || (writer != null && writer.pendingValue(key) != null))
+				return 0;
+			obj = readEntry(key, false);
+			if(obj == null)
+				return 0;
+			this.cache.put(key, obj);
+			this.stats.preloads.increment();
+			return this.cache.weigh(key, obj);
+		}
+		finally { lock.unlock(); }
+	}
+
+	public Object entryForKey(String key)
+	{
+		Object obj;
+
+		key = storageKeyFor(key);
+		// Check for expiration, then in memory, and then the disk
+		if(liveMetaData(key) == null)
+		{
+			this.stats.misses.increment();
+			return null;
+		}
+		obj = this.cache.get(key);
+		if(obj != null)
+		{
+			this.stats.memoryHits.increment();
+			return obj;
+		}
+		obj = loadEntry(key, false);
+		if(obj == null)
+			this.stats.misses.increment();
+		return obj;
+	}
+
+	public Object[] collectionForKey(String key)
+	{
+		Object obj;
+
+		key = storageKeyFor(key);
+		// Check for expiration, then in memory, and then the disk
+		if(liveMetaData(key) == null)
+		{
+			this.stats.misses.increment();
+			return null;
+		}
+		obj = this.cache.get(key);
+		if(obj instanceof Object[])
+		{
+			this.stats.memoryHits.increment();
+			return (Object[])obj;
+		}
+		// An object stored under the key isn't a collection, so it only counts as a miss
+		if(obj == null)
+		{
+			obj = loadEntry(key, true);
+			if(obj instanceof Object[])
+				return (Object[])obj;
+		}
+		this.stats.misses.increment();
+		return null;
+	}
+
+	/** Same as collectionViewForKey(key, windowSize, maxWindows) with the default window size and count. */
+	public APICachedCollectionView collectionViewForKey(String key)
+	{
+		return collectionViewForKey(key, APICachedCollectionView.DEFAULT_WINDOW_SIZE, APICachedCollectionView.DEFAULT_MAX_WINDOWS);
+	}
+
+	/**
+	 * Returns a view of a cached collection that decodes windowSize elements at a time on demand, keeping at most maxWindows
+	 * decoded, instead of loading the whole collection like collectionForKey. A compressed collection is decoded one
+	 * compressed block of elements at a time instead, whatever windowSize is. The collection is not added to the memory
+	 * tier. Returns null if there is no entry, the caller must close the view.
+	 */
+	public APICachedCollectionView collectionViewForKey(String key, int windowSize, int maxWindows)
+	{
+		APICachedCollectionView view = null;
+		APICacheStore.Handle handle;
+		APICacheWriter writer;
+		Object obj;
+
+		key = storageKeyFor(key);
+		if(liveMetaData(key) == null)
+		{
+			this.stats.misses.increment();
+			return null;
+		}
+		obj = this.cache.get(key);
+		writer = this.writer;
+		if(obj == null && writer != null)
+			obj = writer.pendingValue(key);
+		if(obj instanceof Object[])
+		{
+			this.stats.memoryHits.increment();
+			return new APICachedCollectionView((Object[])obj);
+		}
+
+		try
+		{
+			handle = (obj != APICacheWriter.DELETED) ? this.store.open(key) : null;
+		} catch(IOException e) { handle = null; }
+		if(handle == null)
+		{
+			this.stats.misses.increment();
+			return null;
+		}
+		try
+		{
+			view = APICachedCollectionView.open(handle, windowSize, maxWindows);
+		} catch(IOException e) { }
+		if(view != null)
+		{
+			this.stats.diskHits.increment();
+			return view;
+		}
+
+		// No offset table, fall back to loading the whole collection
+		try
+		{
+			handle.close();
+		} catch(IOException e) { }
+		obj = readEntry(key, true);
+		if(obj instanceof Object[])
+		{
+			this.stats.diskHits.increment();
+			return new APICachedCollectionView((Object[])obj);
+		}
+		this.stats.misses.increment();
+		return null;
+	}
+
+	/** Sets how long an expired entry with validators is kept for revalidation, defaults to DEFAULT_STALE_WINDOW. */
+	public void setStaleWindow(long staleWindow)
+	{
+		this.staleWindow = staleWindow;
+		this.expiry.rebuild(this.meta, staleWindow);
+	}
+
+	public long getStaleWindow()
+	{
+		return this.staleWindow;
+	}
+
+	/**
+	 * Enables stale-while-revalidate for entryForKey(String, Revalidator) and collectionForKey(String, Revalidator).
+	 * An expired entry that can be revalidated is then returned right away while a background request refreshes it.
+	 */
+	public void setStaleWhileRevalidate(boolean staleWhileRevalidate)
+	{
+		this.staleWhileRevalidate = staleWhileRevalidate;
+	}
+
+	public boolean isStaleWhileRevalidate()
+	{
+		return this.staleWhileRevalidate;
+	}
+
+	/** Adds If-None-Match and If-Modified-Since to connection from the validators stored for key. Returns false if there are none. */
+	public boolean addRevalidationHeaders(String key, APIURLConnection connection)
+	{
+		MetaData meta = this.meta.get(storageKeyFor(key));
+		if(meta == null || !meta.hasValidators())
+			return false;
+		if(meta.etag != null)
+			connection.setRequestProperty(APIURLConnection.HEADER_IF_NONE_MATCH, meta.etag);
+		if(meta.lastModified != null)
+			connection.setRequestProperty(APIURLConnection.HEADER_IF_MODIFIED_SINCE, meta.lastModified);
+		return true;
+	}
+
+	/**
+	 * Call after executing a connection prepared with addRevalidationHeaders. A 304 response renews the expiration of the
+	 * entry for key, keeping its value, and returns true. Any other response returns false.
+	 */
+	public boolean processRevalidation(String key, APIURLConnection connection) throws IOException
+	{
+		ReentrantLock lock;
+		MetaData meta, refreshed;
+
+		if(connection.getResponseCode() != HttpURLConnection.HTTP_NOT_MODIFIED)
+			return false;
+		key = storageKeyFor(key);
+		lock = lockForKey(key);
+		lock.lock();
+		try
+		{
+			meta = this.meta.get(key);
+			if(meta == null)
+				return false;
+			refreshed = metaDataForResponse(meta.expiration, meta.sessionOnly, connection);
+			// A 304 doesn't have to repeat the validators
+			if(refreshed.etag == null)
+				refreshed.etag = meta.etag;
+			if(refreshed.lastModified == null)
+				refreshed.lastModified = meta.lastModified;
+			putMetaData(key, refreshed);
+			return true;
+		}
+		finally { lock.unlock(); }
+	}
+
+	/**
+	 * Performs a conditional request for the entry cached under key and returns its fresh value. A 304 renews the cached
+	 * value, a full response is parsed and cached with the same expiration. Blocks on the network, so call it off the UI thread.
+	 * Returns null if there is no entry to revalidate or the request failed.
+	 */
+	public Object revalidate(String key, Revalidator revalidator) throws IOException
+	{
+		APIURLConnection connection;
+		MetaData meta;
+		String storageKey, response;
+		Object obj;
+
+		storageKey = storageKeyFor(key);
+		meta = this.meta.get(storageKey);
+		if(meta == null)
+			return null;
+		connection = revalidator.newConnection(key);
+		addRevalidationHeaders(key, connection);
+		response = connection.execute();
+		if(processRevalidation(key, connection))
+		{
+			obj = this.cache.get(storageKey);
+			return (obj != null) ? obj : loadEntry(storageKey, false);
+		}
+		if(response == null || connection.getResponseCode() >= 400)
+			return null;
+		try
+		{
+			obj = revalidator.parseResponse(key, response);
+		} catch(JSONException e) { throw new IOException(e.getMessage()); }
+		if(obj instanceof Object[])
+			cacheCollection((Object[])obj, key, meta.expiration, meta.sessionOnly, connection);
+		else if(obj != null)
+			cacheObject(obj, key, meta.expiration, meta.sessionOnly, connection);
+		return obj;
+	}
+
+	/**
+	 * Same as entryForKey, but an expired entry that can be revalidated is returned stale while it is revalidated in the
+	 * background, if stale-while-revalidate is enabled.
+	 */
+	public Object entryForKey(String key, Revalidator revalidator)
+	{
+		Object obj = entryForKey(key);
+		if(obj == null)
+			obj = staleEntryForKey(key, false, revalidator);
+		return obj;
+	}
+
+	/** Collection counterpart of entryForKey(String, Revalidator). */
+	public Object[] collectionForKey(String key, Revalidator revalidator)
+	{
+		Object[] collection = collectionForKey(key);
+		if(collection == null)
+		{
+			Object obj = staleEntryForKey(key, true, revalidator);
+			if(obj instanceof Object[])
+				collection = (Object[])obj;
+		}
+		return collection;
+	}
+
+	private Object staleEntryForKey(final String key, boolean collection, final Revalidator revalidator)
+	{
+		final String storageKey = storageKeyFor(key);
+		MetaData meta;
+		Object obj;
+
+		if(!this.staleWhileRevalidate)
+			return null;
+		meta = this.meta.get(storageKey);
+		if(meta == null || !meta.isExpired() || !meta.isRevalidatable(this.staleWindow))
+			return null;
+		obj = this.cache.get(storageKey);
+		if(obj == null)
+			obj = loadEntry(storageKey, collection);
+		if(obj == null)
+			return null;
+
+		// Only one background revalidation per entry at a time, run on the shared request pool at background priority
+		if(this.revalidating.putIfAbsent(storageKey, Boolean.TRUE) == null)
+		{
+			APIRequestExecutor.getExecutor().execute(new Runnable() {
+				public void run()
 				{
 					try
 					{
-						if(in != null)
-							in.close();
-					} catch(IOException e) { }
+						revalidate(key, revalidator);
+					}
+					catch(IOException e) { Log.e(API.TAG, "Cache revalidation failed with error: " + e.getMessage()); }
+					finally { APICache.this.revalidating.remove(storageKey); }
 				}
-				if(collection != null)
-					this.cache.put(key, collection);
-				return collection;
-			}
+			}, API.PRIORITY_BACKGROUND, API.getConfiguration(API.CONFIG_HOST));
 		}
-		return null;
+		return obj;
 	}
 
 	public void removeEntryForKey(String key)
 	{
-		this.meta.remove(key);
-		this.cache.remove(key);
-		fileForKey(key).delete();
-		saveMetaData();
+		removeStorageEntry(storageKeyFor(key));
+	}
+
+	private void removeStorageEntry(String key)
+	{
+		ReentrantLock lock = lockForKey(key);
+
+		lock.lock();
+		try
+		{
+			removeMetaData(key);
+			this.cache.remove(key);
+			deleteEntry(key);
+		}
+		finally { lock.unlock(); }
 	}
 
 	public void flushAll()
 	{
-		this.cache.clear();
-		for(String key : this.meta.keySet())
-			fileForKey(key).delete();
-		this.meta.clear();
-		saveMetaData();
+		APICacheWriter writer;
+
+		lockAll();
+		try
+		{
+			this.cache.clear();
+			writer = this.writer;
+			if(writer != null)
+				writer.clear();
+			this.store.clear();
+			this.meta.clear();
+			this.journal.clear();
+			this.expiry.clear();
+			for(APICacheNamespace namespace : this.namespaces.values())
+				namespace.clear();
+		}
+		finally { unlockAll(); }
 	}
 
+	/** Removes every entry that is due now. Expired entries are also removed in the background as they come due, so this is rarely needed. */
 	public void flushExpired()
 	{
-		String key;
-		MetaData meta;
+		this.expiry.poll(System.currentTimeMillis());
+		this.journal.compactIfNeeded(this.meta);
+	}
 
+	/** Removes the session-only entries of every user, a user switch only needs to change namespaces and doesn't call this. */
+	public void flushSessionCache()
+	{
 		for(Map.Entry<String, MetaData> entry : this.meta.entrySet())
 		{
-			key = entry.getKey();
-			meta = entry.getValue();
-			if(meta.isExpired())
-			{
-				this.meta.remove(key);
-				this.cache.remove(key);
-				fileForKey(key).delete();
-				saveMetaData();
-			}
+			if(entry.getValue().sessionOnly)
+				removeEntryIfMatches(entry.getKey(), entry.getValue());
 		}
+		this.journal.compactIfNeeded(this.meta);
 	}
 
-	public void flushSessionCache()
+	/** Removes an entry found while iterating, unless it was replaced since by another thread. Returns true if removed. */
+	private boolean removeEntryIfMatches(String key, MetaData meta)
 	{
-		String key;
-		MetaData meta;
+		ReentrantLock lock = lockForKey(key);
 
-		for(Map.Entry<String, MetaData> entry : this.meta.entrySet())
+		lock.lock();
+		try
 		{
-			key = entry.getKey();
-			meta = entry.getValue();
-			if(meta.sessionOnly)
+			if(this.meta.remove(key, meta))
 			{
-				this.meta.remove(key);
+				forgetStorageKey(key);
+				this.journal.remove(key);
 				this.cache.remove(key);
-				fileForKey(key).delete();
-				saveMetaData();
+				deleteEntry(key);
+				return true;
 			}
+			return false;
 		}
+		finally { lock.unlock(); }
 	}
 }
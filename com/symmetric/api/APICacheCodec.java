@@ -0,0 +1,16 @@
+package com.symmetric.api;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Converts cached values to and from bytes. The id is stored in the header of every entry so entries written
+ * with a different codec can still be read, ids below 16 are reserved for the built in codecs.
+ */
+public interface APICacheCodec
+{
+	public int getId();
+	public void encode(Object value, DataOutputStream out) throws IOException;
+	public Object decode(DataInputStream in) throws IOException;
+}
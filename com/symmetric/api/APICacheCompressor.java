@@ -0,0 +1,18 @@
+package com.symmetric.api;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Compresses the encoded bytes of large cache entries. The id is stored in the header of every compressed entry so
+ * entries written with a different compressor can still be read, ids below 16 are reserved for the built in compressors.
+ */
+public interface APICacheCompressor
+{
+	public int getId();
+	/** Writes the compressed form of the given bytes to out, without closing it. */
+	public void compress(byte[] data, int offset, int length, OutputStream out) throws IOException;
+	/** Reads compressed bytes from in until its end and writes the original bytes to out. */
+	public void decompress(InputStream in, OutputStream out) throws IOException;
+}
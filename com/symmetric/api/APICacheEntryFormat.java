@@ -0,0 +1,296 @@
+package com.symmetric.api;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+
+/**
+ * Layout of the bytes APICache stores per entry.
+ *
+ * short magic, byte version, byte codec id, byte flags, then the codec encoded value, or for a collection an int count
+ * followed by the encoded elements. From version 2 the count of a collection is followed by count + 1 int offsets of the
+ * elements, relative to the first element, so single elements can be decoded without reading the ones before them.
+ * From version 3 the flags can mark the entry compressed, the flags are then followed by the compressor id and everything
+ * after that, including the count and offsets of a collection, is compressed as one block.
+ * From version 4 a compressed collection is compressed in blocks of BLOCK_SIZE elements instead, marked by FLAG_BLOCKS.
+ * The compressor id is followed by the count, the number of elements per block and blocks + 1 int offsets of the
+ * compressed blocks, relative to the first block, all uncompressed, so a block can be inflated without the others.
+ * Entries written before the header existed start with the Java serialization stream magic instead and are read with
+ * ObjectInputStream.
+ */
+final class APICacheEntryFormat
+{
+	static final int MAGIC = 0xa9c1;
+	static final int VERSION = 4;
+	static final int VERSION_OFFSETS = 2;
+	static final int FLAG_COLLECTION = 0x01;
+	static final int FLAG_COMPRESSED = 0x02;
+	static final int FLAG_BLOCKS = 0x04;
+	static final int HEADER_SIZE = 5;
+	/** Elements per compressed block of a collection, a lazy view inflates one block at a time. */
+	static final int BLOCK_SIZE = 64;
+
+	private static final int LEGACY_MAGIC = 0xaced;
+
+	private static final HashMap<Integer, APICacheCodec> codecs = new HashMap<Integer, APICacheCodec>();
+	private static final HashMap<Integer, APICacheCompressor> compressors = new HashMap<Integer, APICacheCompressor>();
+
+	static
+	{
+		registerCodec(new APISerializableCodec());
+		registerCodec(new APIBinaryCodec());
+		registerCompressor(new APIDeflateCompressor());
+	}
+
+	private APICacheEntryFormat() {}
+
+	static void registerCodec(APICacheCodec codec)
+	{
+		synchronized(codecs)
+		{
+			codecs.put(codec.getId(), codec);
+		}
+	}
+
+	static APICacheCodec codecForId(int id)
+	{
+		synchronized(codecs)
+		{
+			return codecs.get(id);
+		}
+	}
+
+	static void registerCompressor(APICacheCompressor compressor)
+	{
+		synchronized(compressors)
+		{
+			compressors.put(compressor.getId(), compressor);
+		}
+	}
+
+	static APICacheCompressor compressorForId(int id)
+	{
+		synchronized(compressors)
+		{
+			return compressors.get(id);
+		}
+	}
+
+	/**
+	 * Writes an entry, compressing it with compressor if its encoded size is at least threshold bytes and compressing
+	 * makes it smaller. compressor and stats may be null.
+	 */
+	static void write(OutputStream stream, Object value, boolean collection, APICacheCodec codec, APICacheCompressor compressor, int threshold, APICacheStats.Recorder stats) throws IOException
+	{
+		DataOutputStream out = new DataOutputStream(stream);
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		ByteArrayOutputStream compressed = null;
+		int[] offsets = null, blockOffsets = null;
+		long start;
+
+		// The body of a collection is its encoded elements, the count and offsets are written around it
+		start = System.nanoTime();
+		if(collection)
+			offsets = encodeElements((Object[])value, codec, new DataOutputStream(body));
+		else
+			codec.encode(value, new DataOutputStream(body));
+		if(stats != null)
+			stats.recordSerialization(System.nanoTime() - start);
+
+		if(compressor != null && body.size() >= threshold)
+		{
+			start = System.nanoTime();
+			compressed = new ByteArrayOutputStream(body.size() / 2);
+			if(collection)
+				blockOffsets = compressBlocks(body.toByteArray(), offsets, compressor, compressed);
+			else
+				compressor.compress(body.toByteArray(), 0, body.size(), compressed);
+			if(stats != null)
+				stats.recordCompression(body.size(), compressed.size(), System.nanoTime() - start);
+			// Not worth the decompression on every read
+			if(compressed.size() >= body.size())
+				compressed = null;
+		}
+
+		out.writeShort(MAGIC);
+		out.writeByte(VERSION);
+		out.writeByte(codec.getId());
+		out.writeByte((collection ? FLAG_COLLECTION : 0) | ((compressed != null) ? FLAG_COMPRESSED : 0) | ((collection && compressed != null) ? FLAG_BLOCKS : 0));
+		if(compressed != null)
+			out.writeByte(compressor.getId());
+		if(collection)
+		{
+			out.writeInt(offsets.length - 1);
+			if(compressed != null)
+			{
+				out.writeInt(BLOCK_SIZE);
+				offsets = blockOffsets;
+			}
+			for(int offset : offsets)
+				out.writeInt(offset);
+		}
+		((compressed != null) ? compressed : body).writeTo(out);
+		out.flush();
+	}
+
+	/** Encodes objects one after the other into out, returns the offset of each and the end offset. */
+	private static int[] encodeElements(Object[] objects, APICacheCodec codec, DataOutputStream out) throws IOException
+	{
+		int[] offsets = new int[objects.length + 1];
+
+		for(int i = 0; i < objects.length; ++i)
+		{
+			offsets[i] = out.size();
+			codec.encode(objects[i], out);
+		}
+		offsets[objects.length] = out.size();
+		return offsets;
+	}
+
+	/** Compresses the elements of each block separately into out, returns the offset of each block and the end offset. */
+	private static int[] compressBlocks(byte[] elements, int[] offsets, APICacheCompressor compressor, ByteArrayOutputStream out) throws IOException
+	{
+		int count = offsets.length - 1;
+		int[] blockOffsets = new int[blockCount(count, BLOCK_SIZE) + 1];
+		int start, end;
+
+		for(int i = 0; i < blockOffsets.length - 1; ++i)
+		{
+			blockOffsets[i] = out.size();
+			start = offsets[i * BLOCK_SIZE];
+			end = offsets[Math.min((i + 1) * BLOCK_SIZE, count)];
+			compressor.compress(elements, start, end - start, out);
+		}
+		blockOffsets[blockOffsets.length - 1] = out.size();
+		return blockOffsets;
+	}
+
+	static int blockCount(int count, int blockSize)
+	{
+		return (count + blockSize - 1) / blockSize;
+	}
+
+	/** Inflates one compressed block, length bytes of buffer from offset. */
+	static DataInputStream inflateBlock(APICacheCompressor compressor, byte[] buffer, int offset, int length) throws IOException
+	{
+		ByteArrayOutputStream block = new ByteArrayOutputStream(length * 4);
+
+		compressor.decompress(new ByteArrayInputStream(buffer, offset, length), block);
+		return new DataInputStream(new ByteArrayInputStream(block.toByteArray()));
+	}
+
+	/**
+	 * Reads an entry, collection is only used for legacy entries which have no header saying what they contain. The stream
+	 * must support mark. Compressed entries are fully decompressed before decoding, stats may be null.
+	 */
+	static Object read(InputStream stream, boolean collection, APICacheStats.Recorder stats) throws IOException
+	{
+		DataInputStream in = new DataInputStream(stream);
+		APICacheCodec codec;
+		APICacheCompressor compressor;
+		ByteArrayOutputStream body;
+		Object[] objects;
+		int magic, version, flags;
+		long start;
+
+		stream.mark(2);
+		magic = in.readUnsignedShort();
+		if(magic == LEGACY_MAGIC)
+		{
+			stream.reset();
+			return readLegacy(stream, collection);
+		}
+		if(magic != MAGIC)
+			throw new IOException("Not a cache entry");
+		version = in.readUnsignedByte();
+		if(version > VERSION)
+			throw new IOException("Unsupported cache entry version " + version);
+		codec = codecForId(in.readUnsignedByte());
+		if(codec == null)
+			throw new IOException("Unknown cache codec");
+		flags = in.readUnsignedByte();
+		if((flags & FLAG_COMPRESSED) != 0)
+		{
+			compressor = compressorForId(in.readUnsignedByte());
+			if(compressor == null)
+				throw new IOException("Unknown cache compressor");
+			if((flags & FLAG_BLOCKS) != 0)
+				return readBlocks(in, codec, compressor, stats);
+			start = System.nanoTime();
+			body = new ByteArrayOutputStream();
+			compressor.decompress(stream, body);
+			if(stats != null)
+				stats.recordDecompression(System.nanoTime() - start);
+			in = new DataInputStream(new ByteArrayInputStream(body.toByteArray()));
+		}
+
+		if((flags & FLAG_COLLECTION) != 0)
+		{
+			objects = new Object[in.readInt()];
+			if(version >= VERSION_OFFSETS)
+			{
+				for(int i = 0; i <= objects.length; ++i)
+					in.readInt();
+			}
+			for(int i = 0; i < objects.length; ++i)
+				objects[i] = codec.decode(in);
+			return objects;
+		}
+		return codec.decode(in);
+	}
+
+	private static Object[] readBlocks(DataInputStream in, APICacheCodec codec, APICacheCompressor compressor, APICacheStats.Recorder stats) throws IOException
+	{
+		int count = in.readInt();
+		int blockSize = in.readInt();
+		Object[] objects;
+		int[] offsets;
+		byte[] buffer;
+		DataInputStream block;
+		long inflating = 0, start;
+
+		if(count < 0 || blockSize <= 0)
+			throw new IOException("Malformed cache collection");
+		objects = new Object[count];
+		offsets = new int[blockCount(count, blockSize) + 1];
+		for(int i = 0; i < offsets.length; ++i)
+			offsets[i] = in.readInt();
+		buffer = new byte[offsets[offsets.length - 1]];
+		in.readFully(buffer);
+		for(int i = 0; i < offsets.length - 1; ++i)
+		{
+			start = System.nanoTime();
+			block = inflateBlock(compressor, buffer, offsets[i], offsets[i + 1] - offsets[i]);
+			inflating += System.nanoTime() - start;
+			for(int j = i * blockSize; j < Math.min((i + 1) * blockSize, count); ++j)
+				objects[j] = codec.decode(block);
+		}
+		if(stats != null)
+			stats.recordDecompression(inflating);
+		return objects;
+	}
+
+	private static Object readLegacy(InputStream stream, boolean collection) throws IOException
+	{
+		ObjectInputStream in = new ObjectInputStream(stream);
+		Object[] objects;
+
+		try
+		{
+			if(collection)
+			{
+				objects = new Object[in.readInt()];
+				for(int i = 0; i < objects.length; ++i)
+					objects[i] = in.readObject();
+				return objects;
+			}
+			return in.readObject();
+		} catch(ClassNotFoundException e) { throw new IOException(e.getMessage()); }
+	}
+}
@@ -0,0 +1,192 @@
+package com.symmetric.api;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Min-heap of cache keys ordered by the absolute time they become due for removal, with a background sweeper that
+ * wakes up for the earliest one. Only entries that are actually due are handed to the sink, nothing is scanned.
+ *
+ * Replacing or removing an entry doesn't touch the heap, the sink is expected to check whether the key is still due
+ * when it's handed over. Such stale nodes are dropped as they come up, or all at once by rebuild when they pile up.
+ */
+final class APICacheExpiryQueue implements Runnable
+{
+	private static final int INITIAL_CAPACITY = 64;
+
+	/** Removes due entries, called on the sweeper thread or by poll. */
+	interface Sink
+	{
+		public void expire(String key, long due);
+	}
+
+	private final Sink sink;
+	// Parallel arrays so the heap holds primitive longs rather than boxed nodes
+	private long[] due = new long[INITIAL_CAPACITY];
+	private String[] keys = new String[INITIAL_CAPACITY];
+	private int size;
+	private Thread thread;
+
+	APICacheExpiryQueue(Sink sink)
+	{
+		this.sink = sink;
+	}
+
+	synchronized void add(String key, long due)
+	{
+		if(this.size == this.due.length)
+		{
+			this.due = Arrays.copyOf(this.due, this.size * 2);
+			this.keys = Arrays.copyOf(this.keys, this.size * 2);
+		}
+		this.due[this.size] = due;
+		this.keys[this.size] = key;
+		siftUp(this.size++);
+
+		if(this.thread == null)
+		{
+			this.thread = new Thread(this, "APICacheSweeper");
+			this.thread.setDaemon(true);
+			this.thread.start();
+		}
+		// Only a new earliest deadline changes how long the sweeper sleeps
+		else if(this.due[0] == due && this.keys[0] == key)
+		{
+			notifyAll();
+		}
+	}
+
+	synchronized void clear()
+	{
+		Arrays.fill(this.keys, 0, this.size, null);
+		this.size = 0;
+	}
+
+	/** Number of nodes in the heap, including ones for entries replaced or removed since they were added. */
+	synchronized int size()
+	{
+		return this.size;
+	}
+
+	/**
+	 * Drops every node and adds the entries of meta again, used to discard stale nodes or when the due times of all entries change.
+	 * Holding the lock while iterating means a concurrent add is either seen by the iteration or queued after it.
+	 */
+	synchronized void rebuild(Map<String, APICache.MetaData> meta, long staleWindow)
+	{
+		clear();
+		for(Map.Entry<String, APICache.MetaData> entry : meta.entrySet())
+			add(entry.getKey(), entry.getValue().dueTime(staleWindow));
+		notifyAll();
+	}
+
+	/** Hands every entry due at now to the sink on the calling thread. */
+	void poll(long now)
+	{
+		ArrayList<String> keys = new ArrayList<String>();
+		ArrayList<Long> due = new ArrayList<Long>();
+
+		synchronized(this)
+		{
+			takeDue(now, keys, due);
+		}
+		expire(keys, due);
+	}
+
+	public void run()
+	{
+		ArrayList<String> keys = new ArrayList<String>();
+		ArrayList<Long> due = new ArrayList<Long>();
+		long now;
+
+		while(true)
+		{
+			synchronized(this)
+			{
+				while(true)
+				{
+					now = System.currentTimeMillis();
+					if(this.size > 0 && this.due[0] <= now)
+						break;
+					try
+					{
+						if(this.size == 0)
+							wait();
+						else
+							wait(this.due[0] - now);
+					} catch(InterruptedException e) { }
+				}
+				takeDue(now, keys, due);
+			}
+			expire(keys, due);
+			keys.clear();
+			due.clear();
+		}
+	}
+
+	private void takeDue(long now, ArrayList<String> keys, ArrayList<Long> due)
+	{
+		while(this.size > 0 && this.due[0] <= now)
+		{
+			keys.add(this.keys[0]);
+			due.add(this.due[0]);
+			removeFirst();
+		}
+	}
+
+	private void expire(ArrayList<String> keys, ArrayList<Long> due)
+	{
+		for(int i = 0; i < keys.size(); ++i)
+			this.sink.expire(keys.get(i), due.get(i));
+	}
+
+	private void removeFirst()
+	{
+		--this.size;
+		this.due[0] = this.due[this.size];
+		this.keys[0] = this.keys[this.size];
+		this.keys[this.size] = null;
+		if(this.size > 0)
+			siftDown(0);
+	}
+
+	private void siftUp(int index)
+	{
+		long due = this.due[index];
+		String key = this.keys[index];
+		int parent;
+
+		while(index > 0)
+		{
+			parent = (index - 1) >>> 1;
+			if(this.due[parent] <= due)
+				break;
+			this.due[index] = this.due[parent];
+			this.keys[index] = this.keys[parent];
+			index = parent;
+		}
+		this.due[index] = due;
+		this.keys[index] = key;
+	}
+
+	private void siftDown(int index)
+	{
+		long due = this.due[index];
+		String key = this.keys[index];
+		int child;
+
+		while((child = 2 * index + 1) < this.size)
+		{
+			if(child + 1 < this.size && this.due[child + 1] < this.due[child])
+				child++;
+			if(due <= this.due[child])
+				break;
+			this.due[index] = this.due[child];
+			this.keys[index] = this.keys[child];
+			index = child;
+		}
+		this.due[index] = due;
+		this.keys[index] = key;
+	}
+}
@@ -0,0 +1,337 @@
+package com.symmetric.api;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Append only log of APICache meta data mutations.
+ * Every put or remove appends one small record, so a mutation costs the same regardless of the number of entries.
+ * Once the log grows past a threshold relative to the number of live entries, it is rotated and a snapshot of the live
+ * entries is written on a background thread. On startup the snapshot is read and then the logs are replayed on top of it.
+ */
+final class APICacheJournal
+{
+	private static final String PATH_JOURNAL = "api_meta.journal";
+	private static final String PATH_JOURNAL_OLD = "api_meta.journal.old";
+	private static final String PATH_SNAPSHOT = "api_meta.snapshot";
+	private static final String PATH_SNAPSHOT_TMP = "api_meta.snapshot.tmp";
+
+	private static final int SNAPSHOT_MAGIC = 0x41504d31; // APM1
+	private static final int COMPACT_MIN_RECORDS = 1024;
+
+	private static final byte OP_PUT = 1;
+	private static final byte OP_REMOVE = 2;
+	private static final byte OP_CLEAR = 3;
+
+	private static final class CountingInputStream extends FilterInputStream
+	{
+		long count;
+
+		CountingInputStream(InputStream in)
+		{
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException
+		{
+			int b = super.read();
+			if(b != -1)
+				this.count++;
+			return b;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException
+		{
+			int read = super.read(buffer, offset, length);
+			if(read > 0)
+				this.count += read;
+			return read;
+		}
+	}
+
+	private final File directory;
+	private final ByteArrayOutputStream recordBytes = new ByteArrayOutputStream(128);
+	private final DataOutputStream record = new DataOutputStream(this.recordBytes);
+	private FileOutputStream out;
+	private int records;
+	private boolean compacting;
+
+	APICacheJournal(File directory)
+	{
+		this.directory = directory;
+	}
+
+	/** Rebuilds the meta data from the snapshot and logs, then opens the log for appending. */
+	synchronized HashMap<String, APICache.MetaData> load()
+	{
+		HashMap<String, APICache.MetaData> meta = new HashMap<String, APICache.MetaData>();
+		File journal = new File(this.directory, PATH_JOURNAL);
+		File oldJournal = new File(this.directory, PATH_JOURNAL_OLD);
+
+		readSnapshot(new File(this.directory, PATH_SNAPSHOT), meta);
+		if(oldJournal.exists())
+		{
+			// A compaction was interrupted, fold everything into a new snapshot before appending again
+			replay(oldJournal, meta);
+			replay(journal, meta);
+			if(writeSnapshot(meta))
+			{
+				oldJournal.delete();
+				journal.delete();
+			}
+			this.records = 0;
+		}
+		else
+		{
+			this.records = replay(journal, meta);
+		}
+		openJournal();
+		return meta;
+	}
+
+	synchronized void put(String key, APICache.MetaData meta)
+	{
+		try
+		{
+			this.recordBytes.reset();
+			this.record.writeByte(OP_PUT);
+			this.record.writeUTF(key);
+			meta.write(this.record);
+			append();
+		} catch(IOException e) { Log.e(API.TAG, "Cache journal write failed with error: " + e.getMessage()); }
+	}
+
+	synchronized void remove(String key)
+	{
+		try
+		{
+			this.recordBytes.reset();
+			this.record.writeByte(OP_REMOVE);
+			this.record.writeUTF(key);
+			append();
+		} catch(IOException e) { Log.e(API.TAG, "Cache journal write failed with error: " + e.getMessage()); }
+	}
+
+	synchronized void clear()
+	{
+		try
+		{
+			this.recordBytes.reset();
+			this.record.writeByte(OP_CLEAR);
+			append();
+		} catch(IOException e) { Log.e(API.TAG, "Cache journal write failed with error: " + e.getMessage()); }
+	}
+
+	/** Starts a compaction if the log has outgrown the live entries. The snapshot is copied here so the caller must pass the current meta data. */
+	synchronized void compactIfNeeded(Map<String, APICache.MetaData> meta)
+	{
+		final HashMap<String, APICache.MetaData> snapshot;
+
+		if(this.compacting || this.records < Math.max(COMPACT_MIN_RECORDS, meta.size() * 2))
+			return;
+		// A previous snapshot failed, its log is only folded in on the next load
+		if(new File(this.directory, PATH_JOURNAL_OLD).exists())
+			return;
+
+		// Rotate the log so appends can continue while the snapshot is written
+		closeJournal();
+		if(!new File(this.directory, PATH_JOURNAL).renameTo(new File(this.directory, PATH_JOURNAL_OLD)))
+		{
+			openJournal();
+			return;
+		}
+		openJournal();
+		this.records = 0;
+		this.compacting = true;
+		snapshot = new HashMap<String, APICache.MetaData>(meta);
+
+		Thread thread = new Thread(new Runnable() {
+			public void run()
+			{
+				if(writeSnapshot(snapshot))
+					new File(APICacheJournal.this.directory, PATH_JOURNAL_OLD).delete();
+				synchronized(APICacheJournal.this)
+				{
+					APICacheJournal.this.compacting = false;
+				}
+			}
+		}, "APICacheJournal");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private void append() throws IOException
+	{
+		if(this.out == null)
+			throw new IOException("Journal is not open");
+		this.recordBytes.writeTo(this.out);
+		this.records++;
+	}
+
+	private void openJournal()
+	{
+		try
+		{
+			this.out = new FileOutputStream(new File(this.directory, PATH_JOURNAL), true);
+		} catch(IOException e) { Log.e(API.TAG, "Cache journal open failed with error: " + e.getMessage()); }
+	}
+
+	private void closeJournal()
+	{
+		try
+		{
+			if(this.out != null)
+				this.out.close();
+		} catch(IOException e) { }
+		this.out = null;
+	}
+
+	/** Applies the records of a log to meta. A torn record at the end, from a crash mid write, is truncated. Returns the number of records applied. */
+	private static int replay(File file, HashMap<String, APICache.MetaData> meta)
+	{
+		CountingInputStream counter;
+		DataInputStream in = null;
+		long validLength = 0;
+		int count = 0;
+		String key;
+		byte op;
+
+		if(!file.exists())
+			return 0;
+		try
+		{
+			counter = new CountingInputStream(new BufferedInputStream(new FileInputStream(file)));
+			in = new DataInputStream(counter);
+			while(true)
+			{
+				op = in.readByte();
+				if(op == OP_PUT)
+				{
+					key = in.readUTF();
+					meta.put(key, APICache.MetaData.read(in));
+				}
+				else if(op == OP_REMOVE)
+				{
+					key = in.readUTF();
+					meta.remove(key);
+				}
+				else if(op == OP_CLEAR)
+				{
+					meta.clear();
+				}
+				else
+				{
+					throw new IOException("Unknown journal record");
+				}
+				validLength = counter.count;
+				count++;
+			}
+		}
+		catch(EOFException e) { }
+		catch(IOException e) { Log.e(API.TAG, "Cache journal replay stopped with error: " + e.getMessage()); }
+		finally
+		{
+			try
+			{
+				if(in != null)
+					in.close();
+			} catch(IOException e) { }
+		}
+		truncate(file, validLength);
+		return count;
+	}
+
+	private static void truncate(File file, long length)
+	{
+		RandomAccessFile raf = null;
+		try
+		{
+			raf = new RandomAccessFile(file, "rw");
+			if(raf.length() > length)
+				raf.setLength(length);
+		} catch(IOException e) { }
+		finally
+		{
+			try
+			{
+				if(raf != null)
+					raf.close();
+			} catch(IOException e) { }
+		}
+	}
+
+	private static void readSnapshot(File file, HashMap<String, APICache.MetaData> meta)
+	{
+		DataInputStream in = null;
+		int size;
+
+		if(!file.exists())
+			return;
+		try
+		{
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			if(in.readInt() != SNAPSHOT_MAGIC)
+				return;
+			size = in.readInt();
+			for(int i = 0; i < size; ++i)
+				meta.put(in.readUTF(), APICache.MetaData.read(in));
+		} catch(IOException e) { Log.e(API.TAG, "Cache snapshot read failed with error: " + e.getMessage()); }
+		finally
+		{
+			try
+			{
+				if(in != null)
+					in.close();
+			} catch(IOException e) { }
+		}
+	}
+
+	private boolean writeSnapshot(HashMap<String, APICache.MetaData> meta)
+	{
+		File tmp = new File(this.directory, PATH_SNAPSHOT_TMP);
+		DataOutputStream out = null;
+		boolean success = false;
+
+		try
+		{
+			FileOutputStream fileOut = new FileOutputStream(tmp);
+			out = new DataOutputStream(new BufferedOutputStream(fileOut));
+			out.writeInt(SNAPSHOT_MAGIC);
+			out.writeInt(meta.size());
+			for(Map.Entry<String, APICache.MetaData> entry : meta.entrySet())
+			{
+				out.writeUTF(entry.getKey());
+				entry.getValue().write(out);
+			}
+			out.flush();
+			fileOut.getFD().sync();
+			success = true;
+		} catch(IOException e) { Log.e(API.TAG, "Cache snapshot write failed with error: " + e.getMessage()); }
+		finally
+		{
+			try
+			{
+				if(out != null)
+					out.close();
+			} catch(IOException e) { success = false; }
+		}
+		return success && tmp.renameTo(new File(this.directory, PATH_SNAPSHOT));
+	}
+}
@@ -0,0 +1,89 @@
+package com.symmetric.api;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Session-only entries of one user. Their storage keys, used by the meta data, the memory tier and the store, are the
+ * key prefixed with the user id, so entries of several users can live side by side and a user switch only changes
+ * which namespace reads go to. Shared entries are stored under the key itself, escaped if it starts with the separator.
+ */
+final class APICacheNamespace
+{
+	private static final char SEPARATOR = '~';
+
+	final int userId;
+	private final String prefix;
+	// Keys of the namespace mapped to their storage keys, so reads resolve a key without building a string
+	private final ConcurrentMap<String, String> keys = new ConcurrentHashMap<String, String>();
+
+	APICacheNamespace(int userId)
+	{
+		this.userId = userId;
+		this.prefix = SEPARATOR + Integer.toString(userId) + SEPARATOR;
+	}
+
+	/** Returns the storage key of a session-only entry for key in this namespace, or null if there is none. */
+	String storageKeyFor(String key)
+	{
+		return this.keys.get(key);
+	}
+
+	/** Returns the storage key a session-only entry for key has in this namespace, whether or not there is one. */
+	String storageKey(String key)
+	{
+		String storageKey = this.keys.get(key);
+		return (storageKey != null) ? storageKey : this.prefix + key;
+	}
+
+	void add(String key, String storageKey)
+	{
+		this.keys.put(key, storageKey);
+	}
+
+	boolean isEmpty()
+	{
+		return this.keys.isEmpty();
+	}
+
+	void remove(String key)
+	{
+		this.keys.remove(key);
+	}
+
+	void clear()
+	{
+		this.keys.clear();
+	}
+
+	static String sharedStorageKey(String key)
+	{
+		return (key.length() > 0 && key.charAt(0) == SEPARATOR) ? SEPARATOR + key : key;
+	}
+
+	/** Returns true if storageKey belongs to a namespace rather than a shared entry. */
+	static boolean isNamespaced(String storageKey)
+	{
+		return storageKey.length() > 1 && storageKey.charAt(0) == SEPARATOR && storageKey.charAt(1) != SEPARATOR;
+	}
+
+	/** User id of a namespaced storage key, or Integer.MIN_VALUE if it is malformed. */
+	static int userIdOf(String storageKey)
+	{
+		int end = storageKey.indexOf(SEPARATOR, 1);
+		if(end < 0)
+			return Integer.MIN_VALUE;
+		try
+		{
+			return Integer.parseInt(storageKey.substring(1, end));
+		} catch(NumberFormatException e) { return Integer.MIN_VALUE; }
+	}
+
+	/** Key a storage key was built from, namespaced or shared. */
+	static String keyOf(String storageKey)
+	{
+		if(isNamespaced(storageKey))
+			return storageKey.substring(storageKey.indexOf(SEPARATOR, 1) + 1);
+		return (storageKey.length() > 0 && storageKey.charAt(0) == SEPARATOR) ? storageKey.substring(1) : storageKey;
+	}
+}
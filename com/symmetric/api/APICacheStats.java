@@ -0,0 +1,289 @@
+package com.symmetric.api;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Snapshot of the counters of APICache, see APICache.getStats. Counts are totals since the cache was created,
+ * take the difference of two snapshots for rates. Counters are updated without locking, so the values of one
+ * snapshot can be off from each other by the operations in flight when it was taken.
+ */
+public final class APICacheStats
+{
+	/** Receives snapshots at the interval given to APICache.setStatsListener, called on a background thread. */
+	public interface Listener
+	{
+		public void onStats(APICacheStats stats);
+	}
+
+	// Upper bounds of the disk load latency buckets in microseconds, a final bucket counts everything slower
+	private static final long[] LATENCY_BOUNDS = {250, 500, 1000, 2000, 4000, 8000, 16000, 32000, 64000, 128000};
+
+	/** Number of buckets in getDiskLoadLatencyHistogram. */
+	public static final int LATENCY_BUCKETS = LATENCY_BOUNDS.length + 1;
+
+	/** Live counters behind the snapshots, updated on the read and write paths of APICache. */
+	static final class Recorder
+	{
+		final APIStripedCounter memoryHits = new APIStripedCounter();
+		final APIStripedCounter diskHits = new APIStripedCounter();
+		final APIStripedCounter misses = new APIStripedCounter();
+		final APIStripedCounter expirations = new APIStripedCounter();
+		final APIStripedCounter preloads = new APIStripedCounter();
+		final APIStripedCounter serializations = new APIStripedCounter();
+		final APIStripedCounter serializationNanos = new APIStripedCounter();
+		// Disk loads are slow anyway, so the histogram doesn't need striping
+		private final AtomicLongArray latencies = new AtomicLongArray(LATENCY_BUCKETS);
+		private final APIStripedCounter diskLoadNanos = new APIStripedCounter();
+		private final APIStripedCounter compressions = new APIStripedCounter();
+		private final APIStripedCounter compressionInputBytes = new APIStripedCounter();
+		private final APIStripedCounter compressionOutputBytes = new APIStripedCounter();
+		private final APIStripedCounter compressionNanos = new APIStripedCounter();
+		private final APIStripedCounter decompressions = new APIStripedCounter();
+		private final APIStripedCounter decompressionNanos = new APIStripedCounter();
+
+		void recordDiskLoad(long nanos)
+		{
+			long micros = nanos / 1000;
+			int bucket = 0;
+
+			while(bucket < LATENCY_BOUNDS.length && micros > LATENCY_BOUNDS[bucket])
+				bucket++;
+			this.latencies.incrementAndGet(bucket);
+			this.diskLoadNanos.add(nanos);
+		}
+
+		void recordSerialization(long nanos)
+		{
+			this.serializations.increment();
+			this.serializationNanos.add(nanos);
+		}
+
+		void recordCompression(long inputBytes, long outputBytes, long nanos)
+		{
+			this.compressions.increment();
+			this.compressionInputBytes.add(inputBytes);
+			this.compressionOutputBytes.add(outputBytes);
+			this.compressionNanos.add(nanos);
+		}
+
+		void recordDecompression(long nanos)
+		{
+			this.decompressions.increment();
+			this.decompressionNanos.add(nanos);
+		}
+	}
+
+	private final long memoryHitCount;
+	private final long diskHitCount;
+	private final long missCount;
+	private final long expirationCount;
+	private final long preloadCount;
+	private final long evictionCount;
+	private final long bytesOnDisk;
+	private final long memoryWeight;
+	private final long[] diskLoadLatencyHistogram;
+	private final long diskLoadTimeNanos;
+	private final long serializationCount;
+	private final long serializationTimeNanos;
+	private final long compressionCount;
+	private final long compressionInputBytes;
+	private final long compressionOutputBytes;
+	private final long compressionTimeNanos;
+	private final long decompressionCount;
+	private final long decompressionTimeNanos;
+	private final int pendingWriteCount;
+	private final int maxPendingWriteCount;
+	private final long coalescedWriteCount;
+	private final long writtenCount;
+
+	APICacheStats(Recorder recorder, long evictionCount, long bytesOnDisk, long memoryWeight, APICacheWriter writer)
+	{
+		this.memoryHitCount = recorder.memoryHits.sum();
+		this.diskHitCount = recorder.diskHits.sum();
+		this.missCount = recorder.misses.sum();
+		this.expirationCount = recorder.expirations.sum();
+		this.preloadCount = recorder.preloads.sum();
+		this.evictionCount = evictionCount;
+		this.bytesOnDisk = bytesOnDisk;
+		this.memoryWeight = memoryWeight;
+		this.diskLoadLatencyHistogram = new long[LATENCY_BUCKETS];
+		for(int i = 0; i < LATENCY_BUCKETS; ++i)
+			this.diskLoadLatencyHistogram[i] = recorder.latencies.get(i);
+		this.diskLoadTimeNanos = recorder.diskLoadNanos.sum();
+		this.serializationCount = recorder.serializations.sum();
+		this.serializationTimeNanos = recorder.serializationNanos.sum();
+		this.compressionCount = recorder.compressions.sum();
+		this.compressionInputBytes = recorder.compressionInputBytes.sum();
+		this.compressionOutputBytes = recorder.compressionOutputBytes.sum();
+		this.compressionTimeNanos = recorder.compressionNanos.sum();
+		this.decompressionCount = recorder.decompressions.sum();
+		this.decompressionTimeNanos = recorder.decompressionNanos.sum();
+		this.pendingWriteCount = (writer != null) ? writer.getQueueDepth() : 0;
+		this.maxPendingWriteCount = (writer != null) ? writer.getMaxQueueDepth() : 0;
+		this.coalescedWriteCount = (writer != null) ? writer.getCoalescedCount() : 0;
+		this.writtenCount = (writer != null) ? writer.getWrittenCount() : 0;
+	}
+
+	/** Reads answered from the memory tier, including values still queued for write-behind. */
+	public long getMemoryHitCount()
+	{
+		return this.memoryHitCount;
+	}
+
+	/** Reads answered by loading the entry from disk. */
+	public long getDiskHitCount()
+	{
+		return this.diskHitCount;
+	}
+
+	/** Reads of keys that weren't cached, had expired, or couldn't be loaded. */
+	public long getMissCount()
+	{
+		return this.missCount;
+	}
+
+	/** Fraction of reads that were hits in either tier, 0 if there were no reads. */
+	public double getHitRate()
+	{
+		long hits = this.memoryHitCount + this.diskHitCount;
+		long total = hits + this.missCount;
+		return (total > 0) ? (double)hits / total : 0;
+	}
+
+	/** Entries removed because they expired, whether found on read or by the background sweeper. */
+	public long getExpirationCount()
+	{
+		return this.expirationCount;
+	}
+
+	/** Entries loaded into the memory tier by warm-up, these loads are not counted as hits. */
+	public long getPreloadCount()
+	{
+		return this.preloadCount;
+	}
+
+	/** Entries dropped from the memory tier to stay within the memory budget, they remain on disk. */
+	public long getEvictionCount()
+	{
+		return this.evictionCount;
+	}
+
+	public long getBytesOnDisk()
+	{
+		return this.bytesOnDisk;
+	}
+
+	/** Total weight of the memory tier, see APICache.getMemoryWeight. */
+	public long getMemoryWeight()
+	{
+		return this.memoryWeight;
+	}
+
+	/** Count of disk loads per latency bucket, bucket i counts loads up to getLatencyBucketBound(i) microseconds. Includes decoding. */
+	public long[] getDiskLoadLatencyHistogram()
+	{
+		return this.diskLoadLatencyHistogram.clone();
+	}
+
+	/** Upper bound in microseconds of a latency bucket, Long.MAX_VALUE for the last one. */
+	public static long getLatencyBucketBound(int bucket)
+	{
+		return (bucket < LATENCY_BOUNDS.length) ? LATENCY_BOUNDS[bucket] : Long.MAX_VALUE;
+	}
+
+	public long getDiskLoadCount()
+	{
+		long count = 0;
+		for(long bucket : this.diskLoadLatencyHistogram)
+			count += bucket;
+		return count;
+	}
+
+	public long getDiskLoadTimeNanos()
+	{
+		return this.diskLoadTimeNanos;
+	}
+
+	/** Number of entries encoded for writing to disk. */
+	public long getSerializationCount()
+	{
+		return this.serializationCount;
+	}
+
+	/** Total time spent encoding entries for writing to disk. */
+	public long getSerializationTimeNanos()
+	{
+		return this.serializationTimeNanos;
+	}
+
+	/** Number of entries that were large enough to be compressed, including ones written uncompressed because compression didn't help. */
+	public long getCompressionCount()
+	{
+		return this.compressionCount;
+	}
+
+	/** Encoded bytes given to the compressor divided by the compressed bytes, 1 if nothing was compressed. */
+	public double getCompressionRatio()
+	{
+		return (this.compressionOutputBytes > 0) ? (double)this.compressionInputBytes / this.compressionOutputBytes : 1;
+	}
+
+	public long getCompressionInputBytes()
+	{
+		return this.compressionInputBytes;
+	}
+
+	public long getCompressionOutputBytes()
+	{
+		return this.compressionOutputBytes;
+	}
+
+	/** Total time spent compressing entries for writing to disk. */
+	public long getCompressionTimeNanos()
+	{
+		return this.compressionTimeNanos;
+	}
+
+	/** Number of compressed entries read from disk. */
+	public long getDecompressionCount()
+	{
+		return this.decompressionCount;
+	}
+
+	/** Total time spent decompressing entries read from disk, also included in the disk load latency. */
+	public long getDecompressionTimeNanos()
+	{
+		return this.decompressionTimeNanos;
+	}
+
+	/** Write-behind operations waiting to reach the disk, 0 when write-behind is off. */
+	public int getPendingWriteCount()
+	{
+		return this.pendingWriteCount;
+	}
+
+	public int getMaxPendingWriteCount()
+	{
+		return this.maxPendingWriteCount;
+	}
+
+	public long getCoalescedWriteCount()
+	{
+		return this.coalescedWriteCount;
+	}
+
+	/** Write-behind operations performed on disk. */
+	public long getWrittenCount()
+	{
+		return this.writtenCount;
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format("APICacheStats[hits=%d/%d misses=%d hitRate=%.3f expirations=%d evictions=%d disk=%dB loads=%d/%dus serializations=%d/%dus compression=%.2f/%dus pending=%d]",
+			this.memoryHitCount, this.diskHitCount, this.missCount, getHitRate(), this.expirationCount, this.evictionCount, this.bytesOnDisk,
+			getDiskLoadCount(), this.diskLoadTimeNanos / 1000, this.serializationCount, this.serializationTimeNanos / 1000,
+			getCompressionRatio(), this.compressionTimeNanos / 1000, this.pendingWriteCount);
+	}
+}
@@ -0,0 +1,145 @@
+package com.symmetric.api;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Set;
+
+/**
+ * Storage engine for the disk tier of APICache. Stores opaque bytes per key, the meta data journal of APICache
+ * is the source of truth for which keys are live.
+ */
+interface APICacheStore
+{
+	/** Open, read only view of the bytes stored for one key. The bytes don't change while the handle is open. */
+	public interface Handle extends Closeable
+	{
+		public long length();
+		public int read(long position, byte[] buffer, int offset, int length) throws IOException;
+	}
+
+	/** Returns a handle on the bytes stored for key, or null if there are none. */
+	public Handle open(String key) throws IOException;
+
+	/** Returns a stream that replaces the bytes stored for key once committed. */
+	public Output openOutput(String key) throws IOException;
+
+	public void delete(String key);
+
+	/** Deletes the bytes of all keys not in live. */
+	public void retain(Set<String> live);
+
+	public void clear();
+
+	public Set<String> keys();
+
+	/** Total bytes used on disk, including space not yet reclaimed. */
+	public long sizeOnDisk();
+
+	/** Releases open files, the store can't be used afterwards. */
+	public void close();
+
+	/**
+	 * Stream of the new bytes of one key. commit stores them and closes the stream, closing it without a commit discards
+	 * them, so a write that failed halfway never replaces the stored bytes.
+	 */
+	public static abstract class Output extends OutputStream
+	{
+		private boolean closed;
+
+		/** Stores the bytes written in place of those stored for the key and closes the stream. */
+		public final void commit() throws IOException
+		{
+			if(this.closed)
+				throw new IOException("Output already closed");
+			this.closed = true;
+			finish(true);
+		}
+
+		/** Closes the stream, discarding the bytes written unless commit was called. */
+		@Override
+		public final void close() throws IOException
+		{
+			if(this.closed)
+				return;
+			this.closed = true;
+			finish(false);
+		}
+
+		/** Called once when the stream is closed, keeps the bytes written if commit is true and discards them otherwise. */
+		protected abstract void finish(boolean commit) throws IOException;
+	}
+
+	/** Stream adapter over a Handle, closing the stream closes the handle. */
+	public static final class HandleInputStream extends InputStream
+	{
+		private final Handle handle;
+		private long position;
+		private long mark;
+
+		public HandleInputStream(Handle handle)
+		{
+			this.handle = handle;
+		}
+
+		@Override
+		public int read() throws IOException
+		{
+			byte[] b = new byte[1];
+			return (read(b, 0, 1) == 1) ? (b[0] & 0xff) : -1;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException
+		{
+			int read;
+
+			if(this.position >= this.handle.length())
+				return -1;
+			length = (int)Math.min(length, this.handle.length() - this.position);
+			read = this.handle.read(this.position, buffer, offset, length);
+			if(read > 0)
+				this.position += read;
+			return read;
+		}
+
+		@Override
+		public long skip(long n)
+		{
+			n = Math.max(0, Math.min(n, this.handle.length() - this.position));
+			this.position += n;
+			return n;
+		}
+
+		@Override
+		public int available()
+		{
+			return (int)Math.min(Integer.MAX_VALUE, this.handle.length() - this.position);
+		}
+
+		@Override
+		public boolean markSupported()
+		{
+			return true;
+		}
+
+		@Override
+		public synchronized void mark(int readlimit)
+		{
+			this.mark = this.position;
+		}
+
+		@Override
+		public synchronized void reset()
+		{
+			this.position = this.mark;
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			this.handle.close();
+		}
+	}
+}
@@ -0,0 +1,90 @@
+package com.symmetric.api;
+
+import java.util.LinkedHashSet;
+import java.util.Iterator;
+
+/**
+ * Background preloader for the warm-up of APICache. Keys are loaded into the memory tier one at a time in the order they
+ * were added until the weight loaded reaches the budget. A key being loaded stays locked by APICache, so a read of it
+ * waits for the load while reads of any other key, queued or not, go ahead on their own.
+ */
+final class APICacheWarmer implements Runnable
+{
+	/** Performs the actual loads, called on the warm-up thread. */
+	interface Loader
+	{
+		/** Loads key into the memory tier if it isn't there, returns the weight added. */
+		public long preload(String key);
+	}
+
+	private final Loader loader;
+	private final LinkedHashSet<String> pending = new LinkedHashSet<String>();
+	private long budget;
+	private long loaded;
+	private Thread thread;
+
+	APICacheWarmer(Loader loader)
+	{
+		this.loader = loader;
+	}
+
+	/** Queues keys after the ones already pending and sets the weight the warm-up may load from now on. */
+	synchronized void add(String[] keys, long budget)
+	{
+		for(String key : keys)
+			this.pending.add(key);
+		// The budget is per call, what earlier warm-ups loaded doesn't count against it
+		this.budget = budget;
+		this.loaded = 0;
+		if(this.thread == null)
+		{
+			this.thread = new Thread(this, "APICacheWarmer");
+			this.thread.setDaemon(true);
+			this.thread.setPriority(Thread.MIN_PRIORITY);
+			this.thread.start();
+		}
+	}
+
+	synchronized void cancel()
+	{
+		this.pending.clear();
+	}
+
+	synchronized boolean isRunning()
+	{
+		return this.thread != null;
+	}
+
+	synchronized long getLoadedWeight()
+	{
+		return this.loaded;
+	}
+
+	public void run()
+	{
+		Iterator<String> iterator;
+		String key;
+		long weight;
+
+		while(true)
+		{
+			synchronized(this)
+			{
+				if(this.pending.isEmpty() || this.loaded >= this.budget)
+				{
+					this.pending.clear();
+					this.thread = null;
+					return;
+				}
+				iterator = this.pending.iterator();
+				key = iterator.next();
+				iterator.remove();
+			}
+			weight = this.loader.preload(key);
+			synchronized(this)
+			{
+				this.loaded += weight;
+			}
+		}
+	}
+}
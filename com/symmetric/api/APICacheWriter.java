@@ -0,0 +1,224 @@
+package com.symmetric.api;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Single background writer for the write-behind mode of APICache.
+ * Pending operations are kept per key until they reach the disk, so repeated updates of a key that is still queued
+ * replace each other and produce one write. Each pass of the writer takes a batch of everything queued so far.
+ * An operation is performed holding the lock the sink gives for its key, and only if it is still the one queued, so a
+ * removal or flush of the cache never has its files written back by an operation taken before it.
+ */
+final class APICacheWriter implements Runnable
+{
+	/** Value returned by pendingValue when the latest queued operation for the key is a delete. */
+	static final Object DELETED = new Object();
+
+	/** Performs the actual disk operations, called on the writer thread or the thread calling finish. */
+	interface Sink
+	{
+		/** Returns the lock held by everything else that changes the entry of key. */
+		public Lock lockForKey(String key);
+		public void write(String key, Object value, boolean collection);
+		public void delete(String key);
+	}
+
+	private static final class Operation
+	{
+		final Object value;
+		final boolean collection;
+
+		Operation(Object value, boolean collection)
+		{
+			this.value = value;
+			this.collection = collection;
+		}
+	}
+
+	private final Sink sink;
+	// Operations stay in here until written so reads never see the disk lagging behind
+	private final LinkedHashMap<String, Operation> pending = new LinkedHashMap<String, Operation>();
+	private Thread thread;
+	private boolean finished;
+	private long submitted;
+	private long coalesced;
+	private long written;
+	private int maxDepth;
+
+	APICacheWriter(Sink sink)
+	{
+		this.sink = sink;
+	}
+
+	synchronized void write(String key, Object value, boolean collection)
+	{
+		submit(key, new Operation(value, collection));
+	}
+
+	synchronized void delete(String key)
+	{
+		submit(key, new Operation(DELETED, false));
+	}
+
+	/** Returns the value of the latest queued operation for key, DELETED, or null if nothing is queued. */
+	synchronized Object pendingValue(String key)
+	{
+		Operation operation = this.pending.get(key);
+		return (operation != null) ? operation.value : null;
+	}
+
+	/** Drops queued operations without writing them, used when the whole cache is flushed. */
+	synchronized void clear()
+	{
+		this.pending.clear();
+		notifyAll();
+	}
+
+	/** Blocks until every operation queued before this call is on disk or timeoutMillis passes, 0 waits forever. Returns true if persisted. */
+	synchronized boolean awaitPersisted(long timeoutMillis) throws InterruptedException
+	{
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		long remaining = timeoutMillis;
+
+		while(this.pending.size() > 0)
+		{
+			if(timeoutMillis > 0)
+			{
+				if(remaining <= 0)
+					return false;
+				wait(remaining);
+				remaining = deadline - System.currentTimeMillis();
+			}
+			else
+			{
+				wait();
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Performs the operations still queued on the calling thread and lets the writer thread end. Nothing may be queued
+	 * afterwards, the caller must make sure of that, e.g. by holding every lock the sink gives.
+	 */
+	void finish()
+	{
+		ArrayList<String> keys;
+		ArrayList<Operation> operations;
+
+		synchronized(this)
+		{
+			this.finished = true;
+			keys = new ArrayList<String>(this.pending.keySet());
+			operations = new ArrayList<Operation>(this.pending.values());
+			notifyAll();
+		}
+		for(int i = 0; i < keys.size(); ++i)
+			perform(keys.get(i), operations.get(i));
+	}
+
+	synchronized boolean isRunning()
+	{
+		return this.thread != null;
+	}
+
+	synchronized int getQueueDepth()
+	{
+		return this.pending.size();
+	}
+
+	synchronized int getMaxQueueDepth()
+	{
+		return this.maxDepth;
+	}
+
+	synchronized long getSubmittedCount()
+	{
+		return this.submitted;
+	}
+
+	synchronized long getCoalescedCount()
+	{
+		return this.coalesced;
+	}
+
+	synchronized long getWrittenCount()
+	{
+		return this.written;
+	}
+
+	public void run()
+	{
+		ArrayList<String> keys;
+		ArrayList<Operation> operations;
+
+		while(true)
+		{
+			synchronized(this)
+			{
+				while(this.pending.size() == 0)
+				{
+					if(this.finished)
+					{
+						this.thread = null;
+						return;
+					}
+					try
+					{
+						wait();
+					} catch(InterruptedException e) { }
+				}
+				keys = new ArrayList<String>(this.pending.keySet());
+				operations = new ArrayList<Operation>(this.pending.values());
+			}
+
+			for(int i = 0; i < keys.size(); ++i)
+				perform(keys.get(i), operations.get(i));
+		}
+	}
+
+	private void perform(String key, Operation operation)
+	{
+		Lock lock = this.sink.lockForKey(key);
+
+		lock.lock();
+		try
+		{
+			synchronized(this)
+			{
+				// Replaced or cleared since the batch was taken, the newer operation comes in a later batch
+				if(this.pending.get(key) != operation)
+					return;
+			}
+			if(operation.value == DELETED)
+				this.sink.delete(key);
+			else
+				this.sink.write(key, operation.value, operation.collection);
+			synchronized(this)
+			{
+				if(this.pending.get(key) == operation)
+					this.pending.remove(key);
+				this.written++;
+				notifyAll();
+			}
+		}
+		finally { lock.unlock(); }
+	}
+
+	private void submit(String key, Operation operation)
+	{
+		if(this.pending.put(key, operation) != null)
+			this.coalesced++;
+		this.submitted++;
+		this.maxDepth = Math.max(this.maxDepth, this.pending.size());
+		if(this.thread == null)
+		{
+			this.thread = new Thread(this, "APICacheWriter");
+			this.thread.setDaemon(true);
+			this.thread.start();
+		}
+		notifyAll();
+	}
+}
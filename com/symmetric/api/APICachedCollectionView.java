@@ -0,0 +1,214 @@
+package com.symmetric.api;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Read only view of a cached collection that decodes elements on demand.
+ * Only the element count and offset table are read when the view is opened, elements are then decoded a window at a time
+ * and the most recently used windows are kept. Memory use follows the window size rather than the collection size.
+ * A collection compressed in blocks is read a block at a time instead, each window is then one block.
+ * Collections already in memory, written before offset tables existed, or compressed as a whole by earlier versions,
+ * are served from a fully loaded array.
+ * Close the view when done with it so the underlying file can be released.
+ */
+public final class APICachedCollectionView implements Closeable
+{
+	public static final int DEFAULT_WINDOW_SIZE = 50;
+	public static final int DEFAULT_MAX_WINDOWS = 3;
+
+	private final Object[] objects;
+	private final APICacheStore.Handle handle;
+	private final APICacheCodec codec;
+	private final APICacheCompressor compressor; // null unless the collection is compressed in blocks
+	private final int count;
+	private final int[] offsets; // of the elements, or of the blocks if compressed
+	private final long elementsPosition;
+	private final int windowSize;
+	private final LinkedHashMap<Integer, Object[]> windows;
+
+	/** View over a collection that is already fully loaded. */
+	APICachedCollectionView(Object[] objects)
+	{
+		this.objects = objects;
+		this.handle = null;
+		this.codec = null;
+		this.compressor = null;
+		this.count = objects.length;
+		this.offsets = null;
+		this.elementsPosition = 0;
+		this.windowSize = 0;
+		this.windows = null;
+	}
+
+	private APICachedCollectionView(APICacheStore.Handle handle, APICacheCodec codec, APICacheCompressor compressor, int count, int[] offsets, long elementsPosition, int windowSize, final int maxWindows)
+	{
+		this.objects = null;
+		this.handle = handle;
+		this.codec = codec;
+		this.compressor = compressor;
+		this.count = count;
+		this.offsets = offsets;
+		this.elementsPosition = elementsPosition;
+		this.windowSize = Math.max(windowSize, 1);
+		this.windows = new LinkedHashMap<Integer, Object[]>(maxWindows + 1, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Integer, Object[]> eldest)
+			{
+				return size() > Math.max(maxWindows, 1);
+			}
+		};
+	}
+
+	/**
+	 * Opens a lazy view over a stored collection entry, or returns null if the entry doesn't have an offset table.
+	 * The view takes ownership of handle only when it is returned.
+	 */
+	static APICachedCollectionView open(APICacheStore.Handle handle, int windowSize, int maxWindows) throws IOException
+	{
+		ByteBuffer header = ByteBuffer.allocate(APICacheEntryFormat.HEADER_SIZE);
+		ByteBuffer fields, table;
+		APICacheCodec codec;
+		APICacheCompressor compressor = null;
+		int[] offsets;
+		int count, flags, entries;
+
+		readFully(handle, header, 0);
+		header.flip();
+		if((header.getShort() & 0xffff) != APICacheEntryFormat.MAGIC)
+			return null;
+		if((header.get() & 0xff) < APICacheEntryFormat.VERSION_OFFSETS)
+			return null;
+		codec = APICacheEntryFormat.codecForId(header.get() & 0xff);
+		flags = header.get();
+		if(codec == null || (flags & APICacheEntryFormat.FLAG_COLLECTION) == 0)
+			return null;
+
+		if((flags & APICacheEntryFormat.FLAG_COMPRESSED) != 0)
+		{
+			// Compressed as one block, there is no way to reach an element without inflating everything before it
+			if((flags & APICacheEntryFormat.FLAG_BLOCKS) == 0)
+				return null;
+			fields = ByteBuffer.allocate(9);
+			readFully(handle, fields, header.capacity());
+			fields.flip();
+			compressor = APICacheEntryFormat.compressorForId(fields.get() & 0xff);
+			if(compressor == null)
+				return null;
+			count = fields.getInt();
+			windowSize = fields.getInt();
+			if(count < 0 || windowSize <= 0)
+				throw new IOException("Malformed cache collection");
+			entries = APICacheEntryFormat.blockCount(count, windowSize) + 1;
+		}
+		else
+		{
+			fields = ByteBuffer.allocate(4);
+			readFully(handle, fields, header.capacity());
+			fields.flip();
+			count = fields.getInt();
+			if(count < 0)
+				throw new IOException("Malformed cache collection");
+			entries = count + 1;
+		}
+
+		table = ByteBuffer.allocate(4 * entries);
+		readFully(handle, table, header.capacity() + fields.capacity());
+		table.flip();
+		offsets = new int[entries];
+		table.asIntBuffer().get(offsets);
+		return new APICachedCollectionView(handle, codec, compressor, count, offsets, header.capacity() + fields.capacity() + table.capacity(), windowSize, maxWindows);
+	}
+
+	public int size()
+	{
+		return this.count;
+	}
+
+	/** Returns the element at index, decoding its window if it isn't loaded. Returns null if the element can't be read. */
+	public synchronized Object get(int index)
+	{
+		Object[] window;
+		int windowIndex;
+
+		if(index < 0 || index >= size())
+			throw new IndexOutOfBoundsException("Index " + index + " of " + size());
+		if(this.objects != null)
+			return this.objects[index];
+
+		windowIndex = index / this.windowSize;
+		window = this.windows.get(windowIndex);
+		if(window == null)
+		{
+			try
+			{
+				window = loadWindow(windowIndex);
+			} catch(IOException e) { return null; }
+			this.windows.put(windowIndex, window);
+		}
+		return window[index - windowIndex * this.windowSize];
+	}
+
+	/** Returns true if the view decodes elements on demand, false if it is backed by a loaded array. */
+	public boolean isLazy()
+	{
+		return this.objects == null;
+	}
+
+	public void close()
+	{
+		if(this.handle != null)
+		{
+			try
+			{
+				this.handle.close();
+			} catch(IOException e) { }
+		}
+		if(this.windows != null)
+		{
+			synchronized(this)
+			{
+				this.windows.clear();
+			}
+		}
+	}
+
+	private Object[] loadWindow(int windowIndex) throws IOException
+	{
+		int start = windowIndex * this.windowSize;
+		int end = Math.min(start + this.windowSize, size());
+		// A compressed window is a block, its bytes are found by the block's offsets
+		int first = (this.compressor != null) ? windowIndex : start;
+		int last = (this.compressor != null) ? windowIndex + 1 : end;
+		ByteBuffer bytes = ByteBuffer.allocate(this.offsets[last] - this.offsets[first]);
+		DataInputStream in;
+		Object[] window = new Object[end - start];
+
+		readFully(this.handle, bytes, this.elementsPosition + this.offsets[first]);
+		if(this.compressor != null)
+			in = APICacheEntryFormat.inflateBlock(this.compressor, bytes.array(), 0, bytes.capacity());
+		else
+			in = new DataInputStream(new ByteArrayInputStream(bytes.array()));
+		for(int i = 0; i < window.length; ++i)
+			window[i] = this.codec.decode(in);
+		return window;
+	}
+
+	private static void readFully(APICacheStore.Handle handle, ByteBuffer buffer, long position) throws IOException
+	{
+		int read;
+
+		while(buffer.hasRemaining())
+		{
+			read = handle.read(position + buffer.position(), buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+			if(read <= 0)
+				throw new IOException("Unexpected end of cache entry");
+			buffer.position(buffer.position() + read);
+		}
+	}
+}
@@ -0,0 +1,34 @@
+package com.symmetric.api;
+
+import java.util.ArrayDeque;
+
+/** Small pool of char buffers for decoding response bodies, so each response doesn't allocate its own. */
+final class APICharBufferPool
+{
+	static final int BUFFER_SIZE = 8192;
+
+	private static final int MAX_POOLED = 8;
+	private static final ArrayDeque<char[]> buffers = new ArrayDeque<char[]>(MAX_POOLED);
+
+	private APICharBufferPool() {}
+
+	static char[] acquire()
+	{
+		char[] buffer;
+
+		synchronized(buffers)
+		{
+			buffer = buffers.poll();
+		}
+		return (buffer != null) ? buffer : new char[BUFFER_SIZE];
+	}
+
+	static void release(char[] buffer)
+	{
+		synchronized(buffers)
+		{
+			if(buffers.size() < MAX_POOLED)
+				buffers.push(buffer);
+		}
+	}
+}
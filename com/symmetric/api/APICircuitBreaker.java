@@ -0,0 +1,112 @@
+package com.symmetric.api;
+
+import java.net.URL;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Stops sending requests to a host that keeps failing, so a backend that is down isn't kept down by every client
+ * retrying. After API.CONFIG_CIRCUIT_BREAKER_THRESHOLD consecutive failures, IOExceptions or 5xx responses, the circuit
+ * opens and requests fail with APICircuitOpenException. Once API.CONFIG_CIRCUIT_BREAKER_DURATION has passed, the next
+ * request is let through as a probe while the others keep failing fast: its success closes the circuit, its failure
+ * opens it for another period. A threshold of 0 disables the breaker.
+ */
+final class APICircuitBreaker
+{
+	static final int DEFAULT_THRESHOLD = 5;
+	static final long DEFAULT_DURATION = 30 * 1000;
+
+	private static final ConcurrentMap<String, APICircuitBreaker> breakers = new ConcurrentHashMap<String, APICircuitBreaker>();
+
+	private final String host;
+	private int failures;
+	private long openUntil;
+	private boolean probing;
+
+	private APICircuitBreaker(String host)
+	{
+		this.host = host;
+	}
+
+	static APICircuitBreaker forURL(URL url)
+	{
+		String host = url.getHost() + ":" + ((url.getPort() != -1) ? url.getPort() : url.getDefaultPort());
+		APICircuitBreaker breaker = breakers.get(host);
+		APICircuitBreaker existing;
+
+		if(breaker == null)
+		{
+			breaker = new APICircuitBreaker(host);
+			existing = breakers.putIfAbsent(host, breaker);
+			if(existing != null)
+				breaker = existing;
+		}
+		return breaker;
+	}
+
+	/** Closes every circuit, for example once connectivity came back. */
+	static void resetAll()
+	{
+		for(APICircuitBreaker breaker : breakers.values())
+			breaker.onSuccess();
+	}
+
+	/**
+	 * Lets a request through or throws APICircuitOpenException. Returns true if the request is the probe, its outcome
+	 * must then be reported with onSuccess, onFailure or onCancel.
+	 */
+	synchronized boolean acquire() throws APICircuitOpenException
+	{
+		long now;
+
+		if(this.failures < getThreshold())
+			return false;
+		now = System.currentTimeMillis();
+		if(now < this.openUntil)
+			throw new APICircuitOpenException(this.host, this.openUntil - now);
+		if(this.probing)
+			throw new APICircuitOpenException(this.host, 0);
+		this.probing = true;
+		return true;
+	}
+
+	synchronized void onSuccess()
+	{
+		this.failures = 0;
+		this.probing = false;
+	}
+
+	synchronized void onFailure()
+	{
+		if(this.failures < Integer.MAX_VALUE)
+			this.failures++;
+		this.probing = false;
+		if(this.failures >= getThreshold())
+			this.openUntil = System.currentTimeMillis() + getDuration();
+	}
+
+	/** The probe ended without telling whether the host recovered, the next request probes instead. */
+	synchronized void onCancel()
+	{
+		this.probing = false;
+	}
+
+	private static int getThreshold()
+	{
+		String threshold = API.getConfiguration(API.CONFIG_CIRCUIT_BREAKER_THRESHOLD);
+		int value = (threshold != null) ? API.parseInt(threshold) : DEFAULT_THRESHOLD;
+		// Disabled, no number of failures reaches it
+		return (value > 0) ? value : Integer.MAX_VALUE;
+	}
+
+	private static long getDuration()
+	{
+		String duration = API.getConfiguration(API.CONFIG_CIRCUIT_BREAKER_DURATION);
+		if(duration == null)
+			return DEFAULT_DURATION;
+		try
+		{
+			return Long.parseLong(duration);
+		} catch(NumberFormatException e) { return DEFAULT_DURATION; }
+	}
+}
@@ -0,0 +1,30 @@
+package com.symmetric.api;
+
+import java.io.IOException;
+
+/** Thrown instead of sending a request to a host that keeps failing, until its circuit breaker lets a probe through. */
+public final class APICircuitOpenException extends IOException
+{
+	private static final long serialVersionUID = 1L;
+
+	private final String host;
+	private final long retryAfter;
+
+	APICircuitOpenException(String host, long retryAfter)
+	{
+		super("Circuit open for " + host + ", retry in " + retryAfter + "ms");
+		this.host = host;
+		this.retryAfter = retryAfter;
+	}
+
+	public String getHost()
+	{
+		return this.host;
+	}
+
+	/** Milliseconds until the next request to the host may be sent as a probe. */
+	public long getRetryAfter()
+	{
+		return this.retryAfter;
+	}
+}
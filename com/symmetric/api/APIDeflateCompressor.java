@@ -0,0 +1,82 @@
+package com.symmetric.api;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/** Default APICache compressor, zlib deflate at a configurable level. */
+public final class APIDeflateCompressor implements APICacheCompressor
+{
+	public static final int ID = 1;
+
+	private static final int BUFFER_SIZE = 8192;
+
+	private final int level;
+
+	/** Uses Deflater.BEST_SPEED, cache entries are written often and the JSON-like data compresses well at any level. */
+	public APIDeflateCompressor()
+	{
+		this(Deflater.BEST_SPEED);
+	}
+
+	public APIDeflateCompressor(int level)
+	{
+		this.level = level;
+	}
+
+	public int getId()
+	{
+		return ID;
+	}
+
+	public void compress(byte[] data, int offset, int length, OutputStream out) throws IOException
+	{
+		Deflater deflater = new Deflater(this.level);
+		byte[] buffer = new byte[BUFFER_SIZE];
+		int count;
+
+		try
+		{
+			deflater.setInput(data, offset, length);
+			deflater.finish();
+			while(!deflater.finished())
+			{
+				count = deflater.deflate(buffer);
+				out.write(buffer, 0, count);
+			}
+		}
+		// Deflater holds native memory until ended
+		finally { deflater.end(); }
+	}
+
+	public void decompress(InputStream in, OutputStream out) throws IOException
+	{
+		Inflater inflater = new Inflater();
+		byte[] input = new byte[BUFFER_SIZE];
+		byte[] buffer = new byte[BUFFER_SIZE];
+		int count;
+
+		try
+		{
+			while(!inflater.finished())
+			{
+				if(inflater.needsInput())
+				{
+					count = in.read(input);
+					if(count < 0)
+						throw new IOException("Unexpected end of compressed cache entry");
+					inflater.setInput(input, 0, count);
+				}
+				count = inflater.inflate(buffer);
+				out.write(buffer, 0, count);
+				if(count == 0 && inflater.needsDictionary())
+					throw new IOException("Malformed compressed cache entry");
+			}
+		}
+		catch(DataFormatException e) { throw new IOException(e.getMessage()); }
+		finally { inflater.end(); }
+	}
+}
@@ -0,0 +1,276 @@
+package com.symmetric.api;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Original APICache storage layout, one <name>.dat file per entry. The name is the key with every byte other than
+ * letters, digits and ._-~ percent encoded, so keys like URL paths with queries make valid file names, and plain keys
+ * keep the names they always had. A key whose name would be too long for the file system is stored under a hash of it
+ * instead, such keys aren't listed by keys(). The size on disk is counted once when the store is opened and kept up to
+ * date as files are replaced and deleted, so it's cheap enough for every stats snapshot.
+ */
+final class APIFileCacheStore implements APICacheStore
+{
+	private static final String FILE_SUFFIX = ".dat";
+	private static final String TEMP_SUFFIX = ".tmp";
+	private static final String HASHED_PREFIX = "%h"; // never produced by the encoding, 'h' isn't a hex digit
+	// File names are limited to 255 bytes, with room for the suffixes
+	private static final int MAX_NAME_LENGTH = 240;
+	private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+	private final File directory;
+	private final AtomicLong size = new AtomicLong();
+
+	private static final class FileHandle implements Handle
+	{
+		private final RandomAccessFile file;
+		private final long length;
+
+		FileHandle(RandomAccessFile file) throws IOException
+		{
+			this.file = file;
+			this.length = file.length();
+		}
+
+		public long length()
+		{
+			return this.length;
+		}
+
+		public int read(long position, byte[] buffer, int offset, int length) throws IOException
+		{
+			this.file.seek(position);
+			return this.file.read(buffer, offset, length);
+		}
+
+		public void close() throws IOException
+		{
+			this.file.close();
+		}
+	}
+
+	APIFileCacheStore(File directory)
+	{
+		File[] files;
+
+		this.directory = directory;
+		files = directory.listFiles();
+		if(files != null)
+		{
+			// A temp file is only left behind by a crash mid-write, retain deletes it
+			for(File file : files)
+			{
+				if(!file.getName().endsWith(TEMP_SUFFIX))
+					this.size.addAndGet(file.length());
+			}
+		}
+	}
+
+	File fileForKey(String key)
+	{
+		return new File(this.directory, nameForKey(key) + FILE_SUFFIX);
+	}
+
+	/** File name of key without the suffix. */
+	static String nameForKey(String key)
+	{
+		StringBuilder name = new StringBuilder(key.length() + 16);
+		byte[] bytes;
+		int b;
+
+		try
+		{
+			bytes = key.getBytes("UTF-8");
+		} catch(UnsupportedEncodingException e) { throw new AssertionError(e); }
+		for(int i = 0; i < bytes.length; ++i)
+		{
+			b = bytes[i] & 0xff;
+			if((b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || (b >= '0' && b <= '9') || b == '.' || b == '_' || b == '-' || b == '~')
+				name.append((char)b);
+			else
+				name.append('%').append(HEX_DIGITS[b >> 4]).append(HEX_DIGITS[b & 0xf]);
+		}
+		// "." and ".." name directories
+		if(name.length() > 0 && name.length() <= 2 && name.charAt(0) == '.' && name.charAt(name.length() - 1) == '.')
+			name.replace(0, 1, "%2E");
+		if(name.length() > MAX_NAME_LENGTH)
+			return HASHED_PREFIX + hash(bytes);
+		return name.toString();
+	}
+
+	/** Key of a file name made by nameForKey, or null for a hashed name. */
+	static String keyForName(String name)
+	{
+		byte[] bytes;
+		int length = 0;
+		char c;
+
+		if(name.startsWith(HASHED_PREFIX))
+			return null;
+		bytes = new byte[name.length()];
+		for(int i = 0; i < name.length(); ++i)
+		{
+			c = name.charAt(i);
+			if(c == '%' && i + 2 < name.length() && Character.digit(name.charAt(i + 1), 16) >= 0 && Character.digit(name.charAt(i + 2), 16) >= 0)
+			{
+				bytes[length++] = (byte)((Character.digit(name.charAt(i + 1), 16) << 4) | Character.digit(name.charAt(i + 2), 16));
+				i += 2;
+			}
+			else
+			{
+				bytes[length++] = (byte)c;
+			}
+		}
+		try
+		{
+			return new String(bytes, 0, length, "UTF-8");
+		} catch(UnsupportedEncodingException e) { throw new AssertionError(e); }
+	}
+
+	private static String hash(byte[] bytes)
+	{
+		StringBuilder hex = new StringBuilder(40);
+
+		try
+		{
+			for(byte b : MessageDigest.getInstance("SHA-1").digest(bytes))
+				hex.append(HEX_DIGITS[(b >> 4) & 0xf]).append(HEX_DIGITS[b & 0xf]);
+		} catch(NoSuchAlgorithmException e) { throw new AssertionError(e); }
+		return hex.toString();
+	}
+
+	public Handle open(String key) throws IOException
+	{
+		File file = fileForKey(key);
+		if(!file.exists())
+			return null;
+		return new FileHandle(new RandomAccessFile(file, "r"));
+	}
+
+	public Output openOutput(String key) throws IOException
+	{
+		final File file = fileForKey(key);
+		final File temp = new File(this.directory, nameForKey(key) + TEMP_SUFFIX);
+		final FileOutputStream out = new FileOutputStream(temp);
+
+		// Write next to the entry and rename on commit, so open handles keep reading the previous bytes
+		return new Output() {
+			@Override
+			public void write(int b) throws IOException
+			{
+				out.write(b);
+			}
+
+			@Override
+			public void write(byte[] buffer, int offset, int length) throws IOException
+			{
+				out.write(buffer, offset, length);
+			}
+
+			@Override
+			protected void finish(boolean commit) throws IOException
+			{
+				long length, previous;
+
+				try
+				{
+					out.close();
+				}
+				catch(IOException e)
+				{
+					temp.delete();
+					throw e;
+				}
+				if(!commit)
+				{
+					temp.delete();
+					return;
+				}
+				length = temp.length();
+				previous = file.length();
+				if(!temp.renameTo(file))
+				{
+					temp.delete();
+					throw new IOException("Could not replace " + file.getName());
+				}
+				APIFileCacheStore.this.size.addAndGet(length - previous);
+			}
+		};
+	}
+
+	public void delete(String key)
+	{
+		deleteFile(fileForKey(key));
+	}
+
+	public void retain(Set<String> live)
+	{
+		HashSet<String> names = new HashSet<String>();
+		String[] files = this.directory.list();
+
+		// Compared by file name so entries stored under a hash are found too
+		for(String key : live)
+			names.add(nameForKey(key) + FILE_SUFFIX);
+		if(files != null)
+		{
+			for(String name : files)
+			{
+				if(name.endsWith(FILE_SUFFIX) && !names.contains(name))
+					deleteFile(new File(this.directory, name));
+				else if(name.endsWith(TEMP_SUFFIX))
+					new File(this.directory, name).delete();
+			}
+		}
+	}
+
+	public void clear()
+	{
+		File[] files = this.directory.listFiles();
+		if(files != null)
+		{
+			for(File file : files)
+				deleteFile(file);
+		}
+	}
+
+	public Set<String> keys()
+	{
+		HashSet<String> keys = new HashSet<String>();
+		String[] names = this.directory.list();
+		String key;
+		if(names != null)
+		{
+			for(String name : names)
+			{
+				if(name.endsWith(FILE_SUFFIX) && (key = keyForName(name.substring(0, name.length() - FILE_SUFFIX.length()))) != null)
+					keys.add(key);
+			}
+		}
+		return keys;
+	}
+
+	public long sizeOnDisk()
+	{
+		return this.size.get();
+	}
+
+	private void deleteFile(File file)
+	{
+		long length = file.length();
+		if(file.delete())
+			this.size.addAndGet(-length);
+	}
+
+	public void close()
+	{
+	}
+}
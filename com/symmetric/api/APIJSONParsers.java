@@ -0,0 +1,131 @@
+package com.symmetric.api;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Common APIResponseParsers. TREE builds the JSONObject or JSONArray straight from the stream, without the intermediate
+ * String. arrayOf and modelsOf go further for lists, each element is bound as it is read so only the results are kept.
+ */
+public final class APIJSONParsers
+{
+	/** Parses any JSON value into JSONObject, JSONArray, String, Integer, Long, Double, Boolean or JSONObject.NULL. */
+	public static final APIResponseParser<Object> TREE = new APIResponseParser<Object>() {
+		public Object parse(JsonReader reader) throws IOException
+		{
+			return readValue(reader);
+		}
+	};
+
+	private APIJSONParsers() {}
+
+	/** Parses a JSON array, handing each element to elementParser. */
+	public static <T> APIResponseParser<List<T>> arrayOf(final APIResponseParser<T> elementParser)
+	{
+		return new APIResponseParser<List<T>>() {
+			public List<T> parse(JsonReader reader) throws IOException
+			{
+				ArrayList<T> list = new ArrayList<T>();
+
+				reader.beginArray();
+				while(reader.hasNext())
+					list.add(elementParser.parse(reader));
+				reader.endArray();
+				return list;
+			}
+		};
+	}
+
+	/** Parses a JSON array of objects into models through their public constructor taking a JSONObject. */
+	public static <T> APIResponseParser<List<T>> modelsOf(Class<T> modelClass)
+	{
+		final Constructor<T> constructor;
+
+		try
+		{
+			constructor = modelClass.getConstructor(JSONObject.class);
+		} catch(NoSuchMethodException e) { throw new IllegalArgumentException(modelClass.getName() + " has no JSONObject constructor"); }
+
+		return arrayOf(new APIResponseParser<T>() {
+			public T parse(JsonReader reader) throws IOException
+			{
+				try
+				{
+					return constructor.newInstance(readObject(reader));
+				} catch(Exception e) { throw new IOException("Could not create " + constructor.getDeclaringClass().getName() + ": " + e.getMessage()); }
+			}
+		});
+	}
+
+	public static Object readValue(JsonReader reader) throws IOException
+	{
+		JsonToken token = reader.peek();
+
+		switch(token)
+		{
+			case BEGIN_OBJECT:
+				return readObject(reader);
+			case BEGIN_ARRAY:
+			{
+				JSONArray array = new JSONArray();
+				reader.beginArray();
+				while(reader.hasNext())
+					array.put(readValue(reader));
+				reader.endArray();
+				return array;
+			}
+			case STRING:
+				return reader.nextString();
+			case NUMBER:
+				return readNumber(reader.nextString());
+			case BOOLEAN:
+				return reader.nextBoolean();
+			case NULL:
+				reader.nextNull();
+				return JSONObject.NULL;
+			default:
+				throw new IOException("Unexpected JSON token " + token);
+		}
+	}
+
+	public static JSONObject readObject(JsonReader reader) throws IOException
+	{
+		JSONObject jsonObject = new JSONObject();
+
+		reader.beginObject();
+		try
+		{
+			while(reader.hasNext())
+				jsonObject.put(reader.nextName(), readValue(reader));
+		} catch(JSONException e) { throw new IOException(e.getMessage()); }
+		reader.endObject();
+		return jsonObject;
+	}
+
+	/** Same number types org.json gives: Integer or Long when integral, otherwise Double. */
+	private static Object readNumber(String number)
+	{
+		long value;
+
+		if(number.indexOf('.') == -1 && number.indexOf('e') == -1 && number.indexOf('E') == -1)
+		{
+			try
+			{
+				value = Long.parseLong(number);
+				if(value == (int)value)
+					return (int)value;
+				return value;
+			} catch(NumberFormatException e) { }
+		}
+		return Double.valueOf(number);
+	}
+}
@@ -0,0 +1,175 @@
+package com.symmetric.api;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Weight bounded map used as the in memory tier of APICache.
+ * Entries evicted from here are not lost, APICache reloads them from the disk tier on the next read.
+ *
+ * Reads are lock free, each hit only stamps the entry with a global access counter. When a put takes the total weight
+ * over the budget, the least recently stamped entries are evicted in one batch down to EVICTION_TARGET of the budget,
+ * so the sort is amortized over many puts.
+ */
+final class APIMemoryCache
+{
+	private static final float EVICTION_TARGET = 0.9f;
+
+	private static final class Entry
+	{
+		final Object value;
+		final long weight;
+		volatile long accessed;
+
+		Entry(Object value, long weight, long accessed)
+		{
+			this.value = value;
+			this.weight = weight;
+			this.accessed = accessed;
+		}
+	}
+
+	// Access stamps are copied before sorting, they keep changing while the eviction runs
+	private static final class Candidate
+	{
+		final String key;
+		final Entry entry;
+		final long accessed;
+
+		Candidate(String key, Entry entry)
+		{
+			this.key = key;
+			this.entry = entry;
+			this.accessed = entry.accessed;
+		}
+	}
+
+	private static final Comparator<Candidate> LEAST_RECENTLY_USED = new Comparator<Candidate>() {
+		public int compare(Candidate lhs, Candidate rhs)
+		{
+			return (lhs.accessed < rhs.accessed) ? -1 : ((lhs.accessed == rhs.accessed) ? 0 : 1);
+		}
+	};
+
+	private final ConcurrentMap<String, Entry> map = new ConcurrentHashMap<String, Entry>();
+	private final AtomicLong clock = new AtomicLong();
+	private final AtomicLong weight = new AtomicLong();
+	private final Object evictionLock = new Object();
+	private volatile APICache.Weigher weigher;
+	private volatile long maxWeight;
+	private volatile long evictions; // only written under evictionLock
+
+	APIMemoryCache(APICache.Weigher weigher, long maxWeight)
+	{
+		this.weigher = weigher;
+		this.maxWeight = maxWeight;
+	}
+
+	Object get(String key)
+	{
+		Entry entry = this.map.get(key);
+		if(entry == null)
+			return null;
+		entry.accessed = this.clock.incrementAndGet();
+		return entry.value;
+	}
+
+	long weigh(String key, Object value)
+	{
+		return Math.max(this.weigher.weigh(key, value), 0);
+	}
+
+	void put(String key, Object value)
+	{
+		Entry entry, previous;
+		long weight;
+
+		weight = weigh(key, value);
+		// An entry larger than the whole budget is only kept on disk
+		if(weight > this.maxWeight)
+		{
+			remove(key);
+			return;
+		}
+		entry = new Entry(value, weight, this.clock.incrementAndGet());
+		previous = this.map.put(key, entry);
+		if(this.weight.addAndGet(weight - ((previous != null) ? previous.weight : 0)) > this.maxWeight)
+			evict();
+	}
+
+	void remove(String key)
+	{
+		Entry entry = this.map.remove(key);
+		if(entry != null)
+			this.weight.addAndGet(-entry.weight);
+	}
+
+	void clear()
+	{
+		for(String key : this.map.keySet())
+			remove(key);
+	}
+
+	long getWeight()
+	{
+		return this.weight.get();
+	}
+
+	long getMaxWeight()
+	{
+		return this.maxWeight;
+	}
+
+	void setMaxWeight(long maxWeight)
+	{
+		this.maxWeight = maxWeight;
+		if(this.weight.get() > maxWeight)
+			evict();
+	}
+
+	/** Number of entries evicted to stay within the budget. */
+	long getEvictionCount()
+	{
+		return this.evictions;
+	}
+
+	void setWeigher(APICache.Weigher weigher)
+	{
+		// Existing weights were computed with the old weigher, so start over
+		this.weigher = weigher;
+		clear();
+	}
+
+	private void evict()
+	{
+		ArrayList<Candidate> candidates;
+		long target;
+
+		synchronized(this.evictionLock)
+		{
+			if(this.weight.get() <= this.maxWeight)
+				return;
+			target = (long)(this.maxWeight * EVICTION_TARGET);
+			candidates = new ArrayList<Candidate>(this.map.size());
+			for(Map.Entry<String, Entry> entry : this.map.entrySet())
+				candidates.add(new Candidate(entry.getKey(), entry.getValue()));
+			Collections.sort(candidates, LEAST_RECENTLY_USED);
+			for(Candidate candidate : candidates)
+			{
+				if(this.weight.get() <= target)
+					break;
+				// Only remove the exact entry that was sorted, a concurrent put may have replaced it
+				if(this.map.remove(candidate.key, candidate.entry))
+				{
+					this.weight.addAndGet(-candidate.entry.weight);
+					this.evictions++;
+				}
+			}
+		}
+	}
+}
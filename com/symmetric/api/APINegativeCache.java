@@ -0,0 +1,177 @@
+package com.symmetric.api;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Short lived memory of reads answered with 404 Not Found or 410 Gone, so they can be answered again without the
+ * network. A Bloom filter in front of the entries answers the common case, a URL that isn't known to be missing,
+ * without taking the lock. Entries under a path are forgotten when a create on that path succeeds. Expired entries are
+ * dropped whenever the filter is rebuilt, and at most MAX_ENTRIES are kept.
+ */
+final class APINegativeCache
+{
+	/** Default time to live of a negative entry in milliseconds, see API.CONFIG_NEGATIVE_CACHE_TTL. */
+	static final long DEFAULT_TTL = 30 * 1000;
+
+	static final int MAX_ENTRIES = 1024;
+
+	private static final int INITIAL_CAPACITY = 256;
+	private static final double FALSE_POSITIVE_RATE = 0.01;
+
+	static final class Entry
+	{
+		final String path;
+		final long deadline;
+		final int responseCode;
+		final String response;
+
+		Entry(String path, long deadline, int responseCode, String response)
+		{
+			this.path = path;
+			this.deadline = deadline;
+			this.responseCode = responseCode;
+			this.response = response;
+		}
+	}
+
+	private static final APINegativeCache sharedInstance = new APINegativeCache();
+
+	// In insertion order, which is the order of the deadlines as long as the TTL doesn't change
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>();
+	private volatile APIBloomFilter filter = new APIBloomFilter(INITIAL_CAPACITY, FALSE_POSITIVE_RATE);
+	private int removed; // entries removed since the filter was built, they still have bits set
+
+	static APINegativeCache getSharedCache()
+	{
+		return sharedInstance;
+	}
+
+	/** Time to live of new entries from the configuration, 0 or less disables negative caching. */
+	static long getTTL()
+	{
+		String ttl = API.getConfiguration(API.CONFIG_NEGATIVE_CACHE_TTL);
+		if(ttl == null)
+			return DEFAULT_TTL;
+		try
+		{
+			return Long.parseLong(ttl);
+		} catch(NumberFormatException e) { return DEFAULT_TTL; }
+	}
+
+	/** Returns the live entry for key, or null if key isn't known to be missing. */
+	Entry get(String key)
+	{
+		Entry entry;
+
+		if(!this.filter.mightContain(key))
+			return null;
+		synchronized(this)
+		{
+			entry = this.entries.get(key);
+			if(entry != null && entry.deadline <= System.currentTimeMillis())
+			{
+				this.entries.remove(key);
+				this.removed++;
+				entry = null;
+			}
+		}
+		return entry;
+	}
+
+	synchronized void put(String key, String path, int responseCode, String response, long ttl)
+	{
+		long now = System.currentTimeMillis();
+
+		// Removed first so a replaced entry moves to the end
+		if(this.entries.remove(key) == null)
+			this.filter.add(key);
+		this.entries.put(key, new Entry(path, now + ttl, responseCode, response));
+		if(this.entries.size() > MAX_ENTRIES)
+			evict(now);
+		if(this.entries.size() > this.filter.getCapacity() || this.removed > this.filter.getCapacity() / 2)
+			rebuild();
+	}
+
+	synchronized int size()
+	{
+		return this.entries.size();
+	}
+
+	/** Forgets the entries for path and everything below it. */
+	synchronized void invalidate(String path)
+	{
+		Iterator<Entry> iterator = this.entries.values().iterator();
+		long now = System.currentTimeMillis();
+		Entry entry;
+
+		while(iterator.hasNext())
+		{
+			entry = iterator.next();
+			if(entry.deadline <= now || isUnder(entry.path, path))
+			{
+				iterator.remove();
+				this.removed++;
+			}
+		}
+		if(this.removed > this.filter.getCapacity() / 2)
+			rebuild();
+	}
+
+	synchronized void clear()
+	{
+		this.entries.clear();
+		this.removed = 0;
+		this.filter = new APIBloomFilter(INITIAL_CAPACITY, FALSE_POSITIVE_RATE);
+	}
+
+	/** Drops the expired entries, and the ones closest to expiring in one batch down to 90% of MAX_ENTRIES. */
+	private void evict(long now)
+	{
+		Iterator<Entry> iterator = this.entries.values().iterator();
+		int target = MAX_ENTRIES * 9 / 10;
+		Entry entry;
+
+		while(iterator.hasNext())
+		{
+			entry = iterator.next();
+			if(entry.deadline <= now || this.entries.size() > target)
+			{
+				iterator.remove();
+				this.removed++;
+			}
+		}
+	}
+
+	/**
+	 * Drops the expired entries and the bits of removed ones, and makes room for more. Reads keep using the old filter
+	 * until it's swapped.
+	 */
+	private void rebuild()
+	{
+		Iterator<Entry> iterator = this.entries.values().iterator();
+		long now = System.currentTimeMillis();
+		APIBloomFilter filter;
+		int capacity = INITIAL_CAPACITY;
+
+		while(iterator.hasNext())
+		{
+			if(iterator.next().deadline <= now)
+				iterator.remove();
+		}
+		while(capacity < this.entries.size() * 2)
+			capacity *= 2;
+		filter = new APIBloomFilter(capacity, FALSE_POSITIVE_RATE);
+		for(String key : this.entries.keySet())
+			filter.add(key);
+		this.filter = filter;
+		this.removed = 0;
+	}
+
+	private static boolean isUnder(String path, String parent)
+	{
+		if(!path.startsWith(parent))
+			return false;
+		return path.length() == parent.length() || parent.endsWith("/") || path.charAt(parent.length()) == '/' || path.charAt(parent.length()) == '?';
+	}
+}
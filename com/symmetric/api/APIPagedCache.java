@@ -0,0 +1,260 @@
+package com.symmetric.api;
+
+import java.io.IOException;
+
+/**
+ * Caches the pages of a paginated list endpoint in APICache, one entry per page, so a range of results can be assembled
+ * from whichever pages are cached and only the missing ones are fetched.
+ *
+ * Pages are keyed by the path and every request parameter except the page, so each query, ordering and page size has
+ * its own listing. The X-Total of the listing is cached next to its pages: a page arriving with a different total means
+ * the listing changed on the server and every cached page of it is dropped. Pages are numbered from 1.
+ */
+public final class APIPagedCache
+{
+	private static final String SEPARATOR_PAGE = "#page=";
+	private static final String SUFFIX_TOTAL = "#total";
+	private static final int UNKNOWN_TOTAL = -1;
+
+	/** Fetches one page of a listing, params has the page set and must be passed to the APIURLConnection so X-Total is read into it. */
+	public interface PageFetcher
+	{
+		public Object[] fetchPage(APIRequestParams params) throws IOException;
+	}
+
+	private final APICache cache;
+	private final String path;
+	private final long expiration;
+	private final boolean sessionOnly;
+
+	public APIPagedCache(APICache cache, String path, long expiration, boolean sessionOnly)
+	{
+		this.cache = cache;
+		this.path = path;
+		this.expiration = expiration;
+		this.sessionOnly = sessionOnly;
+	}
+
+	/**
+	 * Caches the page params.page of the listing, params must have been processed by the response so its total is current.
+	 * Returns true if the total changed and the other pages of the listing were dropped.
+	 */
+	public boolean cachePage(APIRequestParams params, Object[] objects)
+	{
+		String key = listingKey(params);
+		int newTotal = responseTotal(params);
+		boolean changed = false;
+		int total;
+
+		checkParams(params);
+		if(newTotal != UNKNOWN_TOTAL)
+		{
+			total = cachedTotal(key);
+			if(total != UNKNOWN_TOTAL && total != newTotal)
+			{
+				removePages(key, total, params.pageSize);
+				changed = true;
+			}
+			this.cache.cacheObject(newTotal, key + SUFFIX_TOTAL, this.expiration, this.sessionOnly);
+		}
+		this.cache.cacheCollection(objects, key + SEPARATOR_PAGE + params.page, this.expiration, this.sessionOnly);
+		return changed;
+	}
+
+	/** Returns the cached page params.page of the listing, or null if it isn't cached. */
+	public Object[] pageForParams(APIRequestParams params)
+	{
+		String key = listingKey(params);
+
+		checkParams(params);
+		// Without the total there is no telling whether the page belongs to the current listing
+		if(cachedTotal(key) == UNKNOWN_TOTAL)
+			return null;
+		return this.cache.collectionForKey(key + SEPARATOR_PAGE + params.page);
+	}
+
+	/**
+	 * Returns count results of the listing from index start, assembled from cached pages only, or null unless every page
+	 * of the range is cached. The range is cut short at the end of the listing.
+	 */
+	public Object[] cachedRange(APIRequestParams params, int start, int count)
+	{
+		try
+		{
+			return range(params, start, count, null);
+		} catch(IOException e) { return null; }
+	}
+
+	/**
+	 * Returns count results of the listing from index start, fetching and caching only the pages that aren't cached.
+	 * If the total changes while fetching, the range is assembled again so it doesn't mix pages of different listings.
+	 * The range is cut short at the end of the listing, params.total is set if it is known. Returns null if a fetch
+	 * returned null.
+	 */
+	public Object[] range(APIRequestParams params, int start, int count, PageFetcher fetcher) throws IOException
+	{
+		String key = listingKey(params);
+		Object[][] pages;
+		Object[] page;
+		int pageSize = params.pageSize;
+		int originalPage = params.page;
+		boolean originalMissing = params.totalMissing;
+		int total, end, first, last, fetchedTotal;
+		boolean changed;
+
+		checkParams(params);
+		if(start < 0 || count < 0)
+			throw new IllegalArgumentException("Invalid range " + start + "+" + count);
+
+		try
+		{
+			for(int attempt = 0; ; ++attempt)
+			{
+				total = cachedTotal(key);
+				end = (total != UNKNOWN_TOTAL) ? Math.min(start + count, total) : start + count;
+				if(end <= start)
+					return finishRange(params, total, new Object[0]);
+
+				first = start / pageSize + 1;
+				last = (end - 1) / pageSize + 1;
+				pages = new Object[last - first + 1][];
+				changed = false;
+				for(int i = first; i <= last; ++i)
+				{
+					params.page = i;
+					page = (total != UNKNOWN_TOTAL) ? this.cache.collectionForKey(key + SEPARATOR_PAGE + i) : null;
+					if(page == null)
+					{
+						if(fetcher == null)
+							return null;
+						// Stays set unless the fetch processes a response with an X-Total
+						params.totalMissing = true;
+						page = fetcher.fetchPage(params);
+						if(page == null)
+							return null;
+						changed |= cachePage(params, page);
+						fetchedTotal = responseTotal(params);
+						// Learning the total may cut the range short
+						if(fetchedTotal != UNKNOWN_TOTAL && total == UNKNOWN_TOTAL)
+						{
+							total = fetchedTotal;
+							end = Math.min(end, total);
+							last = Math.max(i, (end - 1) / pageSize + 1);
+						}
+						else if(fetchedTotal != UNKNOWN_TOTAL)
+						{
+							total = fetchedTotal;
+						}
+					}
+					pages[i - first] = page;
+				}
+				// Pages before the change may have come from the old listing, one more pass is enough as they are now fetched
+				if(!changed || attempt > 0)
+					return finishRange(params, total, concat(pages, start - (first - 1) * pageSize, Math.max(0, end - start)));
+			}
+		}
+		finally
+		{
+			params.page = originalPage;
+			if(params.totalMissing)
+				params.totalMissing = originalMissing;
+		}
+	}
+
+	/** Drops every cached page of the listing. */
+	public void invalidate(APIRequestParams params)
+	{
+		String key = listingKey(params);
+		int total;
+
+		checkParams(params);
+		total = cachedTotal(key);
+		if(total != UNKNOWN_TOTAL)
+			removePages(key, total, params.pageSize);
+		this.cache.removeEntryForKey(key + SUFFIX_TOTAL);
+	}
+
+	private Object[] finishRange(APIRequestParams params, int total, Object[] range)
+	{
+		if(total != UNKNOWN_TOTAL)
+		{
+			params.total = total;
+			params.totalPages = (total + params.pageSize - 1) / params.pageSize;
+			params.totalMissing = false;
+		}
+		return range;
+	}
+
+	private void removePages(String key, int total, int pageSize)
+	{
+		// A listing that grew may have one cached page past the old end, a short last page isn't cached past the total
+		int pages = (total + pageSize - 1) / pageSize + 1;
+		for(int i = 1; i <= pages; ++i)
+			this.cache.removeEntryForKey(key + SEPARATOR_PAGE + i);
+	}
+
+	/** The total params got from the last response, unknown if it had no X-Total. */
+	private static int responseTotal(APIRequestParams params)
+	{
+		return params.totalMissing ? UNKNOWN_TOTAL : params.total;
+	}
+
+	private int cachedTotal(String key)
+	{
+		Object total = this.cache.entryForKey(key + SUFFIX_TOTAL);
+		return (total instanceof Integer) ? (Integer)total : UNKNOWN_TOTAL;
+	}
+
+	/** The path and every argument of params but the page, args keep the order getArgs gives them. */
+	private String listingKey(APIRequestParams params)
+	{
+		StringBuilder key = new StringBuilder(this.path);
+		Object[] args = params.getArgs();
+		char separator = '?';
+
+		for(int i = 0; i < args.length - 1; i += 2)
+		{
+			if(APIRequestParams.PARAM_PAGE.equals(args[i]))
+				continue;
+			key.append(separator).append(args[i]).append('=').append(args[i + 1]);
+			separator = '&';
+		}
+		return key.toString();
+	}
+
+	private static void checkParams(APIRequestParams params)
+	{
+		if(params.pageSize <= 0)
+			throw new IllegalArgumentException("Paged requests need a page size");
+	}
+
+	private static Object[] concat(Object[][] pages, int offset, int length)
+	{
+		Object[] range;
+		int size = 0, position = 0, n;
+
+		for(Object[] page : pages)
+		{
+			if(page != null)
+				size += page.length;
+		}
+		range = new Object[Math.max(0, Math.min(length, size - offset))];
+		for(Object[] page : pages)
+		{
+			if(page == null)
+				break;
+			if(offset >= page.length)
+			{
+				offset -= page.length;
+				continue;
+			}
+			n = Math.min(page.length - offset, range.length - position);
+			System.arraycopy(page, offset, range, position, n);
+			position += n;
+			offset = 0;
+			if(position == range.length)
+				break;
+		}
+		return range;
+	}
+}
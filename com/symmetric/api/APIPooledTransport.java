@@ -0,0 +1,148 @@
+package com.symmetric.api;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Default transport, HttpURLConnection with keep-alive and a limit on the connections open to each host.
+ *
+ * The keep-alive pool itself is the one of the platform HttpURLConnection, a socket is only returned to it once the
+ * response body was read to the end and closed, rather than the connection being disconnected. Release does that,
+ * draining bodies nobody read up to MAX_DRAIN bytes. The pool size and idle time are the http.maxConnections and
+ * http.keepAliveDuration system properties, which apply to every HttpURLConnection of the process, so they are left to
+ * the platform defaults unless the app calls configure.
+ */
+public final class APIPooledTransport implements APITransport
+{
+	public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 5;
+	/** Keep-alive duration to pass to configure when the app has no preference of its own. */
+	public static final long DEFAULT_KEEP_ALIVE_DURATION = 5 * 60 * 1000;
+
+	/** Bodies larger than this left unread are cheaper to drop with the socket than to read. */
+	private static final int MAX_DRAIN = 64 * 1024;
+
+	private final int maxConnectionsPerHost;
+	private final ConcurrentMap<String, Semaphore> hosts = new ConcurrentHashMap<String, Semaphore>();
+	// Connections that hold a permit, by identity so a second release finds nothing
+	private final ConcurrentMap<HttpURLConnection, Semaphore> permits = new ConcurrentHashMap<HttpURLConnection, Semaphore>();
+
+	public APIPooledTransport()
+	{
+		this(DEFAULT_MAX_CONNECTIONS_PER_HOST);
+	}
+
+	public APIPooledTransport(int maxConnectionsPerHost)
+	{
+		this.maxConnectionsPerHost = Math.max(maxConnectionsPerHost, 1);
+	}
+
+	/**
+	 * Turns keep-alive on and sets the idle sockets kept per host and how long they are kept, in milliseconds, through
+	 * system properties. These apply to every HttpURLConnection of the process, call this once at startup and only if
+	 * the app doesn't set them itself.
+	 */
+	public static void configure(int maxIdleConnections, long keepAliveDuration)
+	{
+		System.setProperty("http.keepAlive", "true");
+		System.setProperty("http.maxConnections", Integer.toString(Math.max(maxIdleConnections, 1)));
+		System.setProperty("http.keepAliveDuration", Long.toString(keepAliveDuration));
+	}
+
+	public int getMaxConnectionsPerHost()
+	{
+		return this.maxConnectionsPerHost;
+	}
+
+	public HttpURLConnection open(URL url) throws IOException
+	{
+		String host = hostKey(url);
+		Semaphore semaphore = this.hosts.get(host);
+		Semaphore existing;
+		HttpURLConnection connection;
+
+		if(semaphore == null)
+		{
+			semaphore = new Semaphore(this.maxConnectionsPerHost, true);
+			existing = this.hosts.putIfAbsent(host, semaphore);
+			if(existing != null)
+				semaphore = existing;
+		}
+		try
+		{
+			semaphore.acquire();
+		} catch(InterruptedException e) { throw new InterruptedIOException("Interrupted waiting for a connection to " + host); }
+
+		try
+		{
+			connection = (HttpURLConnection)url.openConnection();
+		}
+		catch(IOException e)
+		{
+			semaphore.release();
+			throw e;
+		}
+		this.permits.put(connection, semaphore);
+		return connection;
+	}
+
+	public void release(HttpURLConnection connection, boolean reusable)
+	{
+		Semaphore semaphore = this.permits.remove(connection);
+
+		if(semaphore == null)
+			return;
+		try
+		{
+			if(!reusable || !drain(connection))
+				connection.disconnect();
+		}
+		finally
+		{
+			semaphore.release();
+		}
+	}
+
+	/** Reads what is left of the response body and closes it, returns false if the socket can't be reused. */
+	private static boolean drain(HttpURLConnection connection)
+	{
+		InputStream in = null;
+		byte[] buffer;
+		int drained = 0, read;
+
+		try
+		{
+			in = (connection.getResponseCode() >= 400) ? connection.getErrorStream() : connection.getInputStream();
+			if(in == null)
+				return true;
+			buffer = new byte[4096];
+			while((read = in.read(buffer)) != -1)
+			{
+				drained += read;
+				if(drained > MAX_DRAIN)
+					return false;
+			}
+			return true;
+		}
+		catch(IOException e) { return false; }
+		finally
+		{
+			try
+			{
+				if(in != null)
+					in.close();
+			} catch(IOException e) { }
+		}
+	}
+
+	private static String hostKey(URL url)
+	{
+		int port = (url.getPort() != -1) ? url.getPort() : url.getDefaultPort();
+		return url.getProtocol() + "://" + url.getHost() + ":" + port;
+	}
+}
@@ -0,0 +1,155 @@
+package com.symmetric.api;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Lets identical reads share one network request. The first APIURLConnection to execute a request becomes the leader
+ * and performs it, connections executing the same request meanwhile wait for its response code, headers and body.
+ * A participant that aborts only stops waiting, the request itself is disconnected once every participant has aborted.
+ */
+final class APIRequestCoalescer
+{
+	static final class Flight
+	{
+		final APIURLConnection leader;
+		private int participants = 1;
+		private boolean done;
+		private String response;
+		private int responseCode;
+		private Map<String, List<String>> responseHeaders;
+		private IOException error;
+
+		Flight(APIURLConnection leader)
+		{
+			this.leader = leader;
+		}
+	}
+
+	private static final HashMap<String, Flight> flights = new HashMap<String, Flight>();
+	private static long coalesced;
+
+	private APIRequestCoalescer() {}
+
+	/** Performs the request of connection, or waits for an identical one in flight. key identifies identical requests. */
+	static String execute(APIURLConnection connection, String key) throws IOException
+	{
+		Flight flight;
+		boolean leader;
+
+		synchronized(flights)
+		{
+			flight = flights.get(key);
+			leader = (flight == null);
+			if(leader)
+			{
+				flight = new Flight(connection);
+				flights.put(key, flight);
+			}
+			else
+			{
+				synchronized(flight)
+				{
+					flight.participants++;
+				}
+				coalesced++;
+			}
+			connection.flight = flight;
+		}
+
+		try
+		{
+			return leader ? lead(connection, key, flight) : follow(connection, flight);
+		}
+		finally { connection.flight = null; }
+	}
+
+	/** Leaves a flight after aborting. Returns true if nobody is waiting for the request any more, so it can be disconnected. */
+	static boolean leave(Flight flight)
+	{
+		synchronized(flight)
+		{
+			flight.participants--;
+			flight.notifyAll();
+			return flight.participants <= 0 && !flight.done;
+		}
+	}
+
+	static long getCoalescedCount()
+	{
+		synchronized(flights)
+		{
+			return coalesced;
+		}
+	}
+
+	private static String lead(APIURLConnection connection, String key, Flight flight) throws IOException
+	{
+		String response = null;
+		IOException error = null;
+
+		try
+		{
+			response = connection.performRequest();
+		}
+		catch(IOException e) { error = e; }
+		finally
+		{
+			// Requests from now on start a new flight, and waiters are released however the request ended
+			synchronized(flights)
+			{
+				if(flights.get(key) == flight)
+					flights.remove(key);
+			}
+			synchronized(flight)
+			{
+				flight.response = response;
+				flight.error = error;
+				flight.responseHeaders = connection.getResponseHeaders();
+				if(flight.responseHeaders != null)
+					flight.responseCode = connection.getResponseCode();
+				else if(error == null)
+					flight.error = new IOException("Coalesced request failed");
+				flight.done = true;
+				flight.notifyAll();
+			}
+		}
+
+		if(error != null)
+			throw error;
+		// The leader aborted while others still wanted the response
+		return connection.isAborted() ? null : response;
+	}
+
+	private static String follow(APIURLConnection connection, Flight flight) throws IOException
+	{
+		synchronized(flight)
+		{
+			while(!flight.done && !connection.isAborted())
+			{
+				try
+				{
+					flight.wait();
+				}
+				catch(InterruptedException e)
+				{
+					connection.abort();
+					return null;
+				}
+			}
+			if(connection.isAborted())
+				return null;
+			if(flight.error != null)
+			{
+				IOException error = new IOException(flight.error.getMessage());
+				error.initCause(flight.error);
+				throw error;
+			}
+			connection.setResponseSnapshot(flight.responseCode, flight.responseHeaders);
+		}
+		connection.processParams();
+		return flight.response;
+	}
+}
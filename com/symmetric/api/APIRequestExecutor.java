@@ -0,0 +1,197 @@
+package com.symmetric.api;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Shared pool that runs APIURLConnection.executeAsync requests and APIBatch flushes. At most
+ * API.CONFIG_MAX_CONCURRENT_REQUESTS run at once, and at most API.CONFIG_MAX_REQUESTS_PER_HOST of them to one host,
+ * further requests queue up. Idle threads exit after a while.
+ *
+ * Queued requests start by priority, API.PRIORITY_INTERACTIVE first, in the order they were queued within a priority. A
+ * request whose host is at its cap is passed over for the next one. Background requests never take the last free slot,
+ * of the pool or of their host, so a request the user is waiting on doesn't have to wait for prefetches to finish. How long requests
+ * waited in the queue is available from getStats.
+ */
+final class APIRequestExecutor
+{
+	static final int DEFAULT_MAX_CONCURRENT_REQUESTS = 4;
+
+	private static final long KEEP_ALIVE_SECONDS = 30;
+	private static final int PRIORITIES = API.PRIORITY_BACKGROUND + 1;
+
+	private static APIRequestExecutor sharedInstance;
+
+	private final class Task implements Runnable
+	{
+		final Runnable runnable;
+		final int priority;
+		final String host;
+		final long queued = System.nanoTime();
+
+		Task(Runnable runnable, int priority, String host)
+		{
+			this.runnable = runnable;
+			this.priority = priority;
+			this.host = host;
+		}
+
+		public void run()
+		{
+			started(this, System.nanoTime() - this.queued);
+			try
+			{
+				this.runnable.run();
+			}
+			finally { finished(this); }
+		}
+	}
+
+	private final ThreadPoolExecutor executor;
+	private final int maxRequests;
+	private final int maxRequestsPerHost;
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private final ArrayDeque<Task>[] queues = new ArrayDeque[PRIORITIES];
+	private final HashMap<String, Integer> hosts = new HashMap<String, Integer>();
+	private int running;
+	// Queue wait by priority, guarded by this
+	private final long[] startedCounts = new long[PRIORITIES];
+	private final long[] waitNanos = new long[PRIORITIES];
+	private final long[] maxWaitNanos = new long[PRIORITIES];
+
+	private APIRequestExecutor(int maxRequests, int maxRequestsPerHost)
+	{
+		this.maxRequests = maxRequests;
+		this.maxRequestsPerHost = maxRequestsPerHost;
+		for(int i = 0; i < PRIORITIES; ++i)
+			this.queues[i] = new ArrayDeque<Task>();
+		// Tasks are only handed over when a thread is free for them, so this queue stays empty
+		this.executor = new ThreadPoolExecutor(maxRequests, maxRequests, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			public Thread newThread(Runnable runnable)
+			{
+				Thread thread = new Thread(runnable, "APIRequest #" + this.count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		this.executor.allowCoreThreadTimeOut(true);
+	}
+
+	static synchronized APIRequestExecutor getExecutor()
+	{
+		int maxRequests = DEFAULT_MAX_CONCURRENT_REQUESTS;
+		int maxRequestsPerHost;
+		String value;
+
+		if(sharedInstance == null)
+		{
+			value = API.getConfiguration(API.CONFIG_MAX_CONCURRENT_REQUESTS);
+			if(value != null)
+				maxRequests = Math.max(API.parseInt(value), 1);
+			value = API.getConfiguration(API.CONFIG_MAX_REQUESTS_PER_HOST);
+			maxRequestsPerHost = (value != null) ? Math.max(API.parseInt(value), 1) : maxRequests;
+			sharedInstance = new APIRequestExecutor(maxRequests, maxRequestsPerHost);
+		}
+		return sharedInstance;
+	}
+
+	/** Queues runnable, host is the one it sends its request to, or null if it isn't subject to a host cap. */
+	void execute(Runnable runnable, int priority, String host)
+	{
+		if(priority < API.PRIORITY_INTERACTIVE || priority > API.PRIORITY_BACKGROUND)
+			throw new IllegalArgumentException("Unknown priority " + priority);
+		synchronized(this)
+		{
+			this.queues[priority].add(new Task(runnable, priority, host));
+		}
+		dispatch();
+	}
+
+	synchronized APIRequestStats getStats()
+	{
+		int[] queued = new int[PRIORITIES];
+
+		for(int i = 0; i < PRIORITIES; ++i)
+			queued[i] = this.queues[i].size();
+		return new APIRequestStats(this.startedCounts.clone(), this.waitNanos.clone(), this.maxWaitNanos.clone(), queued, this.running);
+	}
+
+	/** Hands queued tasks to threads while there are free slots. */
+	private void dispatch()
+	{
+		Task task;
+
+		while((task = next()) != null)
+			this.executor.execute(task);
+	}
+
+	/** Takes the first queued task that can start now, and counts it as running. */
+	private synchronized Task next()
+	{
+		Iterator<Task> iterator;
+		Task task;
+		Integer count;
+
+		for(int priority = 0; priority < PRIORITIES && this.running < this.maxRequests; ++priority)
+		{
+			// The last slot is kept for requests someone is waiting on
+			if(priority == API.PRIORITY_BACKGROUND && this.maxRequests > 1 && this.running >= this.maxRequests - 1)
+				break;
+			iterator = this.queues[priority].iterator();
+			while(iterator.hasNext())
+			{
+				task = iterator.next();
+				count = (task.host != null) ? this.hosts.get(task.host) : null;
+				if(count != null && count >= hostLimit(priority))
+					continue;
+				iterator.remove();
+				if(task.host != null)
+					this.hosts.put(task.host, (count != null) ? count + 1 : 1);
+				this.running++;
+				return task;
+			}
+		}
+		return null;
+	}
+
+	/** Background requests leave the last slot of a host free too. */
+	private int hostLimit(int priority)
+	{
+		return (priority == API.PRIORITY_BACKGROUND && this.maxRequestsPerHost > 1) ? this.maxRequestsPerHost - 1 : this.maxRequestsPerHost;
+	}
+
+	private synchronized void started(Task task, long waitNanos)
+	{
+		this.startedCounts[task.priority]++;
+		this.waitNanos[task.priority] += waitNanos;
+		if(waitNanos > this.maxWaitNanos[task.priority])
+			this.maxWaitNanos[task.priority] = waitNanos;
+	}
+
+	private void finished(Task task)
+	{
+		Integer count;
+
+		synchronized(this)
+		{
+			this.running--;
+			if(task.host != null)
+			{
+				count = this.hosts.get(task.host);
+				if(count == null || count <= 1)
+					this.hosts.remove(task.host);
+				else
+					this.hosts.put(task.host, count - 1);
+			}
+		}
+		dispatch();
+	}
+}
@@ -25,6 +25,8 @@ public class APIRequestParams implements Parcelable
 	public int pageSize;
 	public int total;
 	public int totalPages;
+	// Set by processResponse when the response had no X-Total, total then still holds an earlier value
+	boolean totalMissing;
 
 	public APIRequestParams() {}
 
@@ -40,7 +42,7 @@ public class APIRequestParams implements Parcelable
 		if(this.orderBy != null)
 		{
 			args.add(PARAM_ORDER_BY);
-			args.add(this.query);
+			args.add(this.orderBy);
 		}
 		if(this.page != 0)
 		{
@@ -61,6 +63,7 @@ public class APIRequestParams implements Parcelable
 		String header;
 
 		header = connection.getHeaderField(X_HEADER_TOTAL);
+		this.totalMissing = (header == null);
 		if(header != null)
 			this.total = Integer.valueOf(header);
 
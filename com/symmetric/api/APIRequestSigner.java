@@ -0,0 +1,217 @@
+package com.symmetric.api;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.security.GeneralSecurityException;
+import java.util.UUID;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Computes the X-Hmac signature of a request body, HMAC-SHA256 keyed with API.CONFIG_HMAC_KEY over the body without
+ * trailing newlines, followed by API.CONFIG_HMAC_SALT if set. With API.CONFIG_HMAC_MODE set to MODE_NONCE a random nonce
+ * and the time in seconds follow as well, so a captured request can't be replayed, they are sent as X-Hmac-Nonce and
+ * X-Hmac-Timestamp.
+ *
+ * The body is fed in any number of pieces, by update or by writing through wrap, so it can be signed in the same pass
+ * that produces or compresses it. Each thread keeps its own Mac, cloned from a prototype initialized once per key, so
+ * signing doesn't look up the algorithm or schedule the key again. A signer must be used on the thread that created it.
+ */
+final class APIRequestSigner
+{
+	static final String MODE_BODY = "body";
+	static final String MODE_NONCE = "nonce";
+
+	private static final String ALGORITHM = "HmacSHA256";
+
+	private static volatile Prototype prototype;
+
+	private static final class Prototype
+	{
+		final int configurationVersion;
+		final String key;
+		final Mac mac;
+		final byte[] salt;
+		final boolean nonce;
+
+		Prototype(int configurationVersion, Prototype previous) throws GeneralSecurityException
+		{
+			String salt = API.getConfiguration(API.CONFIG_HMAC_SALT);
+
+			this.configurationVersion = configurationVersion;
+			this.key = API.getConfiguration(API.CONFIG_HMAC_KEY);
+			// Other settings changed, the initialized Mac is still good
+			if(previous != null && previous.key.equals(this.key))
+			{
+				this.mac = previous.mac;
+			}
+			else
+			{
+				this.mac = Mac.getInstance(ALGORITHM);
+				this.mac.init(new SecretKeySpec(this.key.getBytes(), ALGORITHM));
+			}
+			this.salt = (salt != null) ? salt.getBytes() : null;
+			this.nonce = MODE_NONCE.equals(API.getConfiguration(API.CONFIG_HMAC_MODE));
+		}
+	}
+
+	private static final class ThreadMac
+	{
+		final Mac prototypeMac;
+		final Mac mac;
+
+		ThreadMac(Mac prototypeMac, Mac mac)
+		{
+			this.prototypeMac = prototypeMac;
+			this.mac = mac;
+		}
+	}
+
+	private static final ThreadLocal<ThreadMac> threadMacs = new ThreadLocal<ThreadMac>();
+
+	private final Prototype config;
+	private final Mac mac;
+	// Newlines are held back until something else follows, trailing ones aren't signed
+	private byte[] newlines = new byte[4];
+	private int newlineCount;
+	private boolean started;
+
+	private APIRequestSigner(Prototype config, Mac mac)
+	{
+		this.config = config;
+		this.mac = mac;
+	}
+
+	/** Starts signing a body, throws if the key is missing or the algorithm isn't available. */
+	static APIRequestSigner begin() throws GeneralSecurityException
+	{
+		Prototype config = getPrototype();
+		ThreadMac threadMac = threadMacs.get();
+		Mac mac;
+
+		if(threadMac == null || threadMac.prototypeMac != config.mac)
+		{
+			try
+			{
+				mac = (Mac)config.mac.clone();
+			}
+			catch(CloneNotSupportedException e)
+			{
+				// Some providers can't clone, initializing once per thread still saves it on every request
+				mac = Mac.getInstance(ALGORITHM);
+				mac.init(new SecretKeySpec(config.key.getBytes(), ALGORITHM));
+			}
+			threadMac = new ThreadMac(config.mac, mac);
+			threadMacs.set(threadMac);
+		}
+		threadMac.mac.reset();
+		return new APIRequestSigner(config, threadMac.mac);
+	}
+
+	private static Prototype getPrototype() throws GeneralSecurityException
+	{
+		Prototype current = prototype;
+		int version = API.getConfigurationVersion();
+
+		if(current == null || current.configurationVersion != version)
+		{
+			if(API.getConfiguration(API.CONFIG_HMAC_KEY) == null)
+				throw new GeneralSecurityException("No HMAC key configured");
+			prototype = current = new Prototype(version, current);
+		}
+		return current;
+	}
+
+	/** Returns true if signatures include a nonce and timestamp, which then differ for every request. */
+	boolean isNonceMode()
+	{
+		return this.config.nonce;
+	}
+
+	void update(byte[] buffer, int offset, int length)
+	{
+		int end = offset + length;
+		int start = offset;
+		byte b;
+
+		for(int i = offset; i < end; ++i)
+		{
+			b = buffer[i];
+			if(b != '\n' && b != '\r')
+				continue;
+			// The first byte is signed even if it is a newline
+			if(!this.started && i == start)
+			{
+				this.mac.update(b);
+				this.started = true;
+				start = i + 1;
+				continue;
+			}
+			flushNewlines(buffer, start, i);
+			if(this.newlineCount == this.newlines.length)
+			{
+				byte[] newlines = new byte[this.newlines.length * 2];
+				System.arraycopy(this.newlines, 0, newlines, 0, this.newlineCount);
+				this.newlines = newlines;
+			}
+			this.newlines[this.newlineCount++] = b;
+			start = i + 1;
+		}
+		flushNewlines(buffer, start, end);
+	}
+
+	/** Signs buffer[start, end), which has no newlines, after any newlines held back. */
+	private void flushNewlines(byte[] buffer, int start, int end)
+	{
+		if(start >= end)
+			return;
+		if(this.newlineCount > 0)
+		{
+			this.mac.update(this.newlines, 0, this.newlineCount);
+			this.newlineCount = 0;
+		}
+		this.mac.update(buffer, start, end - start);
+		this.started = true;
+	}
+
+	/** Returns out wrapped so everything written through it is also signed. */
+	OutputStream wrap(OutputStream out)
+	{
+		return new FilterOutputStream(out) {
+			@Override
+			public void write(int b) throws IOException
+			{
+				write(new byte[] {(byte)b}, 0, 1);
+			}
+
+			@Override
+			public void write(byte[] buffer, int offset, int length) throws IOException
+			{
+				update(buffer, offset, length);
+				this.out.write(buffer, offset, length);
+			}
+		};
+	}
+
+	/** Finishes the signature and sets X-Hmac, and in nonce mode X-Hmac-Nonce and X-Hmac-Timestamp, on connection. */
+	void sign(HttpURLConnection connection)
+	{
+		String nonce, timestamp;
+
+		if(this.config.salt != null)
+			this.mac.update(this.config.salt);
+		if(this.config.nonce)
+		{
+			nonce = UUID.randomUUID().toString();
+			timestamp = Long.toString(System.currentTimeMillis() / 1000);
+			this.mac.update(nonce.getBytes());
+			this.mac.update(timestamp.getBytes());
+			connection.setRequestProperty(APIURLConnection.XHEADER_NONCE, nonce);
+			connection.setRequestProperty(APIURLConnection.XHEADER_TIMESTAMP, timestamp);
+		}
+		connection.setRequestProperty(APIURLConnection.XHEADER_HMAC, API.byteArrayToString(this.mac.doFinal()));
+	}
+}
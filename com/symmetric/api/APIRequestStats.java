@@ -0,0 +1,70 @@
+package com.symmetric.api;
+
+/**
+ * Snapshot of the request pool behind APIURLConnection.executeAsync, see APIURLConnection.getRequestStats. Queue wait
+ * is the time from queueing a request to its start, by priority, API.PRIORITY_INTERACTIVE to API.PRIORITY_BACKGROUND.
+ * Counts are totals since the pool was created, take the difference of two snapshots for rates.
+ */
+public final class APIRequestStats
+{
+	private final long[] startedCounts;
+	private final long[] queueWaitNanos;
+	private final long[] maxQueueWaitNanos;
+	private final int[] queuedCounts;
+	private final int runningCount;
+
+	APIRequestStats(long[] startedCounts, long[] queueWaitNanos, long[] maxQueueWaitNanos, int[] queuedCounts, int runningCount)
+	{
+		this.startedCounts = startedCounts;
+		this.queueWaitNanos = queueWaitNanos;
+		this.maxQueueWaitNanos = maxQueueWaitNanos;
+		this.queuedCounts = queuedCounts;
+		this.runningCount = runningCount;
+	}
+
+	/** Requests of priority that left the queue and started. */
+	public long getStartedCount(int priority)
+	{
+		return this.startedCounts[priority];
+	}
+
+	/** Total time the started requests of priority spent queued. */
+	public long getQueueWaitTimeNanos(int priority)
+	{
+		return this.queueWaitNanos[priority];
+	}
+
+	/** Mean time a started request of priority spent queued, 0 if none started. */
+	public double getAverageQueueWaitMillis(int priority)
+	{
+		return (this.startedCounts[priority] > 0) ? this.queueWaitNanos[priority] / 1e6 / this.startedCounts[priority] : 0;
+	}
+
+	public long getMaxQueueWaitNanos(int priority)
+	{
+		return this.maxQueueWaitNanos[priority];
+	}
+
+	/** Requests of priority waiting for a slot when the snapshot was taken. */
+	public int getQueuedCount(int priority)
+	{
+		return this.queuedCounts[priority];
+	}
+
+	public int getRunningCount()
+	{
+		return this.runningCount;
+	}
+
+	@Override
+	public String toString()
+	{
+		StringBuilder s = new StringBuilder("APIRequestStats[running=").append(this.runningCount);
+		for(int i = 0; i < this.startedCounts.length; ++i)
+		{
+			s.append(String.format(" priority%d: started=%d queued=%d wait=%.1f/%.1fms", i, this.startedCounts[i], this.queuedCounts[i],
+				getAverageQueueWaitMillis(i), this.maxQueueWaitNanos[i] / 1e6));
+		}
+		return s.append(']').toString();
+	}
+}
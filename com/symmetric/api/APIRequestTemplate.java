@@ -0,0 +1,112 @@
+package com.symmetric.api;
+
+/**
+ * The parts of a request that only change with the configuration or the session, built once rather than by every
+ * newConnection: the scheme and host prefix of URLs, which is also the Referer, the headers sent with every request,
+ * and the cookie header. A template is replaced on the first request after API.setConfiguration, the cookie header
+ * when the session tokens it was built from are replaced.
+ */
+final class APIRequestTemplate
+{
+	// Builders that grew past this for a long URL are dropped rather than kept by the thread
+	private static final int MAX_BUILDER_CAPACITY = 4096;
+
+	private static volatile APIRequestTemplate current;
+	private static volatile Cookies cookies = new Cookies(null, null);
+
+	private static final ThreadLocal<StringBuilder> builders = new ThreadLocal<StringBuilder>() {
+		@Override
+		protected StringBuilder initialValue()
+		{
+			return new StringBuilder(256);
+		}
+	};
+
+	private static final class Cookies
+	{
+		final String sessionid;
+		final String csrfToken;
+		final String header;
+
+		Cookies(String sessionid, String csrfToken)
+		{
+			StringBuilder header = new StringBuilder();
+
+			this.sessionid = sessionid;
+			this.csrfToken = csrfToken;
+			if(sessionid != null && sessionid.length() > 0)
+				header.append(APIURLConnection.COOKIE_SESSION_ID).append('=').append(sessionid);
+			if(csrfToken != null && csrfToken.length() > 0)
+			{
+				if(header.length() > 0)
+					header.append("; ");
+				header.append(APIURLConnection.COOKIE_CSRF_TOKEN).append('=').append(csrfToken);
+			}
+			this.header = (header.length() > 0) ? header.toString() : null;
+		}
+	}
+
+	final int configurationVersion;
+	/** Scheme and host of plain requests, https if API.CONFIG_HTTPS_ONLY is set. */
+	final String httpBase;
+	final String httpsBase;
+	final String acceptLanguage;
+	/** Name and value pairs of the headers every request has. */
+	final String[] headers;
+
+	private APIRequestTemplate(int configurationVersion)
+	{
+		String host = API.getConfiguration(API.CONFIG_HOST);
+		String nativeApp = "Android " + android.os.Build.VERSION.RELEASE + "; " + APIURLConnection.getDeviceName() + "; " + API.appPackage;
+
+		this.configurationVersion = configurationVersion;
+		this.httpsBase = "https://" + host;
+		this.httpBase = Boolean.parseBoolean(API.getConfiguration(API.CONFIG_HTTPS_ONLY)) ? this.httpsBase : "http://" + host;
+		this.acceptLanguage = API.appContext.getResources().getConfiguration().locale.getLanguage();
+		this.headers = new String[] {
+			APIURLConnection.XHEADER_NATIVE_APP, nativeApp,
+			APIURLConnection.HEADER_ACCEPT, APIURLConnection.CONTENT_TYPE_JSON,
+			// Responses are decoded by openResponseStream, the platform only decodes transparently when this isn't set
+			APIURLConnection.HEADER_ACCEPT_ENCODING, APIURLConnection.ENCODING_GZIP + ", " + APIURLConnection.ENCODING_DEFLATE,
+			APIURLConnection.HEADER_ACCEPT_LANGUAGE, (this.acceptLanguage.length() > 0) ? this.acceptLanguage : null
+		};
+	}
+
+	static APIRequestTemplate get()
+	{
+		APIRequestTemplate template = current;
+		// The version is read before building, so a change made meanwhile is picked up by the next request
+		int version = API.getConfigurationVersion();
+
+		if(template == null || template.configurationVersion != version)
+			current = template = new APIRequestTemplate(version);
+		return template;
+	}
+
+	/** The Cookie header for the session tokens of session, null if it has none. */
+	static String getCookieHeader(APISession session)
+	{
+		String sessionid = session.sessionid;
+		String csrfToken = session.csrfToken;
+		Cookies cookies = APIRequestTemplate.cookies;
+
+		// Tokens are only ever replaced, never modified, so identity tells whether the header is current
+		if(cookies.sessionid != sessionid || cookies.csrfToken != csrfToken)
+			APIRequestTemplate.cookies = cookies = new Cookies(sessionid, csrfToken);
+		return cookies.header;
+	}
+
+	/** The StringBuilder of the calling thread, emptied. Not reentrant, its content must be used before calling again. */
+	static StringBuilder getBuilder()
+	{
+		StringBuilder builder = builders.get();
+
+		if(builder.capacity() > MAX_BUILDER_CAPACITY)
+		{
+			builder = new StringBuilder(256);
+			builders.set(builder);
+		}
+		builder.setLength(0);
+		return builder;
+	}
+}
@@ -0,0 +1,17 @@
+package com.symmetric.api;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a response arrived but its body couldn't be parsed. Unlike other IOExceptions of a request it isn't retried
+ * and doesn't count against the circuit breaker of the host, sending the request again would get the same body.
+ */
+public final class APIResponseParseException extends IOException
+{
+	private static final long serialVersionUID = 1L;
+
+	APIResponseParseException(Throwable cause)
+	{
+		super("Malformed JSON response: " + cause.getMessage(), cause);
+	}
+}
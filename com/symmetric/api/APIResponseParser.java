@@ -0,0 +1,11 @@
+package com.symmetric.api;
+
+import android.util.JsonReader;
+
+import java.io.IOException;
+
+/** Decodes a response body while it streams in, see APIURLConnection.execute(APIResponseParser) and APIJSONParsers. */
+public interface APIResponseParser<T>
+{
+	public T parse(JsonReader reader) throws IOException;
+}
@@ -0,0 +1,90 @@
+package com.symmetric.api;
+
+import java.net.HttpURLConnection;
+import java.util.Random;
+
+/**
+ * When and after how long a failed request is sent again. Reads, updates and deletes are idempotent and retried after an
+ * IOException or a transient status: 408, 429, 500, 502, 503 and 504. Creates carry an Idempotency-Key that stays the
+ * same across attempts, so a server that honors it applies them once, they are only retried if API.CONFIG_RETRY_CREATES
+ * is "true" as that can't be known here.
+ *
+ * Retry n waits a random time between 0 and API.CONFIG_RETRY_DELAY * 2^n, capped at MAX_DELAY. The randomness spreads
+ * out clients that failed together so they don't come back together. A Retry-After in seconds is waited instead.
+ */
+final class APIRetryPolicy
+{
+	static final int DEFAULT_MAX_RETRIES = 2;
+	static final long DEFAULT_DELAY = 500;
+	static final long MAX_DELAY = 30 * 1000;
+
+	static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+	private static final Random random = new Random();
+
+	final int maxRetries;
+	final long delay;
+	final boolean retryCreates;
+
+	APIRetryPolicy(int maxRetries, long delay, boolean retryCreates)
+	{
+		this.maxRetries = Math.max(maxRetries, 0);
+		this.delay = Math.max(delay, 0);
+		this.retryCreates = retryCreates;
+	}
+
+	/** The policy as currently configured, API.CONFIG_MAX_RETRIES of 0 disables retries. */
+	static APIRetryPolicy getPolicy()
+	{
+		String maxRetries = API.getConfiguration(API.CONFIG_MAX_RETRIES);
+		String delay = API.getConfiguration(API.CONFIG_RETRY_DELAY);
+
+		return new APIRetryPolicy((maxRetries != null) ? API.parseInt(maxRetries) : DEFAULT_MAX_RETRIES, (delay != null) ? API.parseInt(delay) : DEFAULT_DELAY, "true".equals(API.getConfiguration(API.CONFIG_RETRY_CREATES)));
+	}
+
+	/** Returns true if a request of action can be sent again after failing retries times already. */
+	boolean canRetry(int action, int retries)
+	{
+		if(retries >= this.maxRetries)
+			return false;
+		return action != API.ACTION_CREATE || this.retryCreates;
+	}
+
+	static boolean isRetryableStatus(int responseCode)
+	{
+		switch(responseCode)
+		{
+			case HttpURLConnection.HTTP_CLIENT_TIMEOUT:
+			case HTTP_TOO_MANY_REQUESTS:
+			case HttpURLConnection.HTTP_INTERNAL_ERROR:
+			case HttpURLConnection.HTTP_BAD_GATEWAY:
+			case HttpURLConnection.HTTP_UNAVAILABLE:
+			case HttpURLConnection.HTTP_GATEWAY_TIMEOUT:
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	/** Returns true if the status means the server, rather than the request, is in trouble. */
+	static boolean isServerFailure(int responseCode)
+	{
+		return responseCode >= 500 && responseCode != HttpURLConnection.HTTP_NOT_IMPLEMENTED && responseCode != HttpURLConnection.HTTP_VERSION;
+	}
+
+	/** Milliseconds to wait before retry number retries + 1, retryAfter is the Retry-After header of the response or null. */
+	long delayBefore(int retries, String retryAfter)
+	{
+		long ceiling;
+
+		if(retryAfter != null)
+		{
+			try
+			{
+				return Math.min(Math.max(Long.parseLong(retryAfter.trim()) * 1000, 0), MAX_DELAY);
+			} catch(NumberFormatException e) { } // An HTTP date, back off as usual
+		}
+		ceiling = Math.min(this.delay << Math.min(retries, 20), MAX_DELAY);
+		return (ceiling > 0) ? (long)(random.nextDouble() * ceiling) : 0;
+	}
+}
@@ -0,0 +1,476 @@
+package com.symmetric.api;
+
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * APICache storage engine that appends entries to a few large segment files instead of one file per key.
+ * An in memory index maps each key to the offset of its latest record, and is rebuilt on open by scanning the segments.
+ * Reads are positional FileChannel reads. Overwritten and deleted records become dead space, a background compactor
+ * copies the live records out of mostly dead segments and deletes them.
+ *
+ * Record layout: byte type, short key length, UTF-8 key, int data length, data.
+ */
+final class APISegmentCacheStore implements APICacheStore
+{
+	private static final String SEGMENT_PREFIX = "segment_";
+	private static final String SEGMENT_SUFFIX = ".dat";
+	private static final long MAX_SEGMENT_SIZE = 4 * 1024 * 1024;
+	private static final float COMPACT_DEAD_RATIO = 0.5f;
+	private static final byte RECORD_PUT = 1;
+	private static final int RECORD_FIXED_SIZE = 1 + 2 + 4;
+
+	private static final class Segment
+	{
+		final int id;
+		final File file;
+		final RandomAccessFile raf;
+		final FileChannel channel;
+		long length;
+		long liveBytes;
+		int readers;
+		boolean retired;
+
+		Segment(int id, File file) throws IOException
+		{
+			this.id = id;
+			this.file = file;
+			this.raf = new RandomAccessFile(file, "rw");
+			this.channel = this.raf.getChannel();
+		}
+
+		void read(ByteBuffer buffer, long position) throws IOException
+		{
+			while(buffer.hasRemaining())
+			{
+				if(this.channel.read(buffer, position + buffer.position()) < 0)
+					throw new IOException("Unexpected end of segment");
+			}
+		}
+	}
+
+	private static final class Location
+	{
+		final Segment segment;
+		final long offset; // offset of the data, after the header
+		final int length;
+		final int recordLength;
+
+		Location(Segment segment, long offset, int length, int recordLength)
+		{
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+			this.recordLength = recordLength;
+		}
+	}
+
+	/** Bytes of an output, appended without copying them out first. */
+	private static final class Buffer extends ByteArrayOutputStream
+	{
+		byte[] bytes()
+		{
+			return this.buf;
+		}
+	}
+
+	private final class SegmentHandle implements Handle
+	{
+		private final Location location;
+		private boolean closed;
+
+		SegmentHandle(Location location)
+		{
+			this.location = location;
+		}
+
+		public long length()
+		{
+			return this.location.length;
+		}
+
+		public int read(long position, byte[] buffer, int offset, int length) throws IOException
+		{
+			if(position >= this.location.length)
+				return -1;
+			length = (int)Math.min(length, this.location.length - position);
+			return this.location.segment.channel.read(ByteBuffer.wrap(buffer, offset, length), this.location.offset + position);
+		}
+
+		public void close()
+		{
+			synchronized(APISegmentCacheStore.this)
+			{
+				if(this.closed)
+					return;
+				this.closed = true;
+				Segment segment = this.location.segment;
+				segment.readers--;
+				if(segment.retired && segment.readers == 0)
+					closeAndDelete(segment);
+			}
+		}
+	}
+
+	private final File directory;
+	private final HashMap<String, Location> index = new HashMap<String, Location>();
+	private final TreeMap<Integer, Segment> segments = new TreeMap<Integer, Segment>();
+	private Segment active;
+	private int nextSegmentId;
+	private boolean compacting;
+
+	APISegmentCacheStore(File directory)
+	{
+		this.directory = directory;
+		load();
+	}
+
+	public synchronized Handle open(String key) throws IOException
+	{
+		Location location = this.index.get(key);
+		if(location == null)
+			return null;
+		location.segment.readers++;
+		return new SegmentHandle(location);
+	}
+
+	public Output openOutput(final String key) throws IOException
+	{
+		final Buffer buffer = new Buffer();
+
+		return new Output() {
+			@Override
+			public void write(int b)
+			{
+				buffer.write(b);
+			}
+
+			@Override
+			public void write(byte[] bytes, int offset, int length)
+			{
+				buffer.write(bytes, offset, length);
+			}
+
+			@Override
+			protected void finish(boolean commit) throws IOException
+			{
+				if(commit)
+					append(key, buffer.bytes(), buffer.size());
+			}
+		};
+	}
+
+	public synchronized void delete(String key)
+	{
+		Location location = this.index.remove(key);
+		if(location != null)
+			markDead(location);
+	}
+
+	public synchronized void retain(Set<String> live)
+	{
+		Iterator<Map.Entry<String, Location>> iterator = this.index.entrySet().iterator();
+		while(iterator.hasNext())
+		{
+			Map.Entry<String, Location> entry = iterator.next();
+			if(!live.contains(entry.getKey()))
+			{
+				iterator.remove();
+				markDead(entry.getValue());
+			}
+		}
+	}
+
+	public synchronized void clear()
+	{
+		for(Segment segment : new ArrayList<Segment>(this.segments.values()))
+			retire(segment);
+		this.index.clear();
+		this.active = null;
+		try
+		{
+			rollSegment();
+		} catch(IOException e) { Log.e(API.TAG, "Cache segment create failed with error: " + e.getMessage()); }
+	}
+
+	public synchronized Set<String> keys()
+	{
+		return new HashSet<String>(this.index.keySet());
+	}
+
+	public synchronized long sizeOnDisk()
+	{
+		long size = 0;
+		for(Segment segment : this.segments.values())
+			size += segment.length;
+		return size;
+	}
+
+	public synchronized void close()
+	{
+		for(Segment segment : this.segments.values())
+		{
+			try
+			{
+				segment.raf.close();
+			} catch(IOException e) { }
+		}
+		this.segments.clear();
+		this.index.clear();
+		this.active = null;
+	}
+
+	private synchronized void append(String key, byte[] data, int length) throws IOException
+	{
+		byte[] keyBytes = key.getBytes("UTF-8");
+		ByteBuffer header = ByteBuffer.allocate(RECORD_FIXED_SIZE + keyBytes.length);
+		ByteBuffer body = ByteBuffer.wrap(data, 0, length);
+		Location location;
+		long position;
+
+		if(keyBytes.length > Short.MAX_VALUE)
+			throw new IOException("Cache key too long");
+		if(this.active == null || this.active.length >= MAX_SEGMENT_SIZE)
+			rollSegment();
+
+		header.put(RECORD_PUT);
+		header.putShort((short)keyBytes.length);
+		header.put(keyBytes);
+		header.putInt(length);
+		header.flip();
+
+		position = this.active.length;
+		try
+		{
+			while(header.hasRemaining())
+				position += this.active.channel.write(header, position);
+			while(body.hasRemaining())
+				position += this.active.channel.write(body, position);
+		}
+		catch(IOException e)
+		{
+			// Drop the partial record so the next append starts on a record boundary
+			this.active.channel.truncate(this.active.length);
+			throw e;
+		}
+
+		location = new Location(this.active, this.active.length + header.limit(), length, header.limit() + length);
+		this.active.length += location.recordLength;
+		this.active.liveBytes += location.recordLength;
+		Location previous = this.index.put(key, location);
+		if(previous != null)
+			markDead(previous);
+	}
+
+	private void markDead(Location location)
+	{
+		Segment segment = location.segment;
+		segment.liveBytes -= location.recordLength;
+		if(segment != this.active && !segment.retired && segment.liveBytes < segment.length * (1 - COMPACT_DEAD_RATIO))
+			startCompaction();
+	}
+
+	private void rollSegment() throws IOException
+	{
+		// Ids are never reused, a retired segment may still be open for reading
+		int id = this.nextSegmentId++;
+		Segment segment = new Segment(id, new File(this.directory, SEGMENT_PREFIX + id + SEGMENT_SUFFIX));
+		segment.channel.truncate(0);
+		this.segments.put(id, segment);
+		this.active = segment;
+	}
+
+	private void retire(Segment segment)
+	{
+		this.segments.remove(segment.id);
+		segment.retired = true;
+		if(segment.readers == 0)
+			closeAndDelete(segment);
+	}
+
+	private void closeAndDelete(Segment segment)
+	{
+		try
+		{
+			segment.raf.close();
+		} catch(IOException e) { }
+		segment.file.delete();
+	}
+
+	private void startCompaction()
+	{
+		if(this.compacting)
+			return;
+		this.compacting = true;
+		Thread thread = new Thread(new Runnable() {
+			public void run()
+			{
+				compact();
+			}
+		}, "APISegmentCacheStore");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private void compact()
+	{
+		Segment victim;
+		ArrayList<String> keys;
+
+		while(true)
+		{
+			synchronized(this)
+			{
+				victim = null;
+				for(Segment segment : this.segments.values())
+				{
+					if(segment != this.active && segment.liveBytes < segment.length * (1 - COMPACT_DEAD_RATIO) && (victim == null || segment.liveBytes < victim.liveBytes))
+						victim = segment;
+				}
+				if(victim == null)
+				{
+					this.compacting = false;
+					return;
+				}
+				keys = new ArrayList<String>();
+				for(Map.Entry<String, Location> entry : this.index.entrySet())
+				{
+					if(entry.getValue().segment == victim)
+						keys.add(entry.getKey());
+				}
+			}
+
+			// Move one record at a time so reads and writes aren't blocked for the whole segment
+			for(String key : keys)
+			{
+				synchronized(this)
+				{
+					Location location = this.index.get(key);
+					if(location == null || location.segment != victim)
+						continue;
+					try
+					{
+						ByteBuffer data = ByteBuffer.allocate(location.length);
+						victim.read(data, location.offset);
+						append(key, data.array(), location.length);
+					}
+					catch(IOException e)
+					{
+						Log.e(API.TAG, "Cache compaction failed with error: " + e.getMessage());
+						this.compacting = false;
+						return;
+					}
+				}
+			}
+
+			synchronized(this)
+			{
+				retire(victim);
+			}
+		}
+	}
+
+	private synchronized void load()
+	{
+		File[] files = this.directory.listFiles();
+		TreeMap<Integer, File> ordered = new TreeMap<Integer, File>();
+
+		if(files != null)
+		{
+			for(File file : files)
+			{
+				String name = file.getName();
+				if(name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX))
+				{
+					try
+					{
+						ordered.put(Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())), file);
+					} catch(NumberFormatException e) { }
+				}
+			}
+		}
+
+		for(Map.Entry<Integer, File> entry : ordered.entrySet())
+		{
+			this.nextSegmentId = entry.getKey() + 1;
+			try
+			{
+				Segment segment = new Segment(entry.getKey(), entry.getValue());
+				this.segments.put(segment.id, segment);
+				scan(segment);
+				this.active = segment;
+			} catch(IOException e) { Log.e(API.TAG, "Cache segment open failed with error: " + e.getMessage()); }
+		}
+
+		try
+		{
+			if(this.active == null)
+				rollSegment();
+			else if(this.active.length < this.active.channel.size())
+				this.active.channel.truncate(this.active.length);
+		} catch(IOException e) { Log.e(API.TAG, "Cache segment create failed with error: " + e.getMessage()); }
+
+		for(Segment segment : this.segments.values())
+		{
+			if(segment != this.active && segment.liveBytes < segment.length * (1 - COMPACT_DEAD_RATIO))
+			{
+				startCompaction();
+				break;
+			}
+		}
+	}
+
+	/** Adds the records of segment to the index. Scanning stops at the first incomplete record, which only the last segment can have. */
+	private void scan(Segment segment) throws IOException
+	{
+		long size = segment.channel.size();
+		long position = 0;
+		ByteBuffer fixed = ByteBuffer.allocate(RECORD_FIXED_SIZE - 4);
+		ByteBuffer lengthBuffer = ByteBuffer.allocate(4);
+		ByteBuffer keyBuffer;
+		int keyLength, length, headerLength;
+		Location location, previous;
+
+		while(position + RECORD_FIXED_SIZE <= size)
+		{
+			fixed.clear();
+			segment.read(fixed, position);
+			fixed.flip();
+			if(fixed.get() != RECORD_PUT)
+				break;
+			keyLength = fixed.getShort();
+			headerLength = RECORD_FIXED_SIZE + keyLength;
+			if(keyLength < 0 || position + headerLength > size)
+				break;
+			keyBuffer = ByteBuffer.allocate(keyLength);
+			segment.read(keyBuffer, position + 3);
+			lengthBuffer.clear();
+			segment.read(lengthBuffer, position + 3 + keyLength);
+			lengthBuffer.flip();
+			length = lengthBuffer.getInt();
+			if(length < 0 || position + headerLength + length > size)
+				break;
+
+			location = new Location(segment, position + headerLength, length, headerLength + length);
+			segment.liveBytes += location.recordLength;
+			previous = this.index.put(new String(keyBuffer.array(), "UTF-8"), location);
+			if(previous != null)
+				previous.segment.liveBytes -= previous.recordLength;
+			position += location.recordLength;
+		}
+		segment.length = position;
+	}
+}
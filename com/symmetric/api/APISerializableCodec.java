@@ -0,0 +1,40 @@
+package com.symmetric.api;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+/** Java serialization codec, the format APICache used before codecs. Values are length prefixed so each one can be decoded on its own. */
+public final class APISerializableCodec implements APICacheCodec
+{
+	public static final int ID = 1;
+
+	public int getId()
+	{
+		return ID;
+	}
+
+	public void encode(Object value, DataOutputStream out) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream objectOut = new ObjectOutputStream(bytes);
+		objectOut.writeObject(value);
+		objectOut.close();
+		out.writeInt(bytes.size());
+		bytes.writeTo(out);
+	}
+
+	public Object decode(DataInputStream in) throws IOException
+	{
+		byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		try
+		{
+			return new ObjectInputStream(new ByteArrayInputStream(bytes)).readObject();
+		} catch(ClassNotFoundException e) { throw new IOException(e.getMessage()); }
+	}
+}
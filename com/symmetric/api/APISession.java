@@ -9,10 +9,8 @@ import java.io.Externalizable;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
-import java.io.OutputStream;
 import java.net.HttpCookie;
 import java.net.HttpURLConnection;
-import java.util.ArrayList;
 import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.Scanner;
@@ -53,8 +51,7 @@ public class APISession
 
 	private static APISession sharedInstance;
 	private int prevUserId;
-	private boolean loginInProgress;
-	private ArrayList<APIURLConnection> waitingConnections;
+	private volatile boolean loginInProgress;
 
 	public interface Credentials extends Externalizable
 	{
@@ -129,18 +126,20 @@ public class APISession
 
 	public void loginWithCredentials(final Credentials credentials)
 	{
-		if(credentials == null || isLoggedIn() || this.loginInProgress)
-			return;
-
-		this.loginInProgress = true;
+		synchronized(this)
+		{
+			if(credentials == null || isLoggedIn() || this.loginInProgress)
+				return;
+			this.loginInProgress = true;
+		}
 		this.credentials = credentials;
+		// Not on the shared request pool, requests waiting for this login could be filling it
 		Thread thread = new Thread(new Runnable() {
 			public void run()
 			{
 				byte[] data;
 				APIURLConnection apiConnection = null;
 				HttpURLConnection connection = null;
-				OutputStream out;
 				try
 				{
 					data = credentials.getJSONObject().toString().getBytes();
@@ -148,28 +147,16 @@ public class APISession
 					apiConnection.newConnection();
 					connection = apiConnection.connection;
 					if(data != null && data.length > 0)
-					{
-						connection.setDoOutput(true);
-						connection.setFixedLengthStreamingMode(data.length);
-						out = connection.getOutputStream();
-						out.write(data);
-						out.close();
-					}
+						apiConnection.writeBody();
 					if(connection.getResponseCode() == 401)
 					{
-						connection.disconnect();
+						apiConnection.releaseConnection(true);
 						data = APISession.this.credentials.getJSONObjectForAuthenticationChallenge(apiConnection).toString().getBytes();
 						apiConnection = new APIURLConnection(API.ACTION_CREATE, API.getConfiguration(API.CONFIG_LOGIN_URL), null, data, Boolean.parseBoolean(API.getConfiguration(API.CONFIG_HTTPS_LOGIN)), false, false);
 						apiConnection.newConnection();
 						connection = apiConnection.connection;
 						if(data != null && data.length > 0)
-						{
-							connection.setDoOutput(true);
-							connection.setFixedLengthStreamingMode(data.length);
-							out = connection.getOutputStream();
-							out.write(data);
-							out.close();
-						}
+							apiConnection.writeBody();
 					}
 					// Process the response, either from a first or challenge connection
 					if(connection.getResponseCode() >= 400)
@@ -177,7 +164,7 @@ public class APISession
 						String error = null;
 						try
 						{
-							error = new JSONObject(API.convertStreamToString(connection.getErrorStream())).getString("message");
+							error = new JSONObject(API.convertStreamToString(apiConnection.openResponseStream())).getString("message");
 						}
 						catch(JSONException e) { }
 						APISession.this.loginFailed(error);
@@ -255,9 +242,9 @@ public class APISession
 				}
 				finally
 				{
-					APISession.this.loginInProgress = false;
-					if(apiConnection.connection != null)
-						apiConnection.connection.disconnect();
+					if(apiConnection != null)
+						apiConnection.releaseConnection(false);
+					APISession.this.loginFinished();
 				}
 			}
 		});
@@ -280,42 +267,34 @@ public class APISession
 		LocalBroadcastManager.getInstance(API.appContext).sendBroadcast(new Intent(ACTION_SESSION_ENDED));
 
 		// Call the logout URL and ignore the result, it doesn't matter if the server actually logs out out the user
-		Thread thread = new Thread(new Runnable() {
-			public void run()
-			{
-				try
-				{
-					APIURLConnection connection = new APIURLConnection(API.ACTION_READ, API.getConfiguration(API.CONFIG_LOGOUT_URL), null, null, Boolean.parseBoolean(API.getConfiguration(API.CONFIG_HTTPS_LOGIN)), false, false);
-					connection.execute();
-				} catch(IOException e) { }
-			}
-		});
-		thread.start();
+		new APIURLConnection(API.ACTION_READ, API.getConfiguration(API.CONFIG_LOGOUT_URL), null, null, Boolean.parseBoolean(API.getConfiguration(API.CONFIG_HTTPS_LOGIN)), false, false).executeAsync();
 	}
 
-	boolean waitForLogin(APIURLConnection connection)
+	/** Wakes up the requests waiting in awaitLogin, whether the login succeeded or not. */
+	private synchronized void loginFinished()
 	{
-		if(this.loginInProgress)
-		{
-			if(this.waitingConnections == null)
-				this.waitingConnections = new ArrayList<APIURLConnection>();
-			this.waitingConnections.add(connection);
-		}
-		return this.loginInProgress;
+		this.loginInProgress = false;
+		notifyAll();
+	}
+
+	/** Blocks until no login is in progress. */
+	synchronized void awaitLogin() throws InterruptedException
+	{
+		while(this.loginInProgress)
+			wait();
 	}
 
+	/** Returns false if the request got a 401 and should be sent again once the session is renewed. */
 	boolean processResponse(APIURLConnection connection) throws IOException
 	{
 		if(connection.getResponseCode() == 401)
 		{
-			if(this.waitingConnections == null)
-				this.waitingConnections = new ArrayList<APIURLConnection>();
-			this.waitingConnections.add(connection);
 			// Renew the session
 			this.sessionid = null;
 			this.csrfToken = null;
 			loginWithCredentials(this.credentials);
-			return false;
+			// Without credentials to renew with the 401 is the response, retrying would only get another
+			return !(this.loginInProgress || isLoggedIn());
 		}
 		return true;
 	}
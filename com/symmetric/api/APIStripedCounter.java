@@ -0,0 +1,52 @@
+package com.symmetric.api;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counter that spreads concurrent increments over a few padded cells picked by thread, so threads updating the same
+ * counter don't contend on one cache line. Reading sums the cells and is not atomic with respect to updates.
+ * Serves the purpose of LongAdder, which isn't available on the Android versions supported.
+ */
+final class APIStripedCounter
+{
+	// 8 longs between cells keeps each one on its own 64 byte cache line
+	private static final int PADDING = 8;
+	private static final int STRIPES = stripeCount();
+
+	private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+	void increment()
+	{
+		add(1);
+	}
+
+	void add(long delta)
+	{
+		this.cells.addAndGet(cellIndex(), delta);
+	}
+
+	long sum()
+	{
+		long sum = 0;
+		for(int i = 0; i < STRIPES; ++i)
+			sum += this.cells.get(i * PADDING);
+		return sum;
+	}
+
+	private static int cellIndex()
+	{
+		// Thread ids are sequential, the multiply spreads neighbouring ids over different cells
+		int hash = (int)Thread.currentThread().getId() * 0x9e3779b9;
+		return ((hash >>> 16) & (STRIPES - 1)) * PADDING;
+	}
+
+	/** Smallest power of two at least the number of processors, at most 16. */
+	private static int stripeCount()
+	{
+		int processors = Math.min(Runtime.getRuntime().availableProcessors(), 16);
+		int stripes = 1;
+		while(stripes < processors)
+			stripes <<= 1;
+		return stripes;
+	}
+}
@@ -0,0 +1,399 @@
+package com.symmetric.api;
+
+import android.util.JsonReader;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.ProtocolException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * In process transport that answers requests with a Handler instead of the network, for exercising the API classes
+ * without a backend. Install it with API.setTransport.
+ *
+ * It models a keep-alive pool per host: a request on a released reusable connection is counted as reusing a socket,
+ * any other as a handshake, which also waits the handshake delay. Comparing the handshake and request counts, or the
+ * requests per second with keep-alive on and off, shows what reuse saves.
+ */
+public final class APIStubTransport implements APITransport
+{
+	/** Answers a request, called on the thread executing it. Returning null answers with 404 Not Found. */
+	public interface Handler
+	{
+		public Response handle(Request request) throws IOException;
+	}
+
+	public static final class Request
+	{
+		public final String method;
+		public final URL url;
+		public final Map<String, List<String>> headers;
+		public final byte[] body;
+
+		Request(String method, URL url, Map<String, List<String>> headers, byte[] body)
+		{
+			this.method = method;
+			this.url = url;
+			this.headers = headers;
+			this.body = body;
+		}
+
+		public String getHeader(String name)
+		{
+			List<String> values = this.headers.get(name);
+			return (values != null && values.size() > 0) ? values.get(values.size() - 1) : null;
+		}
+
+		public String getBodyString()
+		{
+			try
+			{
+				return new String(this.body, "UTF-8");
+			} catch(UnsupportedEncodingException e) { return null; }
+		}
+	}
+
+	public static final class Response
+	{
+		final int code;
+		final byte[] body;
+		final TreeMap<String, List<String>> headers = new TreeMap<String, List<String>>(String.CASE_INSENSITIVE_ORDER);
+
+		public Response(int code, byte[] body)
+		{
+			this.code = code;
+			this.body = (body != null) ? body : new byte[0];
+		}
+
+		public Response(int code, String body)
+		{
+			this(code, toBytes(body));
+		}
+
+		/** Adds a header value, returns this so headers can be chained. */
+		public Response addHeader(String name, String value)
+		{
+			List<String> values = this.headers.get(name);
+			if(values == null)
+			{
+				values = new ArrayList<String>(1);
+				this.headers.put(name, values);
+			}
+			values.add(value);
+			return this;
+		}
+
+		private static byte[] toBytes(String s)
+		{
+			try
+			{
+				return (s != null) ? s.getBytes("UTF-8") : null;
+			} catch(UnsupportedEncodingException e) { return null; }
+		}
+	}
+
+	private final Handler handler;
+	private final HashMap<String, Integer> idle = new HashMap<String, Integer>();
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong handshakes = new AtomicLong();
+	private final AtomicLong disconnects = new AtomicLong();
+	private volatile long handshakeDelay;
+	private volatile boolean keepAlive = true;
+
+	public APIStubTransport(Handler handler)
+	{
+		this.handler = handler;
+	}
+
+	/**
+	 * Returns a handler that answers APIBatch envelopes POSTed to batchPath like a server would, by handing each operation
+	 * to operationHandler as a request of its own, with the headers of the envelope. Other requests go to operationHandler directly.
+	 */
+	public static Handler batchHandler(final String batchPath, final Handler operationHandler)
+	{
+		return new Handler() {
+			public Response handle(Request request) throws IOException
+			{
+				if(!APIURLConnection.METHOD_CREATE.equals(request.method) || !batchPath.equals(request.url.getPath()))
+					return operationHandler.handle(request);
+				return handleBatch(request, operationHandler);
+			}
+		};
+	}
+
+	private static Response handleBatch(Request envelope, Handler operationHandler) throws IOException
+	{
+		InputStream in = new ByteArrayInputStream(envelope.body);
+		JsonReader reader;
+		StringBuilder results = new StringBuilder("[");
+		Response response;
+		String name, method, path, body;
+
+		if(APIURLConnection.ENCODING_GZIP.equalsIgnoreCase(envelope.getHeader(APIURLConnection.HEADER_CONTENT_ENCODING)))
+			in = new GZIPInputStream(in);
+		reader = new JsonReader(new InputStreamReader(in, API.CHARSET_UTF8));
+		reader.beginObject();
+		while(reader.hasNext())
+		{
+			if(!APIBatch.FIELD_OPERATIONS.equals(reader.nextName()))
+			{
+				reader.skipValue();
+				continue;
+			}
+			reader.beginArray();
+			while(reader.hasNext())
+			{
+				method = null;
+				path = null;
+				body = null;
+				reader.beginObject();
+				while(reader.hasNext())
+				{
+					name = reader.nextName();
+					if(APIBatch.FIELD_METHOD.equals(name))
+						method = reader.nextString();
+					else if(APIBatch.FIELD_PATH.equals(name))
+						path = reader.nextString();
+					else if(APIBatch.FIELD_BODY.equals(name))
+						body = APIBatch.toJSONText(APIJSONParsers.readValue(reader));
+					else
+						reader.skipValue();
+				}
+				reader.endObject();
+
+				response = operationHandler.handle(new Request(method, new URL(envelope.url, path), envelope.headers, (body != null) ? body.getBytes("UTF-8") : new byte[0]));
+				if(response == null)
+					response = new Response(HttpURLConnection.HTTP_NOT_FOUND, (byte[])null);
+				if(results.length() > 1)
+					results.append(',');
+				results.append("{\"").append(APIBatch.FIELD_STATUS).append("\":").append(response.code);
+				if(response.body.length > 0)
+					results.append(",\"").append(APIBatch.FIELD_BODY).append("\":").append(new String(response.body, "UTF-8"));
+				results.append('}');
+			}
+			reader.endArray();
+		}
+		reader.endObject();
+		return new Response(HttpURLConnection.HTTP_OK, results.append(']').toString());
+	}
+
+	/** Sets how long opening a connection without an idle socket to reuse takes. */
+	public void setHandshakeDelay(long handshakeDelayMillis)
+	{
+		this.handshakeDelay = handshakeDelayMillis;
+	}
+
+	/** Sets whether released connections can be reused, on by default. */
+	public synchronized void setKeepAlive(boolean keepAlive)
+	{
+		this.keepAlive = keepAlive;
+		if(!keepAlive)
+			this.idle.clear();
+	}
+
+	/** Number of requests answered by the handler. */
+	public long getRequestCount()
+	{
+		return this.requests.get();
+	}
+
+	/** Number of connections opened without an idle socket to reuse. */
+	public long getHandshakeCount()
+	{
+		return this.handshakes.get();
+	}
+
+	/** Number of connections disconnected, which is how a request in progress is stopped. */
+	public long getDisconnectCount()
+	{
+		return this.disconnects.get();
+	}
+
+	public HttpURLConnection open(URL url) throws IOException
+	{
+		String host = url.getHost() + ":" + url.getPort();
+		Integer count;
+		boolean handshake = true;
+
+		synchronized(this)
+		{
+			count = this.idle.get(host);
+			if(count != null && count > 0)
+			{
+				this.idle.put(host, count - 1);
+				handshake = false;
+			}
+		}
+		if(handshake)
+		{
+			this.handshakes.incrementAndGet();
+			if(this.handshakeDelay > 0)
+			{
+				try
+				{
+					Thread.sleep(this.handshakeDelay);
+				} catch(InterruptedException e) { Thread.currentThread().interrupt(); }
+			}
+		}
+		return new StubConnection(url, host);
+	}
+
+	public void release(HttpURLConnection connection, boolean reusable)
+	{
+		StubConnection stub;
+		Integer count;
+
+		if(!(connection instanceof StubConnection))
+			return;
+		stub = (StubConnection)connection;
+		synchronized(this)
+		{
+			if(stub.released)
+				return;
+			stub.released = true;
+			if(reusable && this.keepAlive && stub.response != null)
+			{
+				count = this.idle.get(stub.host);
+				this.idle.put(stub.host, (count != null) ? count + 1 : 1);
+			}
+		}
+	}
+
+	private final class StubConnection extends HttpURLConnection
+	{
+		final String host;
+		boolean released; // guarded by the transport
+		volatile Response response;
+		private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		private Map<String, List<String>> requestHeaders;
+		private boolean disconnected;
+
+		StubConnection(URL url, String host)
+		{
+			super(url);
+			this.host = host;
+		}
+
+		@Override
+		public synchronized void connect()
+		{
+			// Request properties can't be read once connected
+			if(!this.connected)
+			{
+				this.requestHeaders = new TreeMap<String, List<String>>(String.CASE_INSENSITIVE_ORDER);
+				this.requestHeaders.putAll(getRequestProperties());
+				this.connected = true;
+			}
+		}
+
+		@Override
+		public void disconnect()
+		{
+			if(!this.disconnected)
+				APIStubTransport.this.disconnects.incrementAndGet();
+			this.disconnected = true;
+		}
+
+		@Override
+		public boolean usingProxy()
+		{
+			return false;
+		}
+
+		@Override
+		public OutputStream getOutputStream() throws IOException
+		{
+			if(!getDoOutput())
+				throw new ProtocolException("Output not enabled");
+			if(this.response != null)
+				throw new ProtocolException("Response already received");
+			connect();
+			return this.out;
+		}
+
+		@Override
+		public int getResponseCode() throws IOException
+		{
+			return exchange().code;
+		}
+
+		@Override
+		public InputStream getInputStream() throws IOException
+		{
+			Response response = exchange();
+			if(response.code >= 400)
+				throw new FileNotFoundException(this.url.toString());
+			return new ByteArrayInputStream(response.body);
+		}
+
+		@Override
+		public InputStream getErrorStream()
+		{
+			Response response = this.response;
+			return (response != null && response.code >= 400) ? new ByteArrayInputStream(response.body) : null;
+		}
+
+		@Override
+		public String getHeaderField(String name)
+		{
+			List<String> values;
+
+			try
+			{
+				values = exchange().headers.get(name);
+			} catch(IOException e) { return null; }
+			return (values != null && values.size() > 0) ? values.get(values.size() - 1) : null;
+		}
+
+		@Override
+		public Map<String, List<String>> getHeaderFields()
+		{
+			LinkedHashMap<String, List<String>> fields = new LinkedHashMap<String, List<String>>();
+			Response response;
+
+			try
+			{
+				response = exchange();
+			} catch(IOException e) { return Collections.emptyMap(); }
+			// The status line is reported under a null key like the platform connection does
+			fields.put(null, Collections.singletonList("HTTP/1.1 " + response.code));
+			fields.putAll(response.headers);
+			return Collections.unmodifiableMap(fields);
+		}
+
+		/** Hands the request to the handler the first time the response is needed. */
+		private synchronized Response exchange() throws IOException
+		{
+			Response response;
+
+			if(this.response != null)
+				return this.response;
+			if(this.disconnected)
+				throw new IOException("Connection closed");
+			connect();
+
+			APIStubTransport.this.requests.incrementAndGet();
+			response = APIStubTransport.this.handler.handle(new Request(this.method, this.url, this.requestHeaders, this.out.toByteArray()));
+			if(response == null)
+				response = new Response(HTTP_NOT_FOUND, (byte[])null);
+			this.response = response;
+			return response;
+		}
+	}
+}
@@ -0,0 +1,17 @@
+package com.symmetric.api;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * Opens the connections APIURLConnection sends its requests through, see API.setTransport. Every opened connection is
+ * handed back to release exactly once the response was processed, which may return its socket to a keep-alive pool.
+ */
+public interface APITransport
+{
+	/** Opens a connection for url, may block until the host has a connection to spare. */
+	public HttpURLConnection open(URL url) throws IOException;
+	/** Releases a connection, reusable is false if it failed or was aborted and its socket must not be reused. Releasing a connection twice has no effect. */
+	public void release(HttpURLConnection connection, boolean reusable);
+}
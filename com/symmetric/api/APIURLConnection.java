@@ -1,21 +1,35 @@
 package com.symmetric.api;
 
+import android.util.JsonReader;
 import android.util.Log;
 
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
 import java.io.InputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.ProtocolException;
+import java.security.GeneralSecurityException;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
+import java.util.TreeMap;
 import java.util.UUID;
-
-import javax.crypto.SecretKey;
-import javax.crypto.spec.SecretKeySpec;
-import javax.crypto.Mac;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -32,35 +46,66 @@ public final class APIURLConnection
 
 	static final String HEADER_ACCEPT = "Accept";
 	static final String HEADER_ACCEPT_LANGUAGE = "Accept-Language";
+	static final String HEADER_ACCEPT_ENCODING = "Accept-Encoding";
+	static final String HEADER_CONTENT_ENCODING = "Content-Encoding";
 	static final String HEADER_CONTENT_TYPE = "Content-Type";
 	static final String HEADER_CSRF_TOKEN = "X-CSRFToken";
 	static final String HEADER_COOKIE = "Cookie";
 	static final String HEADER_REFERER = "Referer";
+	static final String HEADER_ETAG = "ETag";
+	static final String HEADER_LAST_MODIFIED = "Last-Modified";
+	static final String HEADER_IF_NONE_MATCH = "If-None-Match";
+	static final String HEADER_IF_MODIFIED_SINCE = "If-Modified-Since";
+	static final String HEADER_RETRY_AFTER = "Retry-After";
+	static final String HEADER_IDEMPOTENCY_KEY = "Idempotency-Key";
 	static final String XHEADER_NATIVE_APP = "X-Native-App";
 	static final String XHEADER_HMAC = "X-Hmac";
 	static final String XHEADER_NONCE = "X-Hmac-Nonce";
+	static final String XHEADER_TIMESTAMP = "X-Hmac-Timestamp";
+
+	static final String ENCODING_GZIP = "gzip";
+	static final String ENCODING_DEFLATE = "deflate";
 
 	static final String METHOD_READ = "GET";
 	static final String METHOD_CREATE = "POST";
 	static final String METHOD_UPDATE = "PUT";
 	static final String METHOD_DELETE = "DELETE";
 
+	// Small enough that a chunk is still in the CPU cache when gzip reads it after the signer
+	private static final int ENCODE_CHUNK_SIZE = 8192;
+
 	static final String COOKIE_SESSION_ID = "sessionid";
 	static final String COOKIE_CSRF_TOKEN = "csrftoken";
 
-	private static String acceptLanguage;
-	private static String nativeApp;
-
 	HttpURLConnection connection;
+	private APITransport transport;
 	private int action;
 	private String path;
 	private APIRequestParams params;
 	private byte[] data;
+	private byte[] body; // data as sent, gzipped if it is over API.CONFIG_GZIP_REQUEST_THRESHOLD
 	private boolean https;
 	private boolean sign;
 	private boolean loginRequired;
+	private int priority = API.PRIORITY_NORMAL;
 	private HashMap<String, String> requestProperties = new HashMap<String, String>();
-	private boolean aborted;
+	private volatile boolean aborted;
+	private boolean negativeCacheHit;
+	private boolean retrying;
+	private String idempotencyKey; // the same for every attempt of a create
+	private final Object backoffLock = new Object();
+	private String errorResponse;
+	// Response code and headers kept after the connection is released, or copied from a coalesced request
+	private int responseCode = -1;
+	private Map<String, List<String>> responseHeaders;
+	volatile APIRequestCoalescer.Flight flight;
+
+	/** Receives the outcome of executeAsync, not called for requests that were cancelled or aborted. */
+	public interface Callback
+	{
+		public void onResponse(APIURLConnection connection, String response);
+		public void onFailure(APIURLConnection connection, IOException e);
+	}
 
 	public APIURLConnection(int action, String path, APIRequestParams params, byte[] data, boolean https, boolean loginRequired, boolean sign)
 	{
@@ -74,29 +119,319 @@ public final class APIURLConnection
 	}
 
 	public String execute() throws IOException
+	{
+		APINegativeCache.Entry entry;
+
+		if(!awaitSession())
+			return null;
+		entry = negativeCacheEntry();
+		if(entry != null)
+			return entry.response;
+
+		// Identical reads in flight share one request, a retry after renewing the session is already part of one
+		if(this.flight == null && isCoalescable())
+			return APIRequestCoalescer.execute(this, requestKey());
+		return performRequest();
+	}
+
+	/**
+	 * Executes the request and hands a successful response body to parser as it arrives, so it is never held as a whole
+	 * String. Unlike execute(), this reads the body of creates, updates and deletes as well, except a 204 No Content.
+	 * Returns what parser returned, or null for error responses whose body is then available from getErrorResponse.
+	 * Streamed requests aren't coalesced, there would be no body to share. A body the parser can't read throws
+	 * APIResponseParseException, which isn't retried.
+	 */
+	public <T> T execute(APIResponseParser<T> parser) throws IOException
+	{
+		APINegativeCache.Entry entry;
+
+		if(!awaitSession())
+			return null;
+		entry = negativeCacheEntry();
+		if(entry != null)
+		{
+			this.errorResponse = entry.response;
+			return null;
+		}
+		return performRequest(parser);
+	}
+
+	/** Body of the last error response of execute(APIResponseParser). */
+	public String getErrorResponse()
+	{
+		return this.errorResponse;
+	}
+
+	/** Waits for a valid session, returns false if interrupted. */
+	private boolean awaitSession()
+	{
+		if(this.loginRequired)
+		{
+			try
+			{
+				APISession.getSharedSession().awaitLogin();
+			} catch(InterruptedException e) { return false; }
+		}
+		return true;
+	}
+
+	/** Reads recently answered with 404 or 410 are answered the same way without the network. */
+	private APINegativeCache.Entry negativeCacheEntry()
+	{
+		APINegativeCache.Entry entry = null;
+
+		this.negativeCacheHit = false;
+		if(isRead())
+		{
+			entry = APINegativeCache.getSharedCache().get(requestKey());
+			if(entry != null)
+			{
+				setResponseSnapshot(entry.responseCode, Collections.<String, List<String>>emptyMap());
+				this.negativeCacheHit = true;
+			}
+		}
+		return entry;
+	}
+
+	/** Same as executeAsync(null, false), the response is only available through the future. */
+	public Future<String> executeAsync()
+	{
+		return executeAsync(null, false);
+	}
+
+	/**
+	 * Executes the request on the shared request pool, see API.CONFIG_MAX_CONCURRENT_REQUESTS. It is queued by the priority
+	 * set with setPriority until a slot for its host is free. Cancelling the returned future aborts the request. callback may be null, if callbackOnUiThread it is called through API.runOnUiThread.
+	 */
+	public Future<String> executeAsync(final Callback callback, final boolean callbackOnUiThread)
+	{
+		URL url;
+		FutureTask<String> task = new FutureTask<String>(new Callable<String>() {
+			public String call() throws IOException
+			{
+				return execute();
+			}
+		}) {
+			@Override
+			public boolean cancel(boolean mayInterruptIfRunning)
+			{
+				boolean cancelled = super.cancel(mayInterruptIfRunning);
+				if(cancelled)
+					abort();
+				return cancelled;
+			}
+
+			@Override
+			protected void done()
+			{
+				Runnable delivery;
+
+				if(callback == null || isCancelled() || APIURLConnection.this.aborted)
+					return;
+				delivery = deliveryOf(this, callback);
+				if(callbackOnUiThread)
+					API.runOnUiThread(delivery);
+				else
+					delivery.run();
+			}
+		};
+		url = buildURL();
+		APIRequestExecutor.getExecutor().execute(task, this.priority, (url != null) ? url.getAuthority() : null);
+		return task;
+	}
+
+	private Runnable deliveryOf(final Future<String> future, final Callback callback)
 	{
 		String response = null;
+		IOException error = null;
+
+		try
+		{
+			response = future.get();
+		}
+		catch(ExecutionException e)
+		{
+			if(e.getCause() instanceof IOException)
+				error = (IOException)e.getCause();
+			else if(e.getCause() instanceof RuntimeException)
+				throw (RuntimeException)e.getCause();
+			else
+				error = new IOException(e.getCause());
+		}
+		catch(InterruptedException e) { error = new IOException("Interrupted"); }
+
+		final String finalResponse = response;
+		final IOException finalError = error;
+		return new Runnable() {
+			public void run()
+			{
+				if(finalError != null)
+					callback.onFailure(APIURLConnection.this, finalError);
+				else
+					callback.onResponse(APIURLConnection.this, finalResponse);
+			}
+		};
+	}
+
+	/** Sets the priority of executeAsync: API.PRIORITY_INTERACTIVE, API.PRIORITY_NORMAL which is the default, or API.PRIORITY_BACKGROUND. */
+	public void setPriority(int priority)
+	{
+		if(priority < API.PRIORITY_INTERACTIVE || priority > API.PRIORITY_BACKGROUND)
+			throw new IllegalArgumentException("Unknown priority " + priority);
+		this.priority = priority;
+	}
+
+	public int getPriority()
+	{
+		return this.priority;
+	}
+
+	/** Queue wait and load of the pool executeAsync runs requests on, for tuning its limits. */
+	public static APIRequestStats getRequestStats()
+	{
+		return APIRequestExecutor.getExecutor().getStats();
+	}
+
+	/** Returns true if the last response came from the negative cache rather than the server. */
+	public boolean isNegativeCacheHit()
+	{
+		return this.negativeCacheHit;
+	}
 
-		// Wait for a valid session
-		if(this.loginRequired && APISession.getSharedSession().waitForLogin(this))
+	/** Forgets every read answered with 404 or 410, for example after resources were created outside of the app. */
+	public static void clearNegativeCache()
+	{
+		APINegativeCache.getSharedCache().clear();
+	}
+
+	/** Number of requests that were answered by an identical request already in flight instead of the network. */
+	public static long getCoalescedRequestCount()
+	{
+		return APIRequestCoalescer.getCoalescedCount();
+	}
+
+	String performRequest() throws IOException
+	{
+		return performRequest(null);
+	}
+
+	/**
+	 * Sends the request, and again after an IOException or a transient status as long as APIRetryPolicy allows it. The
+	 * response of the last attempt is returned. Requests to a host whose APICircuitBreaker is open fail fast with
+	 * APICircuitOpenException, a circuit that opens between retries ends them with the outcome of the last attempt.
+	 */
+	private <T> T performRequest(APIResponseParser<T> parser) throws IOException
+	{
+		APIRetryPolicy policy;
+		APICircuitBreaker breaker;
+		URL url;
+		T response, lastResponse = null;
+		IOException lastError = null;
+		boolean probe, reported;
+
+		// Sending again after renewing the session is part of the attempt that got the 401
+		if(this.retrying || (url = buildURL()) == null)
+			return sendRequest(parser);
+		policy = APIRetryPolicy.getPolicy();
+		breaker = APICircuitBreaker.forURL(url);
+		this.retrying = true;
+		try
 		{
-			try {
-				synchronized(this) { this.wait(); }
-			} catch(InterruptedException e) { return null; }
+			for(int retries = 0; ; ++retries)
+			{
+				try
+				{
+					probe = breaker.acquire();
+				}
+				catch(APICircuitOpenException e)
+				{
+					if(retries == 0)
+						throw e;
+					if(lastError != null)
+						throw lastError;
+					return lastResponse;
+				}
+				reported = false;
+				try
+				{
+					try
+					{
+						response = sendRequest(parser);
+					}
+					catch(APIResponseParseException e)
+					{
+						// The host answered, the same body would come back again
+						breaker.onSuccess();
+						reported = true;
+						throw e;
+					}
+					catch(IOException e)
+					{
+						if(this.aborted)
+							throw e;
+						breaker.onFailure();
+						reported = true;
+						if(!policy.canRetry(this.action, retries))
+							throw e;
+						Log.w(API.TAG, "Retrying " + this.path + " after " + e);
+						lastError = e;
+						backoff(policy.delayBefore(retries, null));
+						continue;
+					}
+					if(APIRetryPolicy.isServerFailure(this.responseCode))
+						breaker.onFailure();
+					else
+						breaker.onSuccess();
+					reported = true;
+					if(this.aborted || !APIRetryPolicy.isRetryableStatus(this.responseCode) || !policy.canRetry(this.action, retries))
+						return response;
+					lastResponse = response;
+					lastError = null;
+					backoff(policy.delayBefore(retries, getHeaderField(HEADER_RETRY_AFTER)));
+				}
+				finally
+				{
+					if(probe && !reported)
+						breaker.onCancel();
+				}
+			}
 		}
+		finally { this.retrying = false; }
+	}
+
+	/** Waits before the next attempt, abort ends the wait. */
+	private void backoff(long delay) throws IOException
+	{
+		long deadline = System.currentTimeMillis() + delay;
+		long remaining;
+
+		synchronized(this.backoffLock)
+		{
+			while(!this.aborted && (remaining = deadline - System.currentTimeMillis()) > 0)
+			{
+				try
+				{
+					this.backoffLock.wait(remaining);
+				} catch(InterruptedException e) { throw new InterruptedIOException("Interrupted while waiting to retry"); }
+			}
+		}
+		if(this.aborted)
+			throw new IOException("Request aborted");
+	}
 
+	/** Sends the request once, a successful read is decoded by parser if there is one, otherwise returned as a String. */
+	@SuppressWarnings("unchecked")
+	private <T> T sendRequest(APIResponseParser<T> parser) throws IOException
+	{
+		Object response = null;
+		int code;
+
+		this.errorResponse = null;
 		try
 		{
 			newConnection();
 			if(this.data != null && this.data.length > 0)
-			{
-				OutputStream out;
-				this.connection.setDoOutput(true);
-				this.connection.setFixedLengthStreamingMode(this.data.length);
-				out = this.connection.getOutputStream();
-				out.write(this.data);
-				out.close();
-			}
+				writeBody();
 			else
 			{
 				this.connection.connect();
@@ -104,26 +439,174 @@ public final class APIURLConnection
 
 			// Try with a new connection if the request failed due to the session
 			if(this.loginRequired && !APISession.getSharedSession().processResponse(this))
-				return execute();
+			{
+				// Don't hold on to a connection of the host while the session is renewed through it
+				releaseConnection(false);
+				return (parser != null) ? execute(parser) : (T)execute();
+			}
 
-			if(this.connection.getResponseCode() >= 400)
-				response = API.convertStreamToString(this.connection.getErrorStream());
+			code = this.connection.getResponseCode();
+			if(code >= 400)
+				this.errorResponse = readResponse();
+			else if(parser != null)
+			{
+				// Neither has a body to parse, a 304 leaves the revalidated copy as it is
+				if(code != HttpURLConnection.HTTP_NO_CONTENT && code != HttpURLConnection.HTTP_NOT_MODIFIED)
+					response = parseResponse(parser);
+			}
 			else if(this.action == API.ACTION_LIST || this.action == API.ACTION_READ)
-				response = API.convertStreamToString(this.connection.getInputStream());
-
-			if(this.params != null)
-				this.params.processResponse(this);
+				response = readResponse();
+			// String responses carry the error body like they always did
+			if(parser == null && this.errorResponse != null)
+				response = this.errorResponse;
+
+			setResponseSnapshot(this.connection.getResponseCode(), this.connection.getHeaderFields());
+			processParams();
+			updateNegativeCache(this.errorResponse);
 		}
 		catch(IOException e) { throw e; }
-		finally { this.connection.disconnect(); }
+		// The socket can go back to the keep-alive pool once the whole response was received
+		finally { releaseConnection(!this.aborted && this.responseHeaders != null); }
+
+		return (T)response;
+	}
+
+	/** Sends the request body, newConnection must have been called. */
+	void writeBody() throws IOException
+	{
+		OutputStream out;
+
+		this.connection.setDoOutput(true);
+		this.connection.setFixedLengthStreamingMode(this.body.length);
+		out = this.connection.getOutputStream();
+		out.write(this.body);
+		out.close();
+	}
+
+	/**
+	 * Opens the body of the response, or of the error response, decoded according to its Content-Encoding. Closing it
+	 * leaves the connection stream to the transport, which may still drain it for reuse.
+	 */
+	InputStream openResponseStream() throws IOException
+	{
+		InputStream in = (this.connection.getResponseCode() >= 400) ? this.connection.getErrorStream() : this.connection.getInputStream();
+		String encoding = this.connection.getContentEncoding();
+
+		if(in == null)
+			return null;
+		in = new FilterInputStream(in) {
+			@Override
+			public void close() { }
+		};
+		if(ENCODING_GZIP.equalsIgnoreCase(encoding))
+			return new GZIPInputStream(in);
+		if(ENCODING_DEFLATE.equalsIgnoreCase(encoding))
+			return new InflaterInputStream(in);
+		return in;
+	}
+
+	private String readResponse() throws IOException
+	{
+		InputStream in = openResponseStream();
+		try
+		{
+			return API.convertStreamToString(in);
+		}
+		finally
+		{
+			if(in != null)
+				in.close();
+		}
+	}
+
+	/** JsonReader buffers what it reads itself, so the UTF-8 decoder reads straight from the connection. */
+	private <T> T parseResponse(APIResponseParser<T> parser) throws IOException
+	{
+		FailureTrackingInputStream in = new FailureTrackingInputStream(openResponseStream());
+		JsonReader reader = new JsonReader(new InputStreamReader(in, API.CHARSET_UTF8));
+		try
+		{
+			return parser.parse(reader);
+		}
+		catch(IOException e)
+		{
+			// Reading the body failing is a network error, anything else the parser throws is about the body itself
+			if(in.failed)
+				throw e;
+			throw new APIResponseParseException(e);
+		}
+		catch(IllegalStateException e) { throw new APIResponseParseException(e); }
+		catch(NumberFormatException e) { throw new APIResponseParseException(e); }
+		finally { reader.close(); }
+	}
+
+	/** Remembers whether reading the underlying stream ever failed. */
+	private static final class FailureTrackingInputStream extends FilterInputStream
+	{
+		volatile boolean failed;
+
+		FailureTrackingInputStream(InputStream in)
+		{
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException
+		{
+			try
+			{
+				return super.read();
+			}
+			catch(IOException e)
+			{
+				this.failed = true;
+				throw e;
+			}
+		}
 
-		return response;
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException
+		{
+			try
+			{
+				return super.read(buffer, offset, length);
+			}
+			catch(IOException e)
+			{
+				this.failed = true;
+				throw e;
+			}
+		}
 	}
 
 	public void abort()
 	{
-		this.connection.disconnect();
+		APIRequestCoalescer.Flight flight = this.flight;
+
 		this.aborted = true;
+		// A coalesced request is only stopped once nobody is waiting for it
+		if(flight == null)
+			stop(this);
+		else if(APIRequestCoalescer.leave(flight))
+			stop(flight.leader);
+	}
+
+	/** Disconnects the request of connection, or ends its wait before a retry. */
+	private static void stop(APIURLConnection connection)
+	{
+		connection.aborted = true;
+		if(connection.connection != null)
+			connection.connection.disconnect();
+		synchronized(connection.backoffLock)
+		{
+			connection.backoffLock.notifyAll();
+		}
+	}
+
+	/** Closes the circuit breaker of every host, so requests are sent again right away, for example once connectivity came back. */
+	public static void resetCircuitBreakers()
+	{
+		APICircuitBreaker.resetAll();
 	}
 
 	public boolean isAborted()
@@ -133,12 +616,92 @@ public final class APIURLConnection
 
 	public int getResponseCode() throws IOException
 	{
+		if(this.responseHeaders != null)
+			return this.responseCode;
 		return this.connection.getResponseCode();
 	}
 
 	public String getHeaderField(String key)
 	{
-		return this.connection.getHeaderField(key);
+		List<String> values;
+
+		if(this.responseHeaders == null)
+			return this.connection.getHeaderField(key);
+		values = this.responseHeaders.get(key);
+		return (values != null && values.size() > 0) ? values.get(values.size() - 1) : null;
+	}
+
+	/** Response headers by case insensitive name, null until the response was received. */
+	Map<String, List<String>> getResponseHeaders()
+	{
+		return this.responseHeaders;
+	}
+
+	void setResponseSnapshot(int responseCode, Map<String, List<String>> headers)
+	{
+		TreeMap<String, List<String>> snapshot = new TreeMap<String, List<String>>(String.CASE_INSENSITIVE_ORDER);
+
+		for(Entry<String, List<String>> entry : headers.entrySet())
+		{
+			// The status line is stored under a null key
+			if(entry.getKey() != null)
+				snapshot.put(entry.getKey(), entry.getValue());
+		}
+		this.responseCode = responseCode;
+		this.responseHeaders = snapshot;
+	}
+
+	/** Hands the connection back to the transport it was opened with, see APITransport.release. */
+	void releaseConnection(boolean reusable)
+	{
+		if(this.connection != null)
+			this.transport.release(this.connection, reusable);
+	}
+
+	void processParams()
+	{
+		if(this.params != null)
+			this.params.processResponse(this);
+	}
+
+	private boolean isRead()
+	{
+		return (this.action == API.ACTION_LIST || this.action == API.ACTION_READ) && (this.data == null || this.data.length == 0);
+	}
+
+	private boolean isCoalescable()
+	{
+		return isRead() && !"false".equals(API.getConfiguration(API.CONFIG_COALESCE_REQUESTS));
+	}
+
+	/** Remembers reads of missing resources, and forgets the ones under a path once something was created on it. */
+	private void updateNegativeCache(String errorResponse)
+	{
+		long ttl;
+
+		if(isRead())
+		{
+			if((this.responseCode == HttpURLConnection.HTTP_NOT_FOUND || this.responseCode == HttpURLConnection.HTTP_GONE) && (ttl = APINegativeCache.getTTL()) > 0)
+				APINegativeCache.getSharedCache().put(requestKey(), this.path, this.responseCode, errorResponse, ttl);
+		}
+		else if(this.action == API.ACTION_CREATE && this.responseCode >= 200 && this.responseCode < 300)
+		{
+			APINegativeCache.getSharedCache().invalidate(this.path);
+		}
+	}
+
+	/** Identifies identical reads, the URL plus everything that can change the response: the session, language and extra headers. */
+	private String requestKey()
+	{
+		StringBuilder key = new StringBuilder(METHOD_READ);
+		APISession session = APISession.getSharedSession();
+
+		key.append(' ').append(buildURL());
+		key.append('\n').append(session.sessionid);
+		key.append('\n').append(APIRequestTemplate.get().acceptLanguage);
+		for(Entry<String, String> entry : new TreeMap<String, String>(this.requestProperties).entrySet())
+			key.append('\n').append(entry.getKey()).append(": ").append(entry.getValue());
+		return key.toString();
 	}
 
 	public void setRequestProperty(String field, String newValue)
@@ -153,30 +716,24 @@ public final class APIURLConnection
 
 	void newConnection() throws IOException
 	{
-		boolean httpsOnly;
-		String file, method, queryString = null;
+		APIRequestTemplate template;
+		APIRequestSigner signer;
+		String method, cookies;
 		URL url;
-		StringBuilder cookies;
 		APISession session;
 
 		// Cleanup
-		if(this.connection != null)
-			this.connection.disconnect();
+		releaseConnection(this.responseHeaders != null);
+		this.responseCode = -1;
+		this.responseHeaders = null;
 
 		// Build the URL and create the connection with the correct method
-		httpsOnly = Boolean.parseBoolean(API.getConfiguration(API.CONFIG_HTTPS_ONLY));
-		if(this.params != null)
-			queryString = API.encodeUrlArgs(this.params.getArgs());
-		if(queryString != null && queryString.length() > 0)
-			file = String.format("%s?%s", this.path, queryString);
-		else
-			file = this.path;
-		try
-		{
-			url = new URL(String.format("%s://%s%s", ((httpsOnly || this.https) ? "https" : "http"), API.getConfiguration(API.CONFIG_HOST), file));
-		}
-		catch(MalformedURLException e) { return; }
-		this.connection = (HttpURLConnection)url.openConnection();
+		template = APIRequestTemplate.get();
+		url = buildURL(template);
+		if(url == null)
+			return;
+		this.transport = API.getTransport();
+		this.connection = this.transport.open(url);
 		this.aborted = false;
 		switch(this.action)
 		{
@@ -200,45 +757,46 @@ public final class APIURLConnection
 		}
 		catch(ProtocolException e) { }
 
-		// Add the default native app flag
-		if(nativeApp == null)
-			nativeApp = String.format("Android %s; %s; %s", android.os.Build.VERSION.RELEASE, getDeviceName(), API.appPackage);
-		this.connection.setRequestProperty(XHEADER_NATIVE_APP, nativeApp);
-
-		// Add the Accept content type header
-		this.connection.setRequestProperty(HEADER_ACCEPT, CONTENT_TYPE_JSON);
-
-		// Add the user's locale to each request
-		if(acceptLanguage == null)
-			acceptLanguage = API.appContext.getResources().getConfiguration().locale.getLanguage();
-		if(acceptLanguage.length() > 0)
-			this.connection.setRequestProperty(HEADER_ACCEPT_LANGUAGE, acceptLanguage);
+		// Add the native app flag, Accept, Accept-Encoding and the user's locale
+		for(int i = 0; i < template.headers.length; i += 2)
+		{
+			if(template.headers[i + 1] != null)
+				this.connection.setRequestProperty(template.headers[i], template.headers[i + 1]);
+		}
 
 		// Add the Referer header as required by csrf
-		this.connection.setRequestProperty(HEADER_REFERER, String.format("%s://%s", ((httpsOnly || this.https) ? "https" : "http"), API.getConfiguration(API.CONFIG_HOST)));
+		this.connection.setRequestProperty(HEADER_REFERER, this.https ? template.httpsBase : template.httpBase);
 
 		// Add the session and csrf cookies and headers
 		session = APISession.getSharedSession();
-		cookies = new StringBuilder();
-		if(session.sessionid != null && session.sessionid.length() > 0)
-			cookies.append(COOKIE_SESSION_ID + "=" + session.sessionid);
+		cookies = APIRequestTemplate.getCookieHeader(session);
+		if(cookies != null)
+			this.connection.setRequestProperty(HEADER_COOKIE, cookies);
 		if(session.csrfToken != null && session.csrfToken.length() > 0)
-		{
-			if(cookies.length() > 0)
-				cookies.append("; ");
-			cookies.append(COOKIE_CSRF_TOKEN + "=" + session.csrfToken);
 			this.connection.setRequestProperty(HEADER_CSRF_TOKEN, session.csrfToken);
-		}
-		if(cookies.length() > 0)
-			this.connection.setRequestProperty(HEADER_COOKIE, cookies.toString());
 
 		if(this.data != null && this.data.length > 0)
 		{
 			// Set the content type. The Content-Length header is set automatically with setFixedLengthStreamingMode, see the source for sun.net.www.protocol.http.HttpURLConnection
 			this.connection.setRequestProperty(HEADER_CONTENT_TYPE, CONTENT_TYPE_JSON);
-			// Sign the request
-			if(this.sign)
-				signRequest();
+			// Sign the request, always over the uncompressed data so the server verifies what it decoded
+			signer = this.sign ? beginSigning() : null;
+			if(this.body == null)
+				this.body = encodeBody(signer);
+			else if(signer != null)
+				signer.update(this.data, 0, this.data.length);
+			if(signer != null)
+				signer.sign(this.connection);
+			if(this.body != this.data)
+				this.connection.setRequestProperty(HEADER_CONTENT_ENCODING, ENCODING_GZIP);
+		}
+
+		// Lets the server recognize a create it already applied when it is sent again, see APIRetryPolicy
+		if(this.action == API.ACTION_CREATE)
+		{
+			if(this.idempotencyKey == null)
+				this.idempotencyKey = UUID.randomUUID().toString();
+			this.connection.setRequestProperty(HEADER_IDEMPOTENCY_KEY, this.idempotencyKey);
 		}
 
 		// Add an extra headers set outside of this class
@@ -248,6 +806,72 @@ public final class APIURLConnection
 		}
 	}
 
+	private static APIRequestSigner beginSigning()
+	{
+		try
+		{
+			return APIRequestSigner.begin();
+		} catch(GeneralSecurityException e) { Log.e(API.TAG, "HMAC failed with error: " + e.getMessage()); }
+		return null;
+	}
+
+	/**
+	 * Returns data gzipped if it is a create or update over the threshold and gzip makes it smaller, otherwise data itself.
+	 * data is also fed to signer if there is one, a chunk at a time along with gzip so it is only read from memory once.
+	 */
+	private byte[] encodeBody(APIRequestSigner signer)
+	{
+		ByteArrayOutputStream bytes;
+		OutputStream out;
+		int threshold = API.parseInt(API.getConfiguration(API.CONFIG_GZIP_REQUEST_THRESHOLD));
+
+		if(threshold <= 0 || this.data.length < threshold || (this.action != API.ACTION_CREATE && this.action != API.ACTION_UPDATE))
+		{
+			if(signer != null)
+				signer.update(this.data, 0, this.data.length);
+			return this.data;
+		}
+		try
+		{
+			bytes = new ByteArrayOutputStream(this.data.length / 2);
+			out = new GZIPOutputStream(bytes);
+			if(signer != null)
+				out = signer.wrap(out);
+			for(int offset = 0; offset < this.data.length; offset += ENCODE_CHUNK_SIZE)
+				out.write(this.data, offset, Math.min(ENCODE_CHUNK_SIZE, this.data.length - offset));
+			out.close();
+		} catch(IOException e) { return this.data; } // Not thrown writing to memory, the signer has seen all of data
+		return (bytes.size() < this.data.length) ? bytes.toByteArray() : this.data;
+	}
+
+	private URL buildURL()
+	{
+		return buildURL(APIRequestTemplate.get());
+	}
+
+	private URL buildURL(APIRequestTemplate template)
+	{
+		StringBuilder url = APIRequestTemplate.getBuilder();
+		int length;
+
+		url.append(this.https ? template.httpsBase : template.httpBase).append(this.path);
+		if(this.params != null)
+		{
+			length = url.append('?').length();
+			try
+			{
+				API.appendUrlArgs(url, this.params.getArgs());
+			} catch(UnsupportedEncodingException e) { Log.e(API.TAG, e.getMessage(), e); }
+			if(url.length() == length)
+				url.setLength(length - 1);
+		}
+		try
+		{
+			return new URL(url.toString());
+		}
+		catch(MalformedURLException e) { return null; }
+	}
+
 	private static String capitalizeString(String s)
 	{
 		if(s == null || s.length() == 0)
@@ -260,7 +884,7 @@ public final class APIURLConnection
 	}
 
 	// http://stackoverflow.com/questions/1995439/get-android-phone-model-programmatically
-	private static String getDeviceName()
+	static String getDeviceName()
 	{
 		String manufacturer = android.os.Build.MANUFACTURER;
 		String model = android.os.Build.MODEL;
@@ -269,69 +893,4 @@ public final class APIURLConnection
 		else
 			return capitalizeString(manufacturer) + " " + model;
 	}
-
-	private void signRequest()
-	{
-		SecretKey key;
-		Mac mac;
-		String hmac;
-		String salt;
-		int i;
-		char c;
-
-		try
-		{
-			key = new SecretKeySpec(API.getConfiguration(API.CONFIG_HMAC_KEY).getBytes(), "HmacSHA256");
-			mac = Mac.getInstance("HmacSHA256");
-			mac.init(key);
-			for(i = (this.data.length - 1); i > 0; --i)
-			{
-				c = (char)this.data[i];
-				if((c != '\n') && (c != '\r'))
-					break;
-			}
-			mac.update(this.data, 0, i + 1);
-			// Add a salt if set
-			salt = API.getConfiguration(API.CONFIG_HMAC_SALT);
-			if(salt != null)
-				mac.update(salt.getBytes());
-			hmac = API.byteArrayToString(mac.doFinal());
-			this.connection.setRequestProperty(XHEADER_HMAC, hmac);
-		} catch(Exception e) { Log.e(API.TAG, "HMAC failed with error: " + e.getMessage()); }
-	}
-
-	private void signRequestUsingNonce()
-	{
-		SecretKey key;
-		Mac mac;
-		String hmac, timestamp, nonce;
-		String salt;
-		int i;
-		char c;
-
-		try
-		{
-			key = new SecretKeySpec(API.getConfiguration(API.CONFIG_HMAC_KEY).getBytes(), "HmacSHA256");
-			mac = Mac.getInstance("HmacSHA256");
-			mac.init(key);
-			for(i = (this.data.length - 1); i > 0; --i)
-			{
-				c = (char)this.data[i];
-				if((c != '\n') && (c != '\r'))
-					break;
-			}
-			mac.update(this.data, 0, i + 1);
-			// Add a salt if set
-			salt = API.getConfiguration(API.CONFIG_HMAC_SALT);
-			if(salt != null)
-				mac.update(salt.getBytes());
-			// Add a nonce
-			nonce = UUID.randomUUID().toString();
-			mac.update(nonce.getBytes());
-
-			hmac = API.byteArrayToString(mac.doFinal());
-			this.connection.setRequestProperty(XHEADER_HMAC, hmac);
-			this.connection.setRequestProperty(XHEADER_NONCE, nonce);
-		} catch(Exception e) { Log.e(API.TAG, "HMAC failed with error: " + e.getMessage()); }
-	}
 }
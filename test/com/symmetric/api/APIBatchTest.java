@@ -0,0 +1,185 @@
+package com.symmetric.api;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+@RunWith(RobolectricTestRunner.class)
+public class APIBatchTest
+{
+	// The default of API.CONFIG_BATCH_URL
+	private static final String BATCH_PATH = "/api/batch";
+	private static final long LONG_DELAY = 60 * 1000;
+
+	private APITransport transport;
+	private APIStubTransport stub;
+	// Envelopes as they reached the stub, before batchHandler splits them
+	private final List<APIStubTransport.Request> envelopes = new ArrayList<APIStubTransport.Request>();
+	private volatile boolean failEnvelopes;
+
+	@Before
+	public void setUp()
+	{
+		final APIStubTransport.Handler batch = APIStubTransport.batchHandler(BATCH_PATH, new APIStubTransport.Handler() {
+			public APIStubTransport.Response handle(APIStubTransport.Request request)
+			{
+				if(APIURLConnection.METHOD_CREATE.equals(request.method) && "/items".equals(request.url.getPath()))
+					return new APIStubTransport.Response(HttpURLConnection.HTTP_CREATED, "{\"id\":7,\"created\":" + request.getBodyString() + "}");
+				if(APIURLConnection.METHOD_DELETE.equals(request.method) && "/items/3".equals(request.url.getPath()))
+					return new APIStubTransport.Response(HttpURLConnection.HTTP_NO_CONTENT, (byte[])null);
+				return new APIStubTransport.Response(HttpURLConnection.HTTP_NOT_FOUND, "{\"error\":\"Not found\"}");
+			}
+		});
+
+		API.setup(RuntimeEnvironment.application);
+		API.setConfiguration(API.CONFIG_HOST, "stub.local");
+		// A failed envelope shouldn't open the circuit for the other tests
+		API.setConfiguration(API.CONFIG_CIRCUIT_BREAKER_THRESHOLD, "0");
+		this.transport = API.getTransport();
+		this.stub = new APIStubTransport(new APIStubTransport.Handler() {
+			public APIStubTransport.Response handle(APIStubTransport.Request request) throws IOException
+			{
+				synchronized(APIBatchTest.this.envelopes)
+				{
+					APIBatchTest.this.envelopes.add(request);
+				}
+				if(APIBatchTest.this.failEnvelopes)
+					return new APIStubTransport.Response(HttpURLConnection.HTTP_BAD_REQUEST, "{\"error\":\"Bad batch\"}");
+				return batch.handle(request);
+			}
+		});
+		API.setTransport(this.stub);
+	}
+
+	@After
+	public void tearDown()
+	{
+		API.setTransport(this.transport);
+		API.setConfiguration(API.CONFIG_CIRCUIT_BREAKER_THRESHOLD, null);
+		API.setConfiguration(API.CONFIG_HMAC_KEY, null);
+		API.setConfiguration(API.CONFIG_HMAC_SALT, null);
+		APIURLConnection.resetCircuitBreakers();
+	}
+
+	@Test
+	public void resultsAndErrorsGoBackToTheirOperations() throws Exception
+	{
+		APIBatch batch = new APIBatch(false, false, false, 3, LONG_DELAY);
+		APIBatch.Operation create = batch.create("/items", "{\"name\":\"a\"}".getBytes("UTF-8"));
+		APIBatch.Operation update = batch.update("/items/2", "{\"name\":\"b\"}".getBytes("UTF-8"));
+		APIBatch.Operation delete = batch.delete("/items/3");
+		APIBatch.Result result;
+
+		result = create.get(5, TimeUnit.SECONDS);
+		assertEquals(HttpURLConnection.HTTP_CREATED, result.status);
+		assertTrue(result.body.contains("\"id\":7") && result.body.contains("\"name\":\"a\""));
+		result = update.get(5, TimeUnit.SECONDS);
+		assertEquals(HttpURLConnection.HTTP_NOT_FOUND, result.status);
+		assertFalse(result.isSuccessful());
+		assertTrue(result.body.contains("Not found"));
+		result = delete.get(5, TimeUnit.SECONDS);
+		assertEquals(HttpURLConnection.HTTP_NO_CONTENT, result.status);
+		assertNull(result.body);
+		assertEquals(1, this.stub.getRequestCount());
+	}
+
+	@Test
+	public void anEnvelopeFailureFailsEveryOperation() throws Exception
+	{
+		APIBatch batch = new APIBatch(false, false, false, 2, LONG_DELAY);
+		APIBatch.Operation[] operations = {batch.create("/items", "{}".getBytes("UTF-8")), batch.delete("/items/3")};
+
+		this.failEnvelopes = true;
+		batch.flush();
+		for(APIBatch.Operation operation : operations)
+		{
+			try
+			{
+				operation.get(5, TimeUnit.SECONDS);
+				fail("Expected the envelope's failure");
+			} catch(ExecutionException e) { assertTrue(e.getCause() instanceof IOException); }
+		}
+		assertEquals(1, this.stub.getRequestCount());
+	}
+
+	@Test
+	public void flushesAtTheSizeLimit() throws Exception
+	{
+		APIBatch batch = new APIBatch(false, false, false, 2, LONG_DELAY);
+		APIBatch.Operation first = batch.delete("/items/3");
+		APIBatch.Operation second;
+
+		Thread.sleep(100);
+		assertFalse(first.isDone());
+		assertEquals(1, batch.getPendingCount());
+		second = batch.delete("/items/3");
+		assertEquals(0, batch.getPendingCount());
+		first.get(5, TimeUnit.SECONDS);
+		second.get(5, TimeUnit.SECONDS);
+		assertEquals(1, this.stub.getRequestCount());
+	}
+
+	@Test
+	public void flushesAfterTheDelay() throws Exception
+	{
+		APIBatch batch = new APIBatch(false, false, false, 20, 50);
+		long start = System.currentTimeMillis();
+		APIBatch.Operation first = batch.delete("/items/3");
+		APIBatch.Operation second = batch.delete("/items/3");
+
+		assertEquals(HttpURLConnection.HTTP_NO_CONTENT, first.get(5, TimeUnit.SECONDS).status);
+		assertEquals(HttpURLConnection.HTTP_NO_CONTENT, second.get(5, TimeUnit.SECONDS).status);
+		assertTrue(System.currentTimeMillis() - start >= 50);
+		assertEquals(1, this.stub.getRequestCount());
+	}
+
+	@Test
+	public void theEnvelopeIsSignedOnce() throws Exception
+	{
+		APIBatch batch = new APIBatch(false, false, true, 3, LONG_DELAY);
+		APIBatch.Operation[] operations = new APIBatch.Operation[3];
+		APIStubTransport.Request envelope;
+		Mac mac;
+
+		API.setConfiguration(API.CONFIG_HMAC_KEY, "test-secret");
+		API.setConfiguration(API.CONFIG_HMAC_SALT, "test-salt");
+		for(int i = 0; i < operations.length; ++i)
+			operations[i] = batch.create("/items", ("{\"name\":\"" + i + "\"}").getBytes("UTF-8"));
+		for(APIBatch.Operation operation : operations)
+			assertEquals(HttpURLConnection.HTTP_CREATED, operation.get(5, TimeUnit.SECONDS).status);
+
+		synchronized(this.envelopes)
+		{
+			assertEquals(1, this.envelopes.size());
+			envelope = this.envelopes.get(0);
+		}
+		// One signature, over the envelope as a whole
+		assertNotNull(envelope.getHeader(APIURLConnection.XHEADER_HMAC));
+		assertEquals(1, envelope.headers.get(APIURLConnection.XHEADER_HMAC).size());
+		mac = Mac.getInstance("HmacSHA256");
+		mac.init(new SecretKeySpec("test-secret".getBytes(), "HmacSHA256"));
+		mac.update(envelope.body);
+		mac.update("test-salt".getBytes());
+		assertEquals(API.byteArrayToString(mac.doFinal()), envelope.getHeader(APIURLConnection.XHEADER_HMAC));
+	}
+}
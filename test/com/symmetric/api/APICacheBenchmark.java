@@ -0,0 +1,116 @@
+package com.symmetric.api;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+/**
+ * Throughput of the shared cache at 1, 4 and 8 threads. Not named *Test so it isn't part of the regular test run, run it
+ * on its own and compare the operations per second it prints.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class APICacheBenchmark
+{
+	private static final int KEYS = 1024;
+	private static final long DURATION = 2000;
+	private static final int[] THREADS = {1, 4, 8};
+
+	private APICache cache;
+
+	@Before
+	public void setUp()
+	{
+		API.setup(RuntimeEnvironment.application);
+		this.cache = APICache.getSharedCache();
+		this.cache.flushAll();
+		this.cache.setWriteBehind(true);
+		for(int k = 0; k < KEYS; ++k)
+			this.cache.cacheObject("value" + k, key(k), 600000, false);
+		this.cache.awaitPersisted();
+	}
+
+	@After
+	public void tearDown()
+	{
+		this.cache.setWriteBehind(false);
+		this.cache.flushAll();
+	}
+
+	@Test
+	public void memoryHits() throws InterruptedException
+	{
+		for(int threads : THREADS)
+			report("memory hits", threads, run(threads, 0));
+	}
+
+	@Test
+	public void mixedReadsAndWrites() throws InterruptedException
+	{
+		// One operation in ten is a write or a removal
+		for(int threads : THREADS)
+			report("90% reads", threads, run(threads, 10));
+	}
+
+	/** Runs threads for DURATION, one operation in writeEvery (if not 0) being a write, and returns the operations done. */
+	private long run(int threads, final int writeEvery) throws InterruptedException
+	{
+		final AtomicLong operations = new AtomicLong();
+		final long end = System.currentTimeMillis() + DURATION;
+		List<Thread> workers = new ArrayList<Thread>();
+
+		for(int t = 0; t < threads; ++t)
+		{
+			final int id = t;
+			workers.add(new Thread(new Runnable() {
+				public void run()
+				{
+					Random random = new Random(id);
+					long count = 0;
+					int k;
+
+					while((count & 255) != 0 || System.currentTimeMillis() < end)
+					{
+						k = random.nextInt(KEYS);
+						if(writeEvery != 0 && count % writeEvery == 0)
+						{
+							if(random.nextInt(4) == 0)
+								APICacheBenchmark.this.cache.removeEntryForKey(key(k));
+							else
+								APICacheBenchmark.this.cache.cacheObject("value" + k, key(k), 600000, false);
+						}
+						else
+						{
+							APICacheBenchmark.this.cache.entryForKey(key(k));
+						}
+						++count;
+					}
+					operations.addAndGet(count);
+				}
+			}));
+		}
+		for(Thread worker : workers)
+			worker.start();
+		for(Thread worker : workers)
+			worker.join();
+		this.cache.awaitPersisted();
+		return operations.get();
+	}
+
+	private static void report(String name, int threads, long operations)
+	{
+		System.out.println(String.format("APICache %s, %d threads: %,d ops/s", name, threads, operations * 1000 / DURATION));
+	}
+
+	private static String key(int k)
+	{
+		return "/benchmark/" + k;
+	}
+}
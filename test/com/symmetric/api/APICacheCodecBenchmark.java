@@ -0,0 +1,119 @@
+package com.symmetric.api;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+/**
+ * Size and load time of a large cached list with APIBinaryCodec against Java serialization, both the stream entries
+ * were written as before codecs and APISerializableCodec. Not named *Test so it isn't part of the regular test run, run
+ * it on its own and compare the figures.
+ */
+public class APICacheCodecBenchmark
+{
+	private static final int ITEMS = 5000;
+	private static final int LOADS = 50;
+
+	/** A typical model, Serializable so Java serialization can store it too. */
+	public static class Item implements API.JSONSerializable, Serializable
+	{
+		private static final long serialVersionUID = 1L;
+
+		public int id;
+		public String name;
+		public double price;
+		public boolean available;
+
+		public Item(int id)
+		{
+			this.id = id;
+			this.name = "Item number " + id;
+			this.price = id * 0.25;
+			this.available = (id % 3) != 0;
+		}
+
+		public Item(JSONObject obj) throws JSONException
+		{
+			this.id = obj.getInt("id");
+			this.name = obj.getString("name");
+			this.price = obj.getDouble("price");
+			this.available = obj.getBoolean("available");
+		}
+
+		public JSONObject getJSONObject()
+		{
+			JSONObject obj = new JSONObject();
+			try
+			{
+				obj.put("id", this.id);
+				obj.put("name", this.name);
+				obj.put("price", this.price);
+				obj.put("available", this.available);
+			} catch(JSONException e) { }
+			return obj;
+		}
+	}
+
+	@Test
+	public void largeList() throws IOException
+	{
+		Object[] items = new Object[ITEMS];
+
+		for(int i = 0; i < ITEMS; ++i)
+			items[i] = new Item(i);
+		measure("legacy", legacyBytes(items), items.length);
+		measure("serializable codec", codecBytes(new APISerializableCodec(), items), items.length);
+		measure("binary codec", codecBytes(new APIBinaryCodec(), items), items.length);
+	}
+
+	/** An entry as APICache wrote collections before codecs, the count and then each object in one Java serialization stream. */
+	private static byte[] legacyBytes(Object[] items) throws IOException
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ObjectOutputStream objectOut = new ObjectOutputStream(out);
+
+		objectOut.writeInt(items.length);
+		for(Object item : items)
+			objectOut.writeObject(item);
+		objectOut.close();
+		return out.toByteArray();
+	}
+
+	private static byte[] codecBytes(APICacheCodec codec, Object[] items) throws IOException
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+		APICacheEntryFormat.write(out, items, true, codec, null, 0, null);
+		return out.toByteArray();
+	}
+
+	private static void measure(String name, byte[] bytes, int count) throws IOException
+	{
+		Object[] loaded = null;
+		long start;
+
+		// Warm up before timing the loads
+		for(int i = 0; i < LOADS; ++i)
+			loaded = load(bytes);
+		start = System.nanoTime();
+		for(int i = 0; i < LOADS; ++i)
+			loaded = load(bytes);
+		assertEquals(count, loaded.length);
+		System.out.println(String.format("%s, %d items: %,d bytes, %.2f ms per load", name, count, bytes.length,
+			(System.nanoTime() - start) / 1e6 / LOADS));
+	}
+
+	private static Object[] load(byte[] bytes) throws IOException
+	{
+		return (Object[])APICacheEntryFormat.read(new BufferedInputStream(new ByteArrayInputStream(bytes)), true, null);
+	}
+}
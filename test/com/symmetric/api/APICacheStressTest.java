@@ -0,0 +1,176 @@
+package com.symmetric.api;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+/**
+ * Hammers the shared cache from several threads on a small set of keys. Values are "key:thread:sequence" so a read can
+ * tell which key a value was written for. Each round ends with every thread writing every key at once, half of them as
+ * session-only entries, after which every key must have exactly one live value that survives a reload from disk.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class APICacheStressTest
+{
+	private static final int THREADS = 8;
+	private static final int KEYS = 16;
+	private static final int OPERATIONS = 1000;
+	private static final int ROUNDS = 10;
+
+	private APICache cache;
+
+	@Before
+	public void setUp()
+	{
+		API.setup(RuntimeEnvironment.application);
+		this.cache = APICache.getSharedCache();
+		this.cache.flushAll();
+	}
+
+	@After
+	public void tearDown()
+	{
+		this.cache.setWriteBehind(false);
+		this.cache.flushAll();
+	}
+
+	@Test
+	public void concurrentWritesThrough() throws Exception
+	{
+		this.cache.setWriteBehind(false);
+		stress();
+	}
+
+	@Test
+	public void concurrentWritesBehind() throws Exception
+	{
+		this.cache.setWriteBehind(true);
+		stress();
+	}
+
+	private void stress() throws Exception
+	{
+		final CyclicBarrier barrier = new CyclicBarrier(THREADS);
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		List<Thread> threads = new ArrayList<Thread>();
+
+		for(int t = 0; t < THREADS; ++t)
+		{
+			final int id = t;
+			threads.add(new Thread(new Runnable() {
+				public void run()
+				{
+					try
+					{
+						for(int round = 0; round < ROUNDS; ++round)
+						{
+							hammer(id, round);
+							await(barrier);
+							// Every thread writes every key, the entries of one kind replace those of the other
+							for(int k = 0; k < KEYS; ++k)
+								APICacheStressTest.this.cache.cacheObject(value(k, id, -1), key(k), 60000, (k + id) % 2 == 0);
+							await(barrier);
+							if(id == 0)
+								verify();
+							await(barrier);
+						}
+					}
+					catch(Throwable e)
+					{
+						failure.compareAndSet(null, e);
+						barrier.reset();
+					}
+				}
+			}));
+		}
+		for(Thread thread : threads)
+			thread.start();
+		for(Thread thread : threads)
+			thread.join();
+		if(failure.get() != null)
+			throw new AssertionError(failure.get());
+	}
+
+	private void hammer(int id, int round)
+	{
+		Random random = new Random(id * 31 + round);
+		Object obj;
+		int k;
+
+		for(int i = 0; i < OPERATIONS; ++i)
+		{
+			k = random.nextInt(KEYS);
+			switch(random.nextInt(6))
+			{
+				case 0:
+					this.cache.cacheObject(value(k, id, i), key(k), 60000, false);
+					break;
+				case 1:
+					this.cache.cacheObject(value(k, id, i), key(k), 60000, true);
+					break;
+				case 2:
+					this.cache.cacheObject(value(k, id, i), key(k), 1, random.nextBoolean());
+					break;
+				case 3:
+					this.cache.removeEntryForKey(key(k));
+					break;
+				default:
+					obj = this.cache.entryForKey(key(k));
+					if(obj != null)
+						assertTrue("Read " + obj + " for " + key(k), ((String)obj).startsWith(key(k) + ":"));
+					break;
+			}
+		}
+		this.cache.flushExpired();
+	}
+
+	/** Every key must hold one of the values of the last writes, the same in memory and on disk. */
+	private void verify()
+	{
+		Object[] values = new Object[KEYS];
+		Object obj;
+
+		for(int k = 0; k < KEYS; ++k)
+		{
+			obj = this.cache.entryForKey(key(k));
+			assertNotNull("Lost " + key(k), obj);
+			assertTrue("Stale " + obj + " for " + key(k), ((String)obj).startsWith(key(k) + ":") && ((String)obj).endsWith(":-1"));
+			values[k] = obj;
+		}
+		this.cache.awaitPersisted();
+		// Replacing the weigher empties the memory tier, the entries have to come from disk
+		this.cache.setWeigher(null);
+		for(int k = 0; k < KEYS; ++k)
+			assertEquals(values[k], this.cache.entryForKey(key(k)));
+	}
+
+	/** A thread that failed resets the barrier, one that hasn't reached it yet times out instead of waiting forever. */
+	private static void await(CyclicBarrier barrier) throws Exception
+	{
+		barrier.await(60, TimeUnit.SECONDS);
+	}
+
+	private static String key(int k)
+	{
+		return "/stress/" + k;
+	}
+
+	private static String value(int k, int thread, int sequence)
+	{
+		return key(k) + ":" + thread + ":" + sequence;
+	}
+}
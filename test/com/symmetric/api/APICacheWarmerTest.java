@@ -0,0 +1,45 @@
+package com.symmetric.api;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class APICacheWarmerTest
+{
+	@Test
+	public void everyWarmUpGetsItsOwnBudget() throws InterruptedException
+	{
+		final List<String> loaded = new ArrayList<String>();
+		APICacheWarmer warmer = new APICacheWarmer(new APICacheWarmer.Loader() {
+			public long preload(String key)
+			{
+				synchronized(loaded)
+				{
+					loaded.add(key);
+				}
+				return 10;
+			}
+		});
+
+		warmer.add(new String[] {"a", "b", "c"}, 20);
+		await(warmer);
+		warmer.add(new String[] {"d", "e"}, 20);
+		await(warmer);
+		synchronized(loaded)
+		{
+			assertEquals(4, loaded.size());
+			assertEquals("e", loaded.get(3));
+		}
+	}
+
+	private static void await(APICacheWarmer warmer) throws InterruptedException
+	{
+		for(int i = 0; i < 500 && warmer.isRunning(); ++i)
+			Thread.sleep(10);
+		assertFalse(warmer.isRunning());
+	}
+}
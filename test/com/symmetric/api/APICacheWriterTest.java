@@ -0,0 +1,92 @@
+package com.symmetric.api;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class APICacheWriterTest
+{
+	private final ReentrantLock lock = new ReentrantLock();
+	private final List<String> written = new ArrayList<String>();
+	private APICacheWriter writer;
+
+	@Before
+	public void setUp()
+	{
+		this.writer = new APICacheWriter(new APICacheWriter.Sink() {
+			public Lock lockForKey(String key)
+			{
+				return APICacheWriterTest.this.lock;
+			}
+
+			public void write(String key, Object value, boolean collection)
+			{
+				synchronized(APICacheWriterTest.this.written)
+				{
+					APICacheWriterTest.this.written.add(key + "=" + value);
+				}
+			}
+
+			public void delete(String key)
+			{
+				synchronized(APICacheWriterTest.this.written)
+				{
+					APICacheWriterTest.this.written.add(key + " deleted");
+				}
+			}
+		});
+	}
+
+	@Test
+	public void operationsClearedWhileWaitingForTheLockAreDropped() throws InterruptedException
+	{
+		this.lock.lock();
+		try
+		{
+			this.writer.write("a", "1", false);
+			// Wait for the writer thread to block on the key, as it would while the cache is flushed
+			for(int i = 0; i < 500 && !this.lock.hasQueuedThreads(); ++i)
+				Thread.sleep(10);
+			assertTrue(this.lock.hasQueuedThreads());
+			this.writer.clear();
+		}
+		finally { this.lock.unlock(); }
+		this.writer.write("b", "2", false);
+		assertTrue(this.writer.awaitPersisted(5000));
+		synchronized(this.written)
+		{
+			assertEquals(Arrays.asList("b=2"), this.written);
+		}
+	}
+
+	@Test
+	public void finishPerformsTheQueueAndEndsTheThread() throws InterruptedException
+	{
+		this.lock.lock();
+		try
+		{
+			this.writer.write("a", "1", false);
+			this.writer.delete("b");
+			// The thread can't get the lock, so finish performs both here
+			this.writer.finish();
+			assertEquals(0, this.writer.getQueueDepth());
+		}
+		finally { this.lock.unlock(); }
+		for(int i = 0; i < 500 && this.writer.isRunning(); ++i)
+			Thread.sleep(10);
+		assertFalse(this.writer.isRunning());
+		synchronized(this.written)
+		{
+			assertEquals(Arrays.asList("a=1", "b deleted"), this.written);
+		}
+	}
+}
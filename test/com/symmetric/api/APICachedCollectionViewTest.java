@@ -0,0 +1,97 @@
+package com.symmetric.api;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import org.junit.Test;
+
+public class APICachedCollectionViewTest
+{
+	private static final int COUNT = 10000;
+
+	/** Serves an entry from memory and counts the bytes read, which follow what the view decodes. */
+	private static final class MemoryHandle implements APICacheStore.Handle
+	{
+		final byte[] bytes;
+		long read;
+
+		MemoryHandle(byte[] bytes)
+		{
+			this.bytes = bytes;
+		}
+
+		public long length()
+		{
+			return this.bytes.length;
+		}
+
+		public int read(long position, byte[] buffer, int offset, int length)
+		{
+			int count = (int)Math.min(length, this.bytes.length - position);
+			if(count <= 0)
+				return -1;
+			System.arraycopy(this.bytes, (int)position, buffer, offset, count);
+			this.read += count;
+			return count;
+		}
+
+		public void close() {}
+	}
+
+	@Test
+	public void compressedCollectionsAreReadABlockAtATime() throws IOException
+	{
+		Object[] objects = collection();
+		byte[] entry = write(objects, new APIDeflateCompressor(), 4096);
+		MemoryHandle handle = new MemoryHandle(entry);
+		APICachedCollectionView view = APICachedCollectionView.open(handle, 50, 2);
+
+		assertEquals(APICacheEntryFormat.FLAG_COLLECTION | APICacheEntryFormat.FLAG_COMPRESSED | APICacheEntryFormat.FLAG_BLOCKS, entry[4]);
+		assertNotNull(view);
+		assertTrue(view.isLazy());
+		assertEquals(COUNT, view.size());
+		for(int i = 5000; i < 5100; ++i)
+			assertEquals(objects[i], view.get(i));
+		assertEquals(objects[COUNT - 1], view.get(COUNT - 1));
+		// The table plus a few blocks, rather than the whole entry
+		assertTrue(handle.read < entry.length / 10);
+		view.close();
+	}
+
+	@Test
+	public void compressedCollectionsReadBackWhole() throws IOException
+	{
+		Object[] objects = collection();
+
+		assertArrayEquals(objects, read(write(objects, new APIDeflateCompressor(), 4096)));
+		assertArrayEquals(objects, read(write(objects, null, 0)));
+		assertArrayEquals(new Object[0], read(write(new Object[0], new APIDeflateCompressor(), 0)));
+	}
+
+	private static Object[] collection()
+	{
+		Object[] objects = new Object[COUNT];
+		for(int i = 0; i < COUNT; ++i)
+			objects[i] = "Item " + i + " of a list long enough to need a lazy view";
+		return objects;
+	}
+
+	private static byte[] write(Object[] objects, APICacheCompressor compressor, int threshold) throws IOException
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		APICacheEntryFormat.write(out, objects, true, new APIBinaryCodec(), compressor, threshold, null);
+		return out.toByteArray();
+	}
+
+	private static Object[] read(byte[] entry) throws IOException
+	{
+		return (Object[])APICacheEntryFormat.read(new BufferedInputStream(new ByteArrayInputStream(entry)), true, null);
+	}
+}
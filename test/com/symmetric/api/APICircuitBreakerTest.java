@@ -0,0 +1,154 @@
+package com.symmetric.api;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+@RunWith(RobolectricTestRunner.class)
+public class APICircuitBreakerTest
+{
+	private static final long DURATION = 200;
+
+	private APITransport transport;
+	private APIStubTransport stub;
+	private volatile int responseCode = HttpURLConnection.HTTP_UNAVAILABLE;
+	private volatile CountDownLatch entered;
+	private volatile CountDownLatch release;
+
+	@Before
+	public void setUp()
+	{
+		API.setup(RuntimeEnvironment.application);
+		API.setConfiguration(API.CONFIG_HOST, "stub.local");
+		API.setConfiguration(API.CONFIG_COALESCE_REQUESTS, "false");
+		API.setConfiguration(API.CONFIG_MAX_RETRIES, "0");
+		API.setConfiguration(API.CONFIG_RETRY_DELAY, "1");
+		API.setConfiguration(API.CONFIG_CIRCUIT_BREAKER_THRESHOLD, "2");
+		API.setConfiguration(API.CONFIG_CIRCUIT_BREAKER_DURATION, Long.toString(DURATION));
+		APIURLConnection.resetCircuitBreakers();
+		this.transport = API.getTransport();
+		this.stub = new APIStubTransport(new APIStubTransport.Handler() {
+			public APIStubTransport.Response handle(APIStubTransport.Request request) throws IOException
+			{
+				CountDownLatch release = APICircuitBreakerTest.this.release;
+
+				if(release != null)
+				{
+					APICircuitBreakerTest.this.entered.countDown();
+					try
+					{
+						release.await(5, TimeUnit.SECONDS);
+					} catch(InterruptedException e) { throw new IOException("Interrupted"); }
+				}
+				return new APIStubTransport.Response(APICircuitBreakerTest.this.responseCode, "{}");
+			}
+		});
+		API.setTransport(this.stub);
+	}
+
+	@After
+	public void tearDown()
+	{
+		if(this.release != null)
+			this.release.countDown();
+		API.setTransport(this.transport);
+		API.setConfiguration(API.CONFIG_MAX_RETRIES, null);
+		API.setConfiguration(API.CONFIG_RETRY_DELAY, null);
+		API.setConfiguration(API.CONFIG_CIRCUIT_BREAKER_THRESHOLD, null);
+		API.setConfiguration(API.CONFIG_CIRCUIT_BREAKER_DURATION, null);
+		APIURLConnection.resetCircuitBreakers();
+	}
+
+	@Test
+	public void opensThenLetsOneProbeThroughThenCloses() throws Exception
+	{
+		Thread probe;
+		final String[] probeResponse = new String[1];
+
+		read();
+		read();
+		assertEquals(2, this.stub.getRequestCount());
+		// Open, requests fail without reaching the host
+		assertCircuitOpen();
+		assertEquals(2, this.stub.getRequestCount());
+
+		// Half-open once the duration passed, the first request is the probe and the others still fail fast
+		Thread.sleep(DURATION + 50);
+		this.responseCode = HttpURLConnection.HTTP_OK;
+		this.entered = new CountDownLatch(1);
+		this.release = new CountDownLatch(1);
+		probe = new Thread(new Runnable() {
+			public void run()
+			{
+				try
+				{
+					probeResponse[0] = read();
+				} catch(IOException e) { }
+			}
+		});
+		probe.start();
+		assertTrue(this.entered.await(5, TimeUnit.SECONDS));
+		assertCircuitOpen();
+		this.release.countDown();
+		probe.join(5000);
+		assertFalse(probe.isAlive());
+		assertEquals("{}", probeResponse[0]);
+		assertEquals(3, this.stub.getRequestCount());
+
+		// Closed by the probe's success
+		this.release = null;
+		read();
+		read();
+		assertEquals(5, this.stub.getRequestCount());
+	}
+
+	@Test
+	public void aFailedProbeOpensTheCircuitAgain() throws Exception
+	{
+		read();
+		read();
+		Thread.sleep(DURATION + 50);
+		read();
+		assertEquals(3, this.stub.getRequestCount());
+		assertCircuitOpen();
+	}
+
+	@Test
+	public void openingBetweenRetriesKeepsTheLastResponse() throws Exception
+	{
+		APIURLConnection connection = new APIURLConnection(API.ACTION_READ, "/items/1", null, null, false, false, false);
+
+		API.setConfiguration(API.CONFIG_CIRCUIT_BREAKER_THRESHOLD, "1");
+		API.setConfiguration(API.CONFIG_MAX_RETRIES, "2");
+		assertEquals("{}", connection.execute());
+		assertEquals(HttpURLConnection.HTTP_UNAVAILABLE, connection.getResponseCode());
+		assertEquals(1, this.stub.getRequestCount());
+	}
+
+	private String read() throws IOException
+	{
+		return new APIURLConnection(API.ACTION_READ, "/items/1", null, null, false, false, false).execute();
+	}
+
+	private void assertCircuitOpen() throws IOException
+	{
+		try
+		{
+			read();
+			fail("Expected the circuit to be open");
+		} catch(APICircuitOpenException e) { }
+	}
+}
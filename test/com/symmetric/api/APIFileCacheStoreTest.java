@@ -0,0 +1,152 @@
+package com.symmetric.api;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class APIFileCacheStoreTest
+{
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File directory;
+	private APIFileCacheStore store;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		this.directory = this.folder.newFolder("cache");
+		this.store = new APIFileCacheStore(this.directory);
+	}
+
+	@After
+	public void tearDown()
+	{
+		this.folder.delete();
+	}
+
+	@Test
+	public void plainKeysKeepTheirFileNames()
+	{
+		assertEquals("users" + ".dat", this.store.fileForKey("users").getName());
+		assertEquals("~42~me.json", APIFileCacheStore.nameForKey("~42~me.json"));
+	}
+
+	@Test
+	public void urlKeysAreStoredInTheDirectory() throws IOException
+	{
+		String key = "/api/items?q=a b&order=-date#page=2";
+
+		write(key, new byte[] {1, 2, 3});
+		assertEquals(this.directory, this.store.fileForKey(key).getParentFile());
+		assertArrayEquals(new byte[] {1, 2, 3}, read(key));
+		assertEquals(new HashSet<String>(Arrays.asList(key)), this.store.keys());
+	}
+
+	@Test
+	public void namesRoundTrip()
+	{
+		for(String key : new String[] {"", ".", "..", "a%41", "%h", "/", "é漢", "~1~/api/me#total"})
+			assertEquals(key, APIFileCacheStore.keyForName(APIFileCacheStore.nameForKey(key)));
+	}
+
+	@Test
+	public void longKeysAreHashed() throws IOException
+	{
+		StringBuilder key = new StringBuilder("/api/search?q=");
+		for(int i = 0; i < 300; ++i)
+			key.append('x');
+
+		write(key.toString(), new byte[] {7});
+		assertTrue(this.store.fileForKey(key.toString()).getName().length() < 255);
+		assertArrayEquals(new byte[] {7}, read(key.toString()));
+		// Hashed names can't be listed, but retain still matches them
+		assertTrue(this.store.keys().isEmpty());
+		this.store.retain(new HashSet<String>(Arrays.asList(key.toString())));
+		assertNotNull(this.store.open(key.toString()));
+		this.store.retain(new HashSet<String>());
+		assertNull(this.store.open(key.toString()));
+	}
+
+	@Test
+	public void uncommittedWritesAreDiscarded() throws IOException
+	{
+		APICacheStore.Output out;
+
+		write("users", new byte[] {1, 2, 3});
+		out = this.store.openOutput("users");
+		out.write(new byte[] {4});
+		// A write that failed halfway closes without a commit
+		out.close();
+		assertArrayEquals(new byte[] {1, 2, 3}, read("users"));
+		assertEquals(Arrays.asList("users.dat"), Arrays.asList(this.directory.list()));
+	}
+
+	@Test
+	public void sizeOnDiskFollowsWritesAndDeletes() throws IOException
+	{
+		write("a", new byte[3]);
+		write("b", new byte[5]);
+		assertEquals(8, this.store.sizeOnDisk());
+		write("a", new byte[1]);
+		this.store.delete("b");
+		assertEquals(1, this.store.sizeOnDisk());
+		// Counted from the files when opened
+		assertEquals(1, new APIFileCacheStore(this.directory).sizeOnDisk());
+		this.store.clear();
+		assertEquals(0, this.store.sizeOnDisk());
+	}
+
+	@Test
+	public void leftoverTempFilesAreNotCountedAndRetainDeletesThem() throws IOException
+	{
+		APICacheStore.Output out;
+
+		write("a", new byte[3]);
+		out = this.store.openOutput("b");
+		out.write(new byte[5]);
+		out.flush();
+		// Opened again before the write could commit or close, as after a crash
+		this.store = new APIFileCacheStore(this.directory);
+		assertEquals(3, this.store.sizeOnDisk());
+		this.store.retain(new HashSet<String>(Arrays.asList("a")));
+		assertEquals(Arrays.asList("a.dat"), Arrays.asList(this.directory.list()));
+		assertEquals(3, this.store.sizeOnDisk());
+		out.close();
+	}
+
+	private void write(String key, byte[] bytes) throws IOException
+	{
+		APICacheStore.Output out = this.store.openOutput(key);
+		out.write(bytes);
+		out.commit();
+	}
+
+	private byte[] read(String key) throws IOException
+	{
+		APICacheStore.Handle handle = this.store.open(key);
+		byte[] bytes;
+
+		assertNotNull(handle);
+		try
+		{
+			bytes = new byte[(int)handle.length()];
+			handle.read(0, bytes, 0, bytes.length);
+			return bytes;
+		}
+		finally { handle.close(); }
+	}
+}
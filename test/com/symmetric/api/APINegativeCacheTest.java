@@ -0,0 +1,38 @@
+package com.symmetric.api;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class APINegativeCacheTest
+{
+	@Test
+	public void entriesAreCapped()
+	{
+		APINegativeCache cache = new APINegativeCache();
+
+		for(int i = 0; i < 10 * APINegativeCache.MAX_ENTRIES; ++i)
+			cache.put("/items/" + i, "/items/" + i, 404, null, 60000);
+		assertTrue(cache.size() <= APINegativeCache.MAX_ENTRIES);
+		// The entries closest to expiring go first
+		assertNull(cache.get("/items/0"));
+		assertNotNull(cache.get("/items/" + (10 * APINegativeCache.MAX_ENTRIES - 1)));
+	}
+
+	@Test
+	public void expiredEntriesAreDroppedOnRebuild() throws InterruptedException
+	{
+		APINegativeCache cache = new APINegativeCache();
+
+		for(int i = 0; i < 200; ++i)
+			cache.put("/expired/" + i, "/expired/" + i, 404, null, 1);
+		Thread.sleep(10);
+		// Growing past the capacity of the filter rebuilds it
+		for(int i = 0; i < 100; ++i)
+			cache.put("/live/" + i, "/live/" + i, 404, null, 60000);
+		assertEquals(100, cache.size());
+	}
+}
@@ -0,0 +1,63 @@
+package com.symmetric.api;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+@RunWith(RobolectricTestRunner.class)
+public class APIPagedCacheTest
+{
+	private APICache cache;
+
+	@Before
+	public void setUp()
+	{
+		API.setup(RuntimeEnvironment.application);
+		this.cache = APICache.getSharedCache();
+		this.cache.flushAll();
+	}
+
+	@Test
+	public void pagesAreReadBackFromTheFileStore()
+	{
+		APIPagedCache pages = new APIPagedCache(this.cache, "/api/items", 60000, false);
+		APIRequestParams params = params(2);
+
+		params.total = 5;
+		pages.cachePage(params, new Object[] {"c", "d"});
+		// Replacing the weigher empties the memory tier, the page has to come from disk
+		this.cache.setWeigher(null);
+		assertEquals(0, this.cache.getMemoryWeight());
+		assertArrayEquals(new Object[] {"c", "d"}, pages.pageForParams(params));
+	}
+
+	@Test
+	public void pagesWithoutATotalKeepTheListing()
+	{
+		APIPagedCache pages = new APIPagedCache(this.cache, "/api/items", 60000, false);
+		APIRequestParams first = params(1);
+		APIRequestParams second = params(2);
+
+		first.total = 4;
+		pages.cachePage(first, new Object[] {"a", "b"});
+		// As processResponse leaves it for a response without X-Total, the total is unknown rather than 0
+		second.totalMissing = true;
+		assertFalse(pages.cachePage(second, new Object[] {"c", "d"}));
+		assertArrayEquals(new Object[] {"a", "b", "c", "d"}, pages.cachedRange(params(1), 0, 4));
+	}
+
+	private static APIRequestParams params(int page)
+	{
+		APIRequestParams params = new APIRequestParams();
+		params.query = "a b?#";
+		params.pageSize = 2;
+		params.page = page;
+		return params;
+	}
+}
@@ -0,0 +1,121 @@
+package com.symmetric.api;
+
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLEncoder;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+/**
+ * Requests per second through newConnection, against the per-request string building it did before APIRequestTemplate:
+ * HTTPS_ONLY parsed, the URL, query string and Referer formatted and the cookie header built on every call. The legacy
+ * figure covers only that string building, not a whole request. Not named *Test so it isn't part of the regular test
+ * run, run it on its own and compare the figures.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class APIRequestBenchmark
+{
+	private static final int WARM_UP = 20000;
+	private static final int REQUESTS = 200000;
+
+	private APITransport transport;
+	private APIRequestParams params;
+
+	@Before
+	public void setUp()
+	{
+		API.setup(RuntimeEnvironment.application);
+		API.setConfiguration(API.CONFIG_HOST, "stub.local");
+		this.transport = API.getTransport();
+		API.setTransport(new APIStubTransport(new APIStubTransport.Handler() {
+			public APIStubTransport.Response handle(APIStubTransport.Request request)
+			{
+				return new APIStubTransport.Response(200, "[]");
+			}
+		}));
+		APISession.getSharedSession().sessionid = "0123456789abcdef";
+		APISession.getSharedSession().csrfToken = "fedcba9876543210";
+		this.params = new APIRequestParams();
+		this.params.query = "red shoes";
+		this.params.page = 2;
+		this.params.pageSize = 20;
+	}
+
+	@After
+	public void tearDown()
+	{
+		APISession.getSharedSession().sessionid = null;
+		APISession.getSharedSession().csrfToken = null;
+		API.setTransport(this.transport);
+	}
+
+	@Test
+	public void newConnection() throws IOException
+	{
+		APIURLConnection connection = new APIURLConnection(API.ACTION_LIST, "/items", this.params, null, false, false, false);
+		long start = 0;
+
+		for(int i = 0; i < WARM_UP + REQUESTS; ++i)
+		{
+			if(i == WARM_UP)
+				start = System.nanoTime();
+			connection.newConnection();
+			connection.releaseConnection(false);
+		}
+		report("newConnection", start);
+	}
+
+	@Test
+	public void legacyStrings() throws IOException
+	{
+		int length = 0;
+		long start = 0;
+
+		for(int i = 0; i < WARM_UP + REQUESTS; ++i)
+		{
+			if(i == WARM_UP)
+				start = System.nanoTime();
+			length += legacyStrings(this.params, "/items", false);
+		}
+		report("legacy strings only", start);
+		if(length == 0)
+			throw new AssertionError();
+	}
+
+	/** The strings newConnection built for every request before they were precomputed, returns their total length. */
+	private static int legacyStrings(APIRequestParams params, String path, boolean https) throws IOException
+	{
+		boolean httpsOnly = Boolean.parseBoolean(API.getConfiguration(API.CONFIG_HTTPS_ONLY));
+		Object[] args = params.getArgs();
+		StringBuilder query = new StringBuilder(), cookies = new StringBuilder();
+		APISession session = APISession.getSharedSession();
+		String encoded, file, referer;
+		URL url;
+
+		for(int i = 0; i < args.length - 1; i += 2)
+		{
+			encoded = (args[i + 1] != null) ? URLEncoder.encode(args[i + 1].toString(), "UTF-8") : "";
+			if((i + 2) < args.length - 1)
+				query.append(String.format("%s=%s&", args[i], encoded));
+			else
+				query.append(String.format("%s=%s", args[i], encoded));
+		}
+		file = (query.length() > 0) ? String.format("%s?%s", path, query) : path;
+		url = new URL(String.format("%s://%s%s", ((httpsOnly || https) ? "https" : "http"), API.getConfiguration(API.CONFIG_HOST), file));
+		referer = String.format("%s://%s", ((httpsOnly || https) ? "https" : "http"), API.getConfiguration(API.CONFIG_HOST));
+		cookies.append(APIURLConnection.COOKIE_SESSION_ID + "=" + session.sessionid);
+		cookies.append("; ");
+		cookies.append(APIURLConnection.COOKIE_CSRF_TOKEN + "=" + session.csrfToken);
+		return url.toString().length() + referer.length() + cookies.length();
+	}
+
+	private static void report(String name, long start)
+	{
+		System.out.println(String.format("%s: %,d per second", name, (long)(REQUESTS / ((System.nanoTime() - start) / 1e9))));
+	}
+}
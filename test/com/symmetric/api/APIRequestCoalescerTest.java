@@ -0,0 +1,170 @@
+package com.symmetric.api;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+@RunWith(RobolectricTestRunner.class)
+public class APIRequestCoalescerTest
+{
+	private static final String RESPONSE = "{\"name\":\"a\"}";
+
+	private APITransport transport;
+	private APIStubTransport stub;
+	// The handler holds every request until released, so the others can join it
+	private final CountDownLatch entered = new CountDownLatch(1);
+	private final CountDownLatch release = new CountDownLatch(1);
+	private volatile boolean fail;
+	private long coalesced;
+
+	/** Executes a connection on a thread of its own. */
+	private static final class Call extends Thread
+	{
+		final APIURLConnection connection = new APIURLConnection(API.ACTION_READ, "/items/1", null, null, false, false, false);
+		volatile String response;
+		volatile IOException error;
+
+		@Override
+		public void run()
+		{
+			try
+			{
+				this.response = this.connection.execute();
+			} catch(IOException e) { this.error = e; }
+		}
+
+		void finish() throws InterruptedException
+		{
+			join(5000);
+			assertFalse(isAlive());
+		}
+	}
+
+	@Before
+	public void setUp()
+	{
+		API.setup(RuntimeEnvironment.application);
+		API.setConfiguration(API.CONFIG_HOST, "stub.local");
+		API.setConfiguration(API.CONFIG_COALESCE_REQUESTS, null);
+		API.setConfiguration(API.CONFIG_MAX_RETRIES, "0");
+		APIURLConnection.resetCircuitBreakers();
+		this.transport = API.getTransport();
+		this.stub = new APIStubTransport(new APIStubTransport.Handler() {
+			public APIStubTransport.Response handle(APIStubTransport.Request request) throws IOException
+			{
+				APIRequestCoalescerTest.this.entered.countDown();
+				try
+				{
+					APIRequestCoalescerTest.this.release.await(5, TimeUnit.SECONDS);
+				} catch(InterruptedException e) { throw new IOException("Interrupted"); }
+				if(APIRequestCoalescerTest.this.fail)
+					throw new IOException("Connection reset");
+				return new APIStubTransport.Response(HttpURLConnection.HTTP_OK, RESPONSE);
+			}
+		});
+		API.setTransport(this.stub);
+		this.coalesced = APIURLConnection.getCoalescedRequestCount();
+	}
+
+	@After
+	public void tearDown()
+	{
+		this.release.countDown();
+		API.setTransport(this.transport);
+		API.setConfiguration(API.CONFIG_MAX_RETRIES, null);
+		APIURLConnection.resetCircuitBreakers();
+	}
+
+	@Test
+	public void aFollowerCancellingLeavesTheSharedRequest() throws Exception
+	{
+		Call leader = lead();
+		Call leaving = follow(1);
+		Call staying = follow(2);
+
+		leaving.connection.abort();
+		leaving.finish();
+		assertNull(leaving.response);
+		assertNull(leaving.error);
+		assertEquals(0, this.stub.getDisconnectCount());
+
+		this.release.countDown();
+		leader.finish();
+		staying.finish();
+		assertEquals(RESPONSE, leader.response);
+		assertEquals(RESPONSE, staying.response);
+		assertEquals(1, this.stub.getRequestCount());
+	}
+
+	@Test
+	public void theLastWaiterCancellingStopsTheRequest() throws Exception
+	{
+		Call leader = lead();
+		Call follower = follow(1);
+
+		// Someone still wants the response
+		leader.connection.abort();
+		assertEquals(0, this.stub.getDisconnectCount());
+		follower.connection.abort();
+		assertEquals(1, this.stub.getDisconnectCount());
+
+		this.release.countDown();
+		leader.finish();
+		follower.finish();
+		assertNull(leader.response);
+		assertNull(follower.response);
+		assertEquals(1, this.stub.getRequestCount());
+	}
+
+	@Test
+	public void everyWaiterGetsTheError() throws Exception
+	{
+		Call leader = lead();
+		Call first = follow(1);
+		Call second = follow(2);
+
+		this.fail = true;
+		this.release.countDown();
+		for(Call call : new Call[] {leader, first, second})
+		{
+			call.finish();
+			assertNull(call.response);
+			assertTrue(call.error != null && "Connection reset".equals(call.error.getMessage()));
+		}
+		assertEquals(1, this.stub.getRequestCount());
+	}
+
+	private Call lead() throws InterruptedException
+	{
+		Call call = new Call();
+
+		call.start();
+		assertTrue(this.entered.await(5, TimeUnit.SECONDS));
+		return call;
+	}
+
+	/** Starts a call and waits until it is the follower number count of the request in flight. */
+	private Call follow(int count) throws InterruptedException
+	{
+		Call call = new Call();
+
+		call.start();
+		for(int i = 0; i < 500 && APIURLConnection.getCoalescedRequestCount() < this.coalesced + count; ++i)
+			Thread.sleep(10);
+		assertEquals(this.coalesced + count, APIURLConnection.getCoalescedRequestCount());
+		return call;
+	}
+}
@@ -0,0 +1,125 @@
+package com.symmetric.api;
+
+import java.lang.management.ManagementFactory;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+/**
+ * Signatures per second and bytes allocated per signature with APIRequestSigner, against signing as signRequest did
+ * before it, with a new Mac and SecretKeySpec for every request. Allocation is only reported on VMs that can measure it
+ * per thread. Not named *Test so it isn't part of the regular test run, run it on its own and compare the figures.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class APIRequestSignerBenchmark
+{
+	private static final int WARM_UP = 50000;
+	private static final int SIGNATURES = 500000;
+	private static final byte[] BODY = "{\"name\":\"Item\",\"price\":12.5,\"tags\":[\"a\",\"b\"]}\n".getBytes();
+
+	/** Keeps the last signature instead of storing headers, so neither way pays for a header map. */
+	private static final class SignedConnection extends HttpURLConnection
+	{
+		String hmac;
+
+		SignedConnection() throws Exception
+		{
+			super(new URL("http://stub.local/"));
+		}
+
+		@Override
+		public void setRequestProperty(String key, String value)
+		{
+			this.hmac = value;
+		}
+
+		public void connect() {}
+		public void disconnect() {}
+		public boolean usingProxy() { return false; }
+	}
+
+	/** One way of signing BODY onto the connection. */
+	private interface Signer
+	{
+		public void sign(SignedConnection connection) throws Exception;
+	}
+
+	@Before
+	public void setUp()
+	{
+		API.setup(RuntimeEnvironment.application);
+		API.setConfiguration(API.CONFIG_HMAC_KEY, "benchmark-secret");
+		API.setConfiguration(API.CONFIG_HMAC_SALT, "benchmark-salt");
+		API.setConfiguration(API.CONFIG_HMAC_MODE, APIRequestSigner.MODE_BODY);
+	}
+
+	@Test
+	public void signatures() throws Exception
+	{
+		SignedConnection legacy = new SignedConnection(), cached = new SignedConnection();
+
+		measure("new Mac per request", legacy, new Signer() {
+			public void sign(SignedConnection connection) throws Exception
+			{
+				int i;
+				char c;
+
+				Mac mac = Mac.getInstance("HmacSHA256");
+				mac.init(new SecretKeySpec(API.getConfiguration(API.CONFIG_HMAC_KEY).getBytes(), "HmacSHA256"));
+				for(i = BODY.length - 1; i > 0; --i)
+				{
+					c = (char)BODY[i];
+					if(c != '\n' && c != '\r')
+						break;
+				}
+				mac.update(BODY, 0, i + 1);
+				mac.update(API.getConfiguration(API.CONFIG_HMAC_SALT).getBytes());
+				connection.setRequestProperty(APIURLConnection.XHEADER_HMAC, API.byteArrayToString(mac.doFinal()));
+			}
+		});
+		measure("APIRequestSigner", cached, new Signer() {
+			public void sign(SignedConnection connection) throws Exception
+			{
+				APIRequestSigner signer = APIRequestSigner.begin();
+				signer.update(BODY, 0, BODY.length);
+				signer.sign(connection);
+			}
+		});
+		if(!legacy.hmac.equals(cached.hmac))
+			throw new AssertionError("Signatures differ");
+	}
+
+	private static void measure(String name, SignedConnection connection, Signer signer) throws Exception
+	{
+		long start, allocated;
+
+		for(int i = 0; i < WARM_UP; ++i)
+			signer.sign(connection);
+		allocated = allocatedBytes();
+		start = System.nanoTime();
+		for(int i = 0; i < SIGNATURES; ++i)
+			signer.sign(connection);
+		System.out.print(String.format("%s: %,d signatures per second", name, (long)(SIGNATURES / ((System.nanoTime() - start) / 1e9))));
+		if(allocated >= 0)
+			System.out.print(String.format(", %,d bytes allocated per signature", (allocatedBytes() - allocated) / SIGNATURES));
+		System.out.println();
+	}
+
+	/** Bytes allocated by the current thread so far, or -1 if the VM can't tell. */
+	private static long allocatedBytes()
+	{
+		Object threads = ManagementFactory.getThreadMXBean();
+
+		if(threads instanceof com.sun.management.ThreadMXBean)
+			return ((com.sun.management.ThreadMXBean)threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+		return -1;
+	}
+}
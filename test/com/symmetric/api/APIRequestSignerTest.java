@@ -0,0 +1,167 @@
+package com.symmetric.api;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.HashMap;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+@RunWith(RobolectricTestRunner.class)
+public class APIRequestSignerTest
+{
+	private static final String[] BODIES = {
+		"{\"name\":\"Item\"}",
+		"{\"name\":\"Item\"}\n",
+		"{\"name\":\"Item\"}\r\n\r\n",
+		"{\"name\":\n\"Item\"}\n",
+		"\n",
+		"\r\n\n",
+		"",
+	};
+
+	private APITransport transport;
+
+	/** Keeps the headers set on it, nothing is sent. */
+	private static final class HeaderConnection extends HttpURLConnection
+	{
+		final HashMap<String, String> headers = new HashMap<String, String>();
+
+		HeaderConnection() throws Exception
+		{
+			super(new URL("http://stub.local/"));
+		}
+
+		@Override
+		public void setRequestProperty(String key, String value)
+		{
+			this.headers.put(key, value);
+		}
+
+		public void connect() {}
+		public void disconnect() {}
+		public boolean usingProxy() { return false; }
+	}
+
+	@Before
+	public void setUp()
+	{
+		API.setup(RuntimeEnvironment.application);
+		API.setConfiguration(API.CONFIG_HOST, "stub.local");
+		API.setConfiguration(API.CONFIG_HMAC_KEY, "test-secret");
+		API.setConfiguration(API.CONFIG_HMAC_SALT, "test-salt");
+		API.setConfiguration(API.CONFIG_HMAC_MODE, APIRequestSigner.MODE_BODY);
+		this.transport = API.getTransport();
+	}
+
+	@After
+	public void tearDown()
+	{
+		API.setTransport(this.transport);
+		API.setConfiguration(API.CONFIG_HMAC_KEY, null);
+		API.setConfiguration(API.CONFIG_HMAC_SALT, null);
+		API.setConfiguration(API.CONFIG_HMAC_MODE, null);
+		API.setConfiguration(API.CONFIG_GZIP_REQUEST_THRESHOLD, null);
+	}
+
+	@Test
+	public void signaturesMatchTheFormerSignRequest() throws Exception
+	{
+		byte[] data;
+
+		for(String body : BODIES)
+		{
+			data = body.getBytes("UTF-8");
+			assertEquals(body, legacySignature(data), signWhole(data));
+			assertEquals(body, legacySignature(data), signBytewise(data));
+		}
+		// Without a salt as well
+		API.setConfiguration(API.CONFIG_HMAC_SALT, null);
+		for(String body : BODIES)
+		{
+			data = body.getBytes("UTF-8");
+			assertEquals(body, legacySignature(data), signWhole(data));
+		}
+	}
+
+	@Test
+	public void gzippedRequestsAreSignedOverTheUncompressedBody() throws Exception
+	{
+		final String[] hmac = new String[1];
+		StringBuilder body = new StringBuilder("{\"items\":[");
+		byte[] data;
+
+		for(int i = 0; i < 2000; ++i)
+			body.append(i > 0 ? "," : "").append("{\"name\":\"Item ").append(i).append("\"}");
+		data = body.append("]}\n\n").toString().getBytes("UTF-8");
+		API.setConfiguration(API.CONFIG_GZIP_REQUEST_THRESHOLD, "1024");
+		API.setTransport(new APIStubTransport(new APIStubTransport.Handler() {
+			public APIStubTransport.Response handle(APIStubTransport.Request request)
+			{
+				hmac[0] = request.getHeader(APIURLConnection.XHEADER_HMAC);
+				return new APIStubTransport.Response(HttpURLConnection.HTTP_OK, "{}");
+			}
+		}));
+		new APIURLConnection(API.ACTION_CREATE, "/items", null, data, false, false, true).execute();
+		assertNotNull(hmac[0]);
+		assertEquals(legacySignature(data), hmac[0]);
+	}
+
+	private static String signWhole(byte[] data) throws Exception
+	{
+		HeaderConnection connection = new HeaderConnection();
+		APIRequestSigner signer = APIRequestSigner.begin();
+
+		signer.update(data, 0, data.length);
+		signer.sign(connection);
+		return connection.headers.get(APIURLConnection.XHEADER_HMAC);
+	}
+
+	/** Feeds the body a byte at a time through wrap, so every newline lands at the edge of a piece. */
+	private static String signBytewise(byte[] data) throws Exception
+	{
+		HeaderConnection connection = new HeaderConnection();
+		APIRequestSigner signer = APIRequestSigner.begin();
+		OutputStream out = signer.wrap(new ByteArrayOutputStream());
+
+		for(byte b : data)
+			out.write(b);
+		out.close();
+		signer.sign(connection);
+		return connection.headers.get(APIURLConnection.XHEADER_HMAC);
+	}
+
+	/** APIURLConnection.signRequest as it was before APIRequestSigner. */
+	private static String legacySignature(byte[] data) throws Exception
+	{
+		Mac mac = Mac.getInstance("HmacSHA256");
+		String salt;
+		int i;
+		char c;
+
+		mac.init(new SecretKeySpec(API.getConfiguration(API.CONFIG_HMAC_KEY).getBytes(), "HmacSHA256"));
+		for(i = (data.length - 1); i > 0; --i)
+		{
+			c = (char)data[i];
+			if((c != '\n') && (c != '\r'))
+				break;
+		}
+		mac.update(data, 0, i + 1);
+		salt = API.getConfiguration(API.CONFIG_HMAC_SALT);
+		if(salt != null)
+			mac.update(salt.getBytes());
+		return API.byteArrayToString(mac.doFinal());
+	}
+}
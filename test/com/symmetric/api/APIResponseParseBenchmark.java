@@ -0,0 +1,172 @@
+package com.symmetric.api;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+/**
+ * Parse time and peak heap of a multi-MB list response read as a String and parsed into a JSONArray, as every response
+ * was before streaming, against the streaming parsers. Not named *Test so it isn't part of the regular test run, run it
+ * on its own and compare the figures. The peak is sampled, so it is a rough figure.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class APIResponseParseBenchmark
+{
+	private static final int ITEMS = 20000;
+	private static final int RUNS = 5;
+
+	public static class Item
+	{
+		public final int id;
+		public final String name;
+
+		public Item(JSONObject obj) throws JSONException
+		{
+			this.id = obj.getInt("id");
+			this.name = obj.getString("name");
+		}
+	}
+
+	/** One way of reading the response, returns the number of items read. */
+	private interface Reader
+	{
+		public int read() throws IOException, JSONException;
+	}
+
+	private APITransport transport;
+	private int responseLength;
+
+	@Before
+	public void setUp()
+	{
+		StringBuilder body = new StringBuilder("[");
+
+		for(int i = 0; i < ITEMS; ++i)
+		{
+			if(i > 0)
+				body.append(',');
+			body.append("{\"id\":").append(i).append(",\"name\":\"Item number ").append(i)
+				.append("\",\"description\":\"A longer text describing the item, as list responses often carry.\"")
+				.append(",\"price\":").append(i * 0.25).append(",\"tags\":[\"a\",\"b\",\"c\"],\"available\":true}");
+		}
+		body.append(']');
+		final String response = body.toString();
+		this.responseLength = response.length();
+
+		API.setup(RuntimeEnvironment.application);
+		API.setConfiguration(API.CONFIG_HOST, "stub.local");
+		API.setConfiguration(API.CONFIG_COALESCE_REQUESTS, "false");
+		this.transport = API.getTransport();
+		API.setTransport(new APIStubTransport(new APIStubTransport.Handler() {
+			public APIStubTransport.Response handle(APIStubTransport.Request request)
+			{
+				return new APIStubTransport.Response(200, response);
+			}
+		}));
+	}
+
+	@After
+	public void tearDown()
+	{
+		API.setTransport(this.transport);
+	}
+
+	@Test
+	public void largeList() throws Exception
+	{
+		measure("String and JSONArray", new Reader() {
+			public int read() throws IOException, JSONException
+			{
+				return new JSONArray(connection().execute()).length();
+			}
+		});
+		measure("streamed tree", new Reader() {
+			public int read() throws IOException
+			{
+				return ((JSONArray)connection().execute(APIJSONParsers.TREE)).length();
+			}
+		});
+		measure("streamed models", new Reader() {
+			public int read() throws IOException
+			{
+				List<Item> items = connection().execute(APIJSONParsers.modelsOf(Item.class));
+				return items.size();
+			}
+		});
+	}
+
+	private static APIURLConnection connection()
+	{
+		return new APIURLConnection(API.ACTION_LIST, "/items", null, null, false, false, false);
+	}
+
+	private void measure(String name, Reader reader) throws Exception
+	{
+		Sampler sampler;
+		long start, time = Long.MAX_VALUE, peak = 0;
+
+		// The first run warms up
+		assertEquals(ITEMS, reader.read());
+		for(int i = 0; i < RUNS; ++i)
+		{
+			sampler = new Sampler();
+			start = System.nanoTime();
+			assertEquals(ITEMS, reader.read());
+			time = Math.min(time, System.nanoTime() - start);
+			peak = Math.max(peak, sampler.finish());
+		}
+		System.out.println(String.format("%s, %,d bytes: %.1f ms, peak heap +%,d KB", name, this.responseLength, time / 1e6, peak / 1024));
+	}
+
+	/** Polls the used heap on its own thread from a collected baseline, finish returns the highest growth seen. */
+	private static final class Sampler extends Thread
+	{
+		private final long baseline;
+		private volatile boolean finished;
+		private long peak;
+
+		Sampler()
+		{
+			System.gc();
+			this.baseline = used();
+			setDaemon(true);
+			start();
+		}
+
+		public void run()
+		{
+			while(!this.finished)
+			{
+				this.peak = Math.max(this.peak, used() - this.baseline);
+				try
+				{
+					Thread.sleep(1);
+				} catch(InterruptedException e) { return; }
+			}
+		}
+
+		long finish() throws InterruptedException
+		{
+			this.finished = true;
+			join();
+			return this.peak;
+		}
+
+		private static long used()
+		{
+			Runtime runtime = Runtime.getRuntime();
+			return runtime.totalMemory() - runtime.freeMemory();
+		}
+	}
+}
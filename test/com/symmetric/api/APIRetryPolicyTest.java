@@ -0,0 +1,99 @@
+package com.symmetric.api;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.HttpURLConnection;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+@RunWith(RobolectricTestRunner.class)
+public class APIRetryPolicyTest
+{
+	private APITransport transport;
+	private APIStubTransport stub;
+
+	@Before
+	public void setUp()
+	{
+		API.setup(RuntimeEnvironment.application);
+		API.setConfiguration(API.CONFIG_HOST, "stub.local");
+		API.setConfiguration(API.CONFIG_COALESCE_REQUESTS, "false");
+		API.setConfiguration(API.CONFIG_MAX_RETRIES, "2");
+		API.setConfiguration(API.CONFIG_RETRY_DELAY, "1");
+		// Failures here shouldn't open the circuit
+		API.setConfiguration(API.CONFIG_CIRCUIT_BREAKER_THRESHOLD, "0");
+		this.transport = API.getTransport();
+		this.stub = new APIStubTransport(new APIStubTransport.Handler() {
+			public APIStubTransport.Response handle(APIStubTransport.Request request)
+			{
+				return new APIStubTransport.Response(HttpURLConnection.HTTP_UNAVAILABLE, "{}");
+			}
+		});
+		API.setTransport(this.stub);
+	}
+
+	@After
+	public void tearDown()
+	{
+		API.setTransport(this.transport);
+		API.setConfiguration(API.CONFIG_MAX_RETRIES, null);
+		API.setConfiguration(API.CONFIG_RETRY_DELAY, null);
+		API.setConfiguration(API.CONFIG_RETRY_CREATES, null);
+		API.setConfiguration(API.CONFIG_CIRCUIT_BREAKER_THRESHOLD, null);
+		APIURLConnection.resetCircuitBreakers();
+	}
+
+	@Test
+	public void backoffStaysWithinItsBounds()
+	{
+		APIRetryPolicy policy = new APIRetryPolicy(30, 500, false);
+		long delay;
+
+		for(int retries = 0; retries < 30; ++retries)
+		{
+			for(int i = 0; i < 100; ++i)
+			{
+				delay = policy.delayBefore(retries, null);
+				assertTrue(delay >= 0);
+				assertTrue(delay < Math.min(500L << retries, APIRetryPolicy.MAX_DELAY));
+			}
+		}
+		// Retry-After in seconds is waited as is, up to the cap, an HTTP date backs off as usual
+		assertEquals(3000, policy.delayBefore(0, "3"));
+		assertEquals(APIRetryPolicy.MAX_DELAY, policy.delayBefore(0, "3600"));
+		assertTrue(policy.delayBefore(0, "Wed, 21 Oct 2015 07:28:00 GMT") < 500);
+		assertEquals(0, new APIRetryPolicy(3, 0, false).delayBefore(2, null));
+	}
+
+	@Test
+	public void readsAreRetriedUpToTheLimit() throws Exception
+	{
+		APIURLConnection connection = new APIURLConnection(API.ACTION_READ, "/items/1", null, null, false, false, false);
+
+		connection.execute();
+		assertEquals(HttpURLConnection.HTTP_UNAVAILABLE, connection.getResponseCode());
+		assertEquals(3, this.stub.getRequestCount());
+	}
+
+	@Test
+	public void createsAreNotRetriedUnlessAllowed() throws Exception
+	{
+		byte[] data = "{\"name\":\"a\"}".getBytes("UTF-8");
+
+		assertFalse(APIRetryPolicy.getPolicy().canRetry(API.ACTION_CREATE, 0));
+		new APIURLConnection(API.ACTION_CREATE, "/items", null, data, false, false, false).execute();
+		assertEquals(1, this.stub.getRequestCount());
+
+		// The Idempotency-Key makes them safe on servers that honor it
+		API.setConfiguration(API.CONFIG_RETRY_CREATES, "true");
+		new APIURLConnection(API.ACTION_CREATE, "/items", null, data, false, false, false).execute();
+		assertEquals(4, this.stub.getRequestCount());
+	}
+}
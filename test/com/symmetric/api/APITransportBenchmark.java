@@ -0,0 +1,68 @@
+package com.symmetric.api;
+
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+/**
+ * Handshakes and requests per second of sequential reads through APIStubTransport with and without keep-alive, with a
+ * simulated handshake. Not named *Test so it isn't part of the regular test run, run it on its own and compare the figures.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class APITransportBenchmark
+{
+	private static final int REQUESTS = 50;
+	private static final long HANDSHAKE_DELAY = 20;
+
+	private APITransport transport;
+	private APIStubTransport stub;
+
+	@Before
+	public void setUp()
+	{
+		API.setup(RuntimeEnvironment.application);
+		API.setConfiguration(API.CONFIG_HOST, "stub.local");
+		API.setConfiguration(API.CONFIG_COALESCE_REQUESTS, "false");
+		this.transport = API.getTransport();
+		this.stub = new APIStubTransport(new APIStubTransport.Handler() {
+			public APIStubTransport.Response handle(APIStubTransport.Request request)
+			{
+				return new APIStubTransport.Response(200, "[1,2,3]");
+			}
+		});
+		this.stub.setHandshakeDelay(HANDSHAKE_DELAY);
+		API.setTransport(this.stub);
+	}
+
+	@After
+	public void tearDown()
+	{
+		API.setTransport(this.transport);
+	}
+
+	@Test
+	public void sequentialReads() throws IOException
+	{
+		run(true);
+		run(false);
+	}
+
+	private void run(boolean keepAlive) throws IOException
+	{
+		long handshakes, start;
+
+		this.stub.setKeepAlive(keepAlive);
+		handshakes = this.stub.getHandshakeCount();
+		start = System.nanoTime();
+		for(int i = 0; i < REQUESTS; ++i)
+			new APIURLConnection(API.ACTION_LIST, "/items", null, null, false, false, false).execute();
+		System.out.println(String.format("keep-alive %s, %d reads with a %d ms handshake: %d handshakes, %.0f req/s",
+			keepAlive ? "on" : "off", REQUESTS, HANDSHAKE_DELAY, this.stub.getHandshakeCount() - handshakes,
+			REQUESTS / ((System.nanoTime() - start) / 1e9)));
+	}
+}
@@ -0,0 +1,79 @@
+package com.symmetric.api;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.net.HttpURLConnection;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+@RunWith(RobolectricTestRunner.class)
+public class APIURLConnectionTest
+{
+	private APITransport transport;
+	private APIStubTransport stub;
+	private int responseCode;
+	private String responseBody;
+
+	@Before
+	public void setUp()
+	{
+		API.setup(RuntimeEnvironment.application);
+		API.setConfiguration(API.CONFIG_HOST, "stub.local");
+		API.setConfiguration(API.CONFIG_COALESCE_REQUESTS, "false");
+		APIURLConnection.resetCircuitBreakers();
+		this.transport = API.getTransport();
+		this.stub = new APIStubTransport(new APIStubTransport.Handler() {
+			public APIStubTransport.Response handle(APIStubTransport.Request request)
+			{
+				return new APIStubTransport.Response(APIURLConnectionTest.this.responseCode, APIURLConnectionTest.this.responseBody);
+			}
+		});
+		API.setTransport(this.stub);
+	}
+
+	@After
+	public void tearDown()
+	{
+		API.setTransport(this.transport);
+		API.setConfiguration(API.CONFIG_CIRCUIT_BREAKER_THRESHOLD, null);
+		APIURLConnection.resetCircuitBreakers();
+	}
+
+	@Test
+	public void notModifiedIsNotParsed() throws Exception
+	{
+		APIURLConnection connection = new APIURLConnection(API.ACTION_READ, "/items/1", null, null, false, false, false);
+
+		this.responseCode = HttpURLConnection.HTTP_NOT_MODIFIED;
+		this.responseBody = "";
+		assertNull(connection.execute(APIJSONParsers.TREE));
+		assertEquals(HttpURLConnection.HTTP_NOT_MODIFIED, connection.getResponseCode());
+		assertEquals(1, this.stub.getRequestCount());
+	}
+
+	@Test
+	public void parseErrorsAreNotRetriedNorCountedAsFailures() throws Exception
+	{
+		// A single failure would open the circuit
+		API.setConfiguration(API.CONFIG_CIRCUIT_BREAKER_THRESHOLD, "1");
+		this.responseCode = HttpURLConnection.HTTP_OK;
+		this.responseBody = "{\"name\":";
+		try
+		{
+			new APIURLConnection(API.ACTION_READ, "/items/1", null, null, false, false, false).execute(APIJSONParsers.TREE);
+			fail("Expected a parse error");
+		} catch(APIResponseParseException e) { }
+		assertEquals(1, this.stub.getRequestCount());
+
+		this.responseBody = "{\"name\":\"a\"}";
+		assertNotNull(new APIURLConnection(API.ACTION_READ, "/items/1", null, null, false, false, false).execute(APIJSONParsers.TREE));
+	}
+}